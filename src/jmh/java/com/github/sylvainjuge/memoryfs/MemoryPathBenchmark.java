@@ -0,0 +1,81 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of path-heavy operations, compiled with "jmh" profile and run through {@link #main(String[])} from
+ * test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryPathBenchmark {
+
+    private static final String[] NAMES = {"usr", "local", "share", "memoryfs", "lib", "classes", "file.txt"};
+
+    private MemoryFileSystem fs;
+    private Path root;
+    private Path deep;
+
+    @Setup
+    public void setup() {
+        fs = MemoryFileSystem.builder(new MemoryFileSystemProvider()).build();
+        root = fs.getPath("/");
+        deep = fs.getPath("/usr/local/share/memoryfs/lib/classes/file.txt");
+    }
+
+    @Benchmark
+    public Path createPath() {
+        return fs.getPath("/usr/local/share/memoryfs/lib/classes/file.txt");
+    }
+
+    @Benchmark
+    public Path createPathFromSegments() {
+        return fs.getPath("/usr", "local", "share", "memoryfs", "lib", "classes", "file.txt");
+    }
+
+    @Benchmark
+    public Path resolveLoop() {
+        Path path = root;
+        for (String name : NAMES) {
+            path = path.resolve(name);
+        }
+        return path;
+    }
+
+    @Benchmark
+    public int parentsLoop() {
+        int count = 0;
+        for (Path path = deep; null != path; path = path.getParent()) {
+            count += path.getFileName() == null ? 0 : 1;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public Path relativize() {
+        return deep.getParent().relativize(deep.getRoot().resolve("usr/local/lib"));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MemoryPathBenchmark.class.getSimpleName()).build()).run();
+    }
+}
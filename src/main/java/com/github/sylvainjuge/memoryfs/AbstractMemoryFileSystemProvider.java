@@ -0,0 +1,414 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.sylvainjuge.memoryfs.MemoryFileSystem.SCHEME;
+import static com.github.sylvainjuge.memoryfs.MemoryFileSystem.SEPARATOR;
+import static com.github.sylvainjuge.memoryfs.MemoryFileSystem.asMemoryFileSystem;
+
+/**
+ * Memory filesystem provider, see {@link MemoryFileSystemProvider} which is its only implementation, and which is
+ * provided as a multi-release class in order to implement methods only available with recent JDKs.
+ */
+public abstract class AbstractMemoryFileSystemProvider extends FileSystemProvider {
+
+    /**
+     * environment key for filesystem identifier, only used when filesystem is not created from an URI
+     */
+    public static final String ENV_ID = "id";
+
+    /**
+     * environment key for journal directory, either a {@link Path} or a path in default filesystem, filesystem is
+     * not durable when not set, see {@link MemoryFileSystem#openJournal(Path)}
+     */
+    public static final String ENV_JOURNAL = "journal";
+
+    /**
+     * environment key for filesystem capacity in bytes, zero for unlimited capacity
+     */
+    public static final String ENV_CAPACITY = "capacity";
+
+    /**
+     * environment key for part of provider budget reserved for filesystem in bytes
+     */
+    public static final String ENV_RESERVATION = "reservation";
+
+    /**
+     * environment key for cache budget in bytes of a filesystem mounted over a backing directory, see
+     * {@link MemoryFileSystem.Builder#cache(long)}
+     */
+    public static final String ENV_CACHE = "cache";
+
+    /**
+     * environment key for size of blocks used to store file content
+     */
+    public static final String ENV_BLOCK_SIZE = "blockSize";
+
+    /**
+     * environment key for file content storage, either a {@link MemoryFileSystem.Storage} or its name
+     */
+    public static final String ENV_STORAGE = "storage";
+
+    // thread safety : synchronized on instance for r/w
+    private final Map<String, MemoryFileSystem> fileSystems;
+
+    private final Budget budget; // null for unlimited budget
+
+    // constructors of all versions of MemoryFileSystemProvider, which must only delegate to them
+
+    AbstractMemoryFileSystemProvider() {
+        this(null);
+    }
+
+    AbstractMemoryFileSystemProvider(long budget) {
+        this(new Budget(budget, 0, TimeUnit.MILLISECONDS));
+    }
+
+    AbstractMemoryFileSystemProvider(long budget, long maxWait, TimeUnit unit) {
+        // waiting writers hold their file lock, thus space can only be released by other files while waiting
+        this(new Budget(budget, maxWait, unit));
+    }
+
+    private AbstractMemoryFileSystemProvider(Budget budget) {
+        this.fileSystems = new HashMap<>();
+        this.budget = budget;
+    }
+
+    Budget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return provider budget in bytes, zero when not limited
+     */
+    public long getTotalBudget() {
+        return null == budget ? 0 : budget.getCapacity();
+    }
+
+    /**
+     * @return budget not yet reserved nor used by any filesystem, zero when not limited
+     */
+    public long getAvailableBudget() {
+        return null == budget ? 0 : budget.getAvailable();
+    }
+
+    /**
+     * @return space used by each open filesystem in bytes, by filesystem ID
+     */
+    public Map<String, Long> getUsedSpace() {
+        Map<String, Long> result = new HashMap<>();
+        synchronized (fileSystems) {
+            for (Map.Entry<String, MemoryFileSystem> entry : fileSystems.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().getSpace().getUsed());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return part of provider budget held by each open filesystem in bytes, by filesystem ID, which is the largest
+     * of its reservation and its used space, zero when provider budget is not limited
+     */
+    public Map<String, Long> getBudgetShares() {
+        Map<String, Long> result = new HashMap<>();
+        synchronized (fileSystems) {
+            for (Map.Entry<String, MemoryFileSystem> entry : fileSystems.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().getSpace().getCommitted());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    private static void checkMemoryScheme(URI uri) {
+        if (!SCHEME.equals(uri.getScheme())) {
+            throw new IllegalArgumentException("invalid scheme : " + uri);
+        }
+    }
+
+    private static String checkAndGetFileSystemId(URI uri) {
+        if (!uri.isAbsolute()) {
+            throw new IllegalArgumentException("invalid URI : must be absolute : " + uri);
+        }
+        String path = uri.getPath();
+        if (null == path || path.length() < 1 || null != uri.getHost()) {
+            throw new IllegalArgumentException("invalid URI, fs root path must be in the form : 'memory:/[ID]' where [ID] is the filesystem ID");
+        }
+        for (String part : path.split(SEPARATOR)) {
+            if (!part.isEmpty()) {
+                return part;
+            }
+        }
+        // default ID is an empty string
+        return "";
+    }
+
+    // TODO : allow to create FS with a random ID (distinct from other instances handled by this provider)
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        checkMemoryScheme(uri);
+        String id = checkAndGetFileSystemId(uri);
+        MemoryFileSystem fs = MemoryFileSystem.builder(this).env(env).id(id).build();
+        Object journal = null == env ? null : env.get(ENV_JOURNAL);
+        if (null != journal) {
+            try {
+                fs.openJournal(journal instanceof Path ? (Path) journal : Paths.get(journal.toString()));
+            } catch (IOException | RuntimeException e) {
+                fs.close();
+                throw e;
+            }
+        }
+        return fs;
+    }
+
+    public MemoryFileSystem registerFileSystem(MemoryFileSystem fs) {
+        String id = fs.getId();
+        synchronized (fileSystems) {
+            if (fileSystems.containsKey(id)) {
+                throw new FileSystemAlreadyExistsException("file system already exists : " + id);
+            }
+            fileSystems.put(id, fs);
+        }
+        return fs;
+    }
+
+    /**
+     * Forks a filesystem in constant time, whatever its size : new filesystem initially has the content of template,
+     * and shares all its directories and file blocks with template until they are modified. Template remains usable,
+     * and its later modifications are not visible in fork.
+     *
+     * @param template template filesystem, provided by this provider
+     * @param id identifier of new filesystem
+     * @return new filesystem
+     * @throws FileSystemAlreadyExistsException if a filesystem already exists with this identifier
+     * @see MemoryFileSystem.Builder#template(Snapshot)
+     */
+    public MemoryFileSystem fork(MemoryFileSystem template, String id) {
+        if (template.provider() != this) {
+            throw new ProviderMismatchException();
+        }
+        return template.fork(MemoryFileSystem.builder(this).id(id));
+    }
+
+    /**
+     * Mounts a filesystem image created with {@link MemoryFileSystem#save(java.nio.channels.WritableByteChannel)},
+     * image file is mapped into memory and its content is only read when accessed.
+     * <p>
+     * A directory of any filesystem may also be mounted as read-only lower layer, see
+     * {@link MemoryFileSystem.Builder#lower(Path)}.
+     *
+     * @param path image file or lower directory, which must not be modified while filesystem is open
+     * @param env filesystem environment, see {@code ENV_*} keys
+     * @return new filesystem, with image or directory content
+     * @throws UnsupportedOperationException if file is neither a filesystem image nor a directory
+     * @throws IOException if image can't be mapped, or is not valid
+     */
+    @Override
+    public FileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException {
+        if (Files.isDirectory(path)) {
+            return MemoryFileSystem.builder(this).env(env).lower(path).build();
+        }
+        FileSystemImage.Mapping image = FileSystemImage.Mapping.open(path);
+        if (null == image) {
+            throw new UnsupportedOperationException("not a memory filesystem image : " + path);
+        }
+        return MemoryFileSystem.builder(this).env(env).image(image).build();
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        checkMemoryScheme(uri);
+        String id = checkAndGetFileSystemId(uri);
+        synchronized (fileSystems) {
+            FileSystem fs = fileSystems.get(id);
+            if (null == fs) {
+                throw new FileSystemNotFoundException("no filesystem exists with this ID : " + id);
+            }
+            return fs;
+        }
+    }
+
+    Map<String, ? extends FileSystem> registeredFileSystems() {
+        synchronized (fileSystems) {
+            return Collections.unmodifiableMap(fileSystems);
+        }
+    }
+
+    void removeFileSystem(String id) {
+        synchronized (fileSystems) {
+            if (!fileSystems.containsKey(id)) {
+                throw new IllegalStateException("file system does not exist in provider : " + id);
+            }
+            fileSystems.remove(id);
+        }
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        checkMemoryScheme(uri);
+        String id = checkAndGetFileSystemId(uri);
+        synchronized (fileSystems) {
+            MemoryFileSystem fs = fileSystems.get(id);
+            if (null == fs) {
+                throw new IllegalArgumentException("non existing filesystem : '" + id + "'");
+            }
+            return MemoryPath.create(fs, uri.getPath());
+        }
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        try {
+            return asMemoryFileSystem(path.getFileSystem()).newByteChannel(path, options);
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        try {
+            return asMemoryFileSystem(path.getFileSystem()).newFileChannel(path, options);
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        try {
+            return asMemoryFileSystem(dir.getFileSystem()).newDirectoryStream(dir);
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        try {
+            asMemoryFileSystem(dir.getFileSystem()).createDirectory(dir);
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        try {
+            asMemoryFileSystem(path.getFileSystem()).delete(path);
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        try {
+            asMemoryFileSystem(source.getFileSystem()).move(source, target, options);
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        try {
+            asMemoryFileSystem(source.getFileSystem()).copy(source, target, options);
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public boolean isSameFile(Path path1, Path path2) throws IOException {
+        try {
+            MemoryPath memPath1 = MemoryPath.asMemoryPath(path1);
+            MemoryPath memPath2 = MemoryPath.asMemoryPath(path2);
+            return null != memPath1 && (memPath1 == memPath2 || memPath1.findEntry() == memPath2.findEntry());
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public boolean isHidden(Path path) throws IOException {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        try {
+            return asMemoryFileSystem(path.getFileSystem()).getFileStore(path);
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        try {
+            findEntry(path);
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        return null;
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+        try {
+            checkAttributesType(type);
+            return type.cast(findEntry(path));
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    static void checkAttributesType(Class<? extends BasicFileAttributes> type) {
+        if (!type.isAssignableFrom(Entry.class)) {
+            throw new UnsupportedOperationException("unsupported attribute type : " + type);
+        }
+    }
+
+    private static Entry findEntry(Path path) throws NoSuchFileException {
+        Entry entry = MemoryPath.asMemoryPath(path).findEntry();
+        if( null == entry){
+            // required for Files.exists(Path) to work, since it assumes file existence when this method
+            // does not throw exception, and does not care when it returns null
+            throw new MissingPathException(path);
+        }
+        return entry;
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        MemoryPath.asMemoryPath(path);
+        throw new UnsupportedOperationException("not supported");
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
+    }
+}
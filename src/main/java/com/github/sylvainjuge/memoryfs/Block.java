@@ -0,0 +1,417 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Fixed-size chunk of file content, allocated and released through a {@link BlockStorage}.
+ * <p>
+ * Blocks do not hold any position or limit state, all accesses are done with absolute offsets within block,
+ * thus a single block can be read concurrently.
+ * <p>
+ * A block may be shared by several files through copy-on-write, thus blocks are reference counted and only released
+ * to their storage once unreferenced.
+ */
+abstract class Block {
+
+    private static final AtomicIntegerFieldUpdater<Block> REFS = AtomicIntegerFieldUpdater.newUpdater(Block.class, "refs");
+
+    // set to 1 by storage on allocation
+    private volatile int refs = 0;
+
+    final Block retain() {
+        REFS.incrementAndGet(this);
+        return this;
+    }
+
+    /**
+     * @return true when last reference to this block has been dropped, and block should be released to its storage
+     */
+    final boolean unreference() {
+        return 0 == REFS.decrementAndGet(this);
+    }
+
+    /**
+     * @return true when block is referenced more than once, and thus must not be modified in-place
+     */
+    final boolean isShared() {
+        return 1 < refs;
+    }
+
+    abstract int size();
+
+    abstract byte get(int offset);
+
+    abstract void get(int offset, byte[] dst, int dstOffset, int length);
+
+    abstract void put(int offset, byte[] src, int srcOffset, int length);
+
+    /**
+     * Copies block content into a buffer, buffer position is advanced by {@code length}
+     *
+     * @param offset offset in block
+     * @param dst destination buffer
+     * @param length number of bytes to copy
+     */
+    abstract void get(int offset, ByteBuffer dst, int length);
+
+    /**
+     * Copies buffer content into block, buffer position is advanced by {@code length}
+     *
+     * @param offset offset in block
+     * @param src source buffer
+     * @param length number of bytes to copy
+     */
+    abstract void put(int offset, ByteBuffer src, int length);
+
+    /**
+     * Same as {@link #get(int, ByteBuffer, int)}, accessing block content through cursor when possible
+     *
+     * @param offset offset in block
+     * @param dst destination buffer
+     * @param length number of bytes to copy
+     * @param cursor cursor of caller, null if none
+     */
+    void get(int offset, ByteBuffer dst, int length, Cursor cursor) {
+        get(offset, dst, length);
+    }
+
+    /**
+     * Same as {@link #put(int, ByteBuffer, int)}, accessing block content through cursor when possible
+     *
+     * @param offset offset in block
+     * @param src source buffer
+     * @param length number of bytes to copy
+     * @param cursor cursor of caller, null if none
+     */
+    void put(int offset, ByteBuffer src, int length, Cursor cursor) {
+        put(offset, src, length);
+    }
+
+    /**
+     * Provides direct access to block content without copy, changes made through buffer are made to block content.
+     * Buffer position and limit are set to the requested range, and buffer must not be used once block has
+     * been released.
+     *
+     * @param offset offset in block
+     * @param length length of range
+     * @return buffer view of block content
+     */
+    abstract ByteBuffer buffer(int offset, int length);
+
+    /**
+     * Sets block content to zero within range
+     *
+     * @param from start offset, inclusive
+     * @param to end offset, exclusive
+     */
+    abstract void clear(int from, int to);
+
+    /**
+     * Copies the whole content of this block into another block of same size
+     *
+     * @param target target block
+     */
+    abstract void copyTo(Block target);
+
+    static final class HeapBlock extends Block {
+
+        private final byte[] data;
+
+        HeapBlock(int size) {
+            this.data = new byte[size];
+        }
+
+        @Override
+        int size() {
+            return data.length;
+        }
+
+        @Override
+        byte get(int offset) {
+            return data[offset];
+        }
+
+        @Override
+        void get(int offset, byte[] dst, int dstOffset, int length) {
+            System.arraycopy(data, offset, dst, dstOffset, length);
+        }
+
+        @Override
+        void put(int offset, byte[] src, int srcOffset, int length) {
+            System.arraycopy(src, srcOffset, data, offset, length);
+        }
+
+        @Override
+        void get(int offset, ByteBuffer dst, int length) {
+            dst.put(data, offset, length);
+        }
+
+        @Override
+        void put(int offset, ByteBuffer src, int length) {
+            src.get(data, offset, length);
+        }
+
+        @Override
+        ByteBuffer buffer(int offset, int length) {
+            return ByteBuffer.wrap(data, offset, length);
+        }
+
+        @Override
+        void clear(int from, int to) {
+            Arrays.fill(data, from, to, (byte) 0);
+        }
+
+        @Override
+        void copyTo(Block target) {
+            target.put(0, data, 0, data.length);
+        }
+    }
+
+    static final class DirectBlock extends Block {
+
+        private static final byte[] ZEROS = new byte[4096];
+
+        // shared by all readers & writers, thus position and limit must never be altered
+        private final ByteBuffer data;
+
+        // mapped region this block belongs to, null for blocks allocated by storage
+        private final Region region;
+        private final int regionOffset;
+
+        // storage slab this block is sliced from, null for blocks not allocated by storage
+        private final Object slab;
+
+        DirectBlock(ByteBuffer data) {
+            this(data, null);
+        }
+
+        DirectBlock(ByteBuffer data, Object slab) {
+            this.data = data;
+            this.region = null;
+            this.regionOffset = 0;
+            this.slab = slab;
+        }
+
+        private DirectBlock(Region region, int offset, int size) {
+            ByteBuffer view = region.buffer.duplicate();
+            view.limit(offset + size).position(offset);
+            this.data = view.slice();
+            this.region = region;
+            this.regionOffset = offset;
+            this.slab = null;
+        }
+
+        Object getSlab() {
+            return slab;
+        }
+
+        /**
+         * @return true if this block belongs to a mapped region
+         */
+        boolean isMapped() {
+            return null != region;
+        }
+
+        /**
+         * @return true if this block belongs to a region mapped by a writable buffer, thus block content may be
+         * modified at any time through this buffer, and block must never be shared
+         */
+        boolean isWritableMapped() {
+            return isMapped() && region.writable;
+        }
+
+        /**
+         * @param next other block
+         * @return true if both blocks belong to the same mapped region, and other block immediately follows this one
+         */
+        boolean isFollowedBy(Block next) {
+            if (!isMapped() || !(next instanceof DirectBlock)) {
+                return false;
+            }
+            DirectBlock other = (DirectBlock) next;
+            return region == other.region && regionOffset + size() == other.regionOffset;
+        }
+
+        /**
+         * Allocates the block that immediately follows this one in its mapped region, thus a mapped file keeps
+         * growing within its region.
+         *
+         * @return new block, with its content set to zero and referenced once, null if this block is not mapped,
+         * if following block has already been allocated, or if region is full
+         */
+        DirectBlock allocateNext() {
+            if (!isMapped()) {
+                return null;
+            }
+            return region.allocateAfter(regionOffset + size());
+        }
+
+        /**
+         * @param offset offset in block
+         * @param length length of view, may span over following blocks of the same region
+         * @param writable true if content may be modified through view
+         * @return view of mapped region, starting at offset in this block
+         */
+        ByteBuffer regionView(int offset, int length, boolean writable) {
+            if (writable) {
+                region.writable = true;
+            }
+            ByteBuffer view = region.buffer.duplicate();
+            view.limit(regionOffset + offset + length).position(regionOffset + offset);
+            return view.slice();
+        }
+
+        @Override
+        int size() {
+            return data.capacity();
+        }
+
+        @Override
+        byte get(int offset) {
+            return data.get(offset);
+        }
+
+        @Override
+        void get(int offset, byte[] dst, int dstOffset, int length) {
+            view(offset).get(dst, dstOffset, length);
+        }
+
+        @Override
+        void put(int offset, byte[] src, int srcOffset, int length) {
+            view(offset).put(src, srcOffset, length);
+        }
+
+        @Override
+        void get(int offset, ByteBuffer dst, int length) {
+            ByteBuffer view = view(offset);
+            view.limit(offset + length);
+            dst.put(view);
+        }
+
+        @Override
+        void get(int offset, ByteBuffer dst, int length, Cursor cursor) {
+            if (null == cursor) {
+                get(offset, dst, length);
+            } else {
+                dst.put(cursor.view(this, offset, length));
+            }
+        }
+
+        @Override
+        void put(int offset, ByteBuffer src, int length) {
+            put(view(offset), src, length);
+        }
+
+        @Override
+        void put(int offset, ByteBuffer src, int length, Cursor cursor) {
+            put(null == cursor ? view(offset) : cursor.view(this, offset, length), src, length);
+        }
+
+        private static void put(ByteBuffer view, ByteBuffer src, int length) {
+            if (src.remaining() == length) {
+                view.put(src);
+            } else {
+                int limit = src.limit();
+                src.limit(src.position() + length);
+                view.put(src);
+                src.limit(limit);
+            }
+        }
+
+        @Override
+        ByteBuffer buffer(int offset, int length) {
+            ByteBuffer view = view(offset);
+            view.limit(offset + length);
+            return view;
+        }
+
+        @Override
+        void clear(int from, int to) {
+            ByteBuffer view = view(from);
+            for (int i = from; i < to; i += ZEROS.length) {
+                view.put(ZEROS, 0, Math.min(ZEROS.length, to - i));
+            }
+        }
+
+        @Override
+        void copyTo(Block target) {
+            if (target instanceof DirectBlock) {
+                ((DirectBlock) target).view(0).put(view(0));
+            } else {
+                byte[] buffer = new byte[size()];
+                get(0, buffer, 0, buffer.length);
+                target.put(0, buffer, 0, buffer.length);
+            }
+        }
+
+        private ByteBuffer view(int offset) {
+            ByteBuffer view = data.duplicate();
+            view.position(offset);
+            return view;
+        }
+    }
+
+    /**
+     * Reusable view of the last direct block accessed, avoids creating a new view of block content on each access
+     * when consecutive accesses are made to the same block, for example by small sequential reads or writes.
+     * <p>
+     * A cursor holds position and limit state, thus it must only be used by a single thread at a time, usually
+     * through the channel that owns it.
+     */
+    static final class Cursor {
+
+        private DirectBlock block;
+        private ByteBuffer view;
+
+        private ByteBuffer view(DirectBlock block, int offset, int length) {
+            if (this.block != block) {
+                this.view = block.data.duplicate();
+                this.block = block;
+            }
+            view.limit(offset + length).position(offset);
+            return view;
+        }
+    }
+
+    /**
+     * Contiguous direct memory region, used to map consecutive blocks of a file as a single buffer.
+     * <p>
+     * Blocks are allocated sequentially within region and never reused, thus a block content is only shared
+     * through block reference counting, and mapped buffers remain valid as long as they are used.
+     */
+    static final class Region {
+
+        private final ByteBuffer buffer;
+        private final int blockSize;
+
+        // set once a writable view of region has been provided, never reset since views can't be revoked
+        private volatile boolean writable;
+
+        // thread safety : synchronized on instance for r/w
+        private int used;
+
+        Region(int blockSize, int capacity) {
+            this.buffer = ByteBuffer.allocateDirect(blockSize * capacity);
+            this.blockSize = blockSize;
+            this.writable = false;
+            this.used = 0;
+        }
+
+        /**
+         * @return new block at end of region, with its content set to zero and referenced once, null if region is full
+         */
+        synchronized DirectBlock allocate() {
+            return allocateAfter(used);
+        }
+
+        private synchronized DirectBlock allocateAfter(int offset) {
+            if (offset != used || buffer.capacity() < used + blockSize) {
+                return null;
+            }
+            used += blockSize;
+            return (DirectBlock) new DirectBlock(this, offset, blockSize).retain();
+        }
+    }
+}
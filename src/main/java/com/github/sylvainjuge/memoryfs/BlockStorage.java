@@ -0,0 +1,375 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedFileSystemException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Allocates and releases file data blocks of a filesystem.
+ * <p>
+ * All blocks allocated by a storage have the same size, see {@link MemoryFileSystem.Storage} for available
+ * implementations.
+ * <p>
+ * A storage may be shared by several filesystems, which share blocks, it is then only closed once closed by all of
+ * them.
+ */
+abstract class BlockStorage {
+
+    private final int blockSize;
+
+    // filesystems using this storage
+    private final AtomicInteger users = new AtomicInteger(1);
+
+    private BlockStorage(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("block size must be strictly positive : " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    static BlockStorage create(MemoryFileSystem.Storage type, int blockSize) {
+        switch (type) {
+            case HEAP:
+                return new HeapStorage(blockSize);
+            case DIRECT:
+                return new DirectStorage(blockSize);
+            default:
+                throw new IllegalArgumentException("unsupported storage type : " + type);
+        }
+    }
+
+    static BlockStorage heap(int blockSize) {
+        return create(MemoryFileSystem.Storage.HEAP, blockSize);
+    }
+
+    final int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return new block, with all its content set to zero and referenced once
+     */
+    abstract Block allocate();
+
+    /**
+     * Releases a block, which must not be used by caller after this call
+     *
+     * @param block block to release
+     */
+    abstract void release(Block block);
+
+    /**
+     * Shares this storage with another filesystem, which must close it once done.
+     *
+     * @return this storage
+     * @throws ClosedFileSystemException when storage has been closed
+     */
+    final BlockStorage share() {
+        while (true) {
+            int count = users.get();
+            if (count <= 0) {
+                throw new ClosedFileSystemException();
+            }
+            if (users.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Releases all memory held by this storage once closed by all its users, blocks allocated by this storage must
+     * not be used after this call, except by operations that pinned storage before.
+     */
+    final void close() {
+        if (0 == users.decrementAndGet()) {
+            free();
+        }
+    }
+
+    /**
+     * Releases all memory held by this storage, once all operations that pinned storage are done
+     */
+    abstract void free();
+
+    /**
+     * @throws ClosedFileSystemException when storage has been closed
+     */
+    void checkOpen() {
+    }
+
+    /**
+     * Prevents memory from being released while an operation uses blocks, each call must be followed by a call to
+     * {@link #unpin()} once operation is done.
+     *
+     * @throws ClosedFileSystemException when storage has been closed
+     */
+    void pin() {
+    }
+
+    void unpin() {
+    }
+
+    /**
+     * @return size of memory held by this storage for its blocks, zero when memory is managed by GC
+     */
+    long getReservedMemory() {
+        return 0;
+    }
+
+    private static final class HeapStorage extends BlockStorage {
+
+        private HeapStorage(int blockSize) {
+            super(blockSize);
+        }
+
+        @Override
+        Block allocate() {
+            return new Block.HeapBlock(getBlockSize()).retain();
+        }
+
+        @Override
+        void release(Block block) {
+            // heap blocks are released by GC once no longer referenced
+        }
+
+        @Override
+        void free() {
+        }
+    }
+
+    /**
+     * Storage outside of heap, through direct byte buffers.
+     * <p>
+     * Direct buffers are costly to allocate and their memory is only released by GC, thus blocks are sliced from
+     * larger slabs, and released blocks are cleared and kept for reuse by next allocations. Slabs are dropped once
+     * all their blocks are released, except a single one kept for next allocations, their memory is then released
+     * by GC since reads in progress may still use it. Memory of all other slabs is released when storage is closed,
+     * once no operation pins storage.
+     */
+    private static final class DirectStorage extends BlockStorage {
+
+        private static final int SLAB_SIZE = 1024 * 1024;
+
+        // thread safety : synchronized on instance for r/w
+        // slabs in use, slabs with free blocks among them, and empty slab kept for next allocations if any
+        private final List<Slab> slabs;
+        private final Deque<Slab> available;
+        private Slab spare;
+        // empty slabs waiting for operations in progress to complete before being freed
+        private final List<Slab> retired;
+        private volatile boolean hasRetired;
+
+        // operations in progress, plus one held by storage until closed
+        private final AtomicInteger pins;
+
+        private volatile boolean closed;
+
+        private DirectStorage(int blockSize) {
+            super(blockSize);
+            this.slabs = new ArrayList<>();
+            this.available = new ArrayDeque<>();
+            this.spare = null;
+            this.retired = new ArrayList<>();
+            this.hasRetired = false;
+            this.pins = new AtomicInteger(1);
+            this.closed = false;
+        }
+
+        @Override
+        synchronized Block allocate() {
+            checkOpen();
+            Slab slab = available.peekFirst();
+            if (null == slab) {
+                slab = allocateSlab();
+            }
+            if (slab == spare) {
+                spare = null;
+            }
+            Block block = slab.free.pop();
+            if (slab.free.isEmpty()) {
+                available.removeFirst();
+            }
+            return block.retain();
+        }
+
+        private Slab allocateSlab() {
+            int blockSize = getBlockSize();
+            int blocksPerSlab = Math.max(1, SLAB_SIZE / blockSize);
+            Slab slab = new Slab(ByteBuffer.allocateDirect(blocksPerSlab * blockSize), blocksPerSlab);
+            for (int i = 0; i < blocksPerSlab; i++) {
+                slab.buffer.limit((i + 1) * blockSize).position(i * blockSize);
+                slab.free.push(new Block.DirectBlock(slab.buffer.slice(), slab));
+            }
+            slabs.add(slab);
+            available.addFirst(slab);
+            return slab;
+        }
+
+        @Override
+        synchronized void release(Block block) {
+            Slab slab = (Slab) ((Block.DirectBlock) block).getSlab();
+            if (closed || null == slab) {
+                // mapped blocks are not reused, since mapped buffers may still use them
+                return;
+            }
+            block.clear(0, block.size());
+            if (slab.free.isEmpty()) {
+                available.addLast(slab);
+            }
+            slab.free.push(block);
+            if (slab.free.size() < slab.capacity) {
+                return;
+            }
+            if (null == spare) {
+                spare = slab;
+            } else {
+                // reads in progress may still use it, thus it's only freed once they are done
+                available.remove(slab);
+                slabs.remove(slab);
+                retired.add(slab);
+                hasRetired = true;
+                freeRetired();
+            }
+        }
+
+        /**
+         * Frees retired slabs when no operation is in progress, operations that pin storage afterwards can't use
+         * them as their blocks have been released before.
+         */
+        private synchronized void freeRetired() {
+            if (1 != pins.get()) {
+                return;
+            }
+            for (Slab slab : retired) {
+                DirectMemory.free(slab.buffer);
+            }
+            retired.clear();
+            hasRetired = false;
+        }
+
+        @Override
+        void free() {
+            closed = true;
+            unpin();
+        }
+
+        @Override
+        void checkOpen() {
+            if (closed) {
+                throw new ClosedFileSystemException();
+            }
+        }
+
+        @Override
+        void pin() {
+            checkOpen();
+            while (true) {
+                int count = pins.get();
+                if (count <= 0) {
+                    throw new ClosedFileSystemException();
+                }
+                if (pins.compareAndSet(count, count + 1)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        void unpin() {
+            int count = pins.decrementAndGet();
+            if (0 == count) {
+                freeSlabs();
+            } else if (1 == count && hasRetired) {
+                freeRetired();
+            }
+        }
+
+        private synchronized void freeSlabs() {
+            available.clear();
+            spare = null;
+            for (Slab slab : slabs) {
+                DirectMemory.free(slab.buffer);
+            }
+            slabs.clear();
+            for (Slab slab : retired) {
+                DirectMemory.free(slab.buffer);
+            }
+            retired.clear();
+            hasRetired = false;
+        }
+
+        @Override
+        synchronized long getReservedMemory() {
+            long reserved = 0;
+            for (Slab slab : slabs) {
+                reserved += slab.buffer.capacity();
+            }
+            for (Slab slab : retired) {
+                reserved += slab.buffer.capacity();
+            }
+            return reserved;
+        }
+    }
+
+    private static final class Slab {
+
+        private final ByteBuffer buffer;
+        private final int capacity;
+        private final Deque<Block> free;
+
+        private Slab(ByteBuffer buffer, int capacity) {
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.free = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * There is no public API to release direct memory before buffer is garbage collected, thus we rely on JDK
+     * internals when available, and fallback to GC otherwise.
+     */
+    private static final class DirectMemory {
+
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                // java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                invokeCleaner = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        private static void free(ByteBuffer buffer) {
+            try {
+                if (null != INVOKE_CLEANER) {
+                    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                } else {
+                    // java 7 & 8
+                    Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                    cleanerMethod.setAccessible(true);
+                    Object cleaner = cleanerMethod.invoke(buffer);
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // memory will be released by GC
+            }
+        }
+    }
+}
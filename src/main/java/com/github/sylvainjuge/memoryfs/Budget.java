@@ -0,0 +1,90 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory budget shared by all file systems of a provider.
+ * <p>
+ * File systems reserve part of the budget when created, and borrow from the remaining budget once their reservation
+ * is used. When budget is exhausted, writers either fail immediately, or wait for other file systems to release
+ * space up to a maximum delay.
+ */
+final class Budget {
+
+    private final long capacity;
+    private final long maxWaitNanos;
+
+    // thread safety : synchronized on instance for r/w
+    private long committed;
+
+    /**
+     * @param capacity budget in bytes
+     * @param maxWait maximum delay writers wait for space to be released, zero to fail immediately
+     * @param unit delay unit
+     */
+    Budget(long capacity, long maxWait, TimeUnit unit) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("budget must be strictly positive : " + capacity);
+        }
+        if (maxWait < 0) {
+            throw new IllegalArgumentException("maximum wait can't be negative : " + maxWait);
+        }
+        this.capacity = capacity;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+    }
+
+    /**
+     * @param bytes number of bytes to acquire
+     * @return true if bytes have been acquired, false if there is not enough budget left
+     */
+    synchronized boolean tryAcquire(long bytes) {
+        if (capacity - committed < bytes) {
+            return false;
+        }
+        committed += bytes;
+        return true;
+    }
+
+    /**
+     * Acquires budget, waits for space to be released if allowed to.
+     *
+     * @param bytes number of bytes to acquire
+     * @throws NoSpaceLeftException if there is still not enough budget left after waiting
+     */
+    synchronized void acquire(long bytes) throws NoSpaceLeftException {
+        long deadline = System.nanoTime() + maxWaitNanos;
+        // waiting is useless when request can't be satisfied even if all other file systems are empty
+        while (capacity - committed < bytes && bytes <= capacity) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!tryAcquire(bytes)) {
+            throw new NoSpaceLeftException(bytes, capacity - committed);
+        }
+    }
+
+    synchronized void release(long bytes) {
+        committed -= bytes;
+        notifyAll();
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    synchronized long getCommitted() {
+        return committed;
+    }
+
+    synchronized long getAvailable() {
+        return capacity - committed;
+    }
+}
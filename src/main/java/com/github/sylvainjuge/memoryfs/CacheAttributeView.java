@@ -0,0 +1,37 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.nio.file.attribute.FileStoreAttributeView;
+
+/**
+ * Statistics of the cache of a filesystem mounted over a backing directory, see
+ * {@link MemoryFileSystem.Builder#cache(long)}.
+ * <p>
+ * Statistics are also available as file store attributes, such as {@code cache:hits}.
+ */
+public interface CacheAttributeView extends FileStoreAttributeView {
+
+    /**
+     * @return maximum size of cached content in bytes, zero for unbounded cache
+     */
+    long budget();
+
+    /**
+     * @return size of cached content in bytes, zero for unbounded cache
+     */
+    long size();
+
+    /**
+     * @return number of block accesses served from cache
+     */
+    long hits();
+
+    /**
+     * @return number of reads from backing filesystem, each read may read a few consecutive blocks
+     */
+    long misses();
+
+    /**
+     * @return number of files which cached content has been evicted
+     */
+    long evictions();
+}
@@ -0,0 +1,498 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Incremental checkpoints of a filesystem tree : first checkpoint of a chain contains all entries, and each following
+ * checkpoint (delta) only contains entries modified since previous one, thus checkpoint cost is proportional to
+ * modifications instead of filesystem size.
+ * <p>
+ * Entries are identified by their {@link Entry#getId() id}, a directory record contains its whole list of children,
+ * and a file record contains file size and its blocks modified since previous checkpoint. Deleted entries are not
+ * written, they are dropped once they are no longer listed by any directory.
+ * <p>
+ * Checkpoint format, all numbers are big-endian :
+ * <pre>
+ * header    : int magic, int version, int block size, long chain, long first, long last, long root id
+ * records   : one record per modified entry
+ *   file      : byte type (1), long id, long size, int block count, then for each block :
+ *               int block index, block content up to end of file
+ *   directory : byte type (2), long id, int child count, then for each child : long id, name
+ * trailer   : byte type (0), int magic
+ * name      : int length, UTF-8 bytes
+ * </pre>
+ * Checkpoints of a chain share a random chain identifier, and are numbered from zero, a checkpoint covers numbers
+ * from {@code first} to {@code last}, which are equal unless checkpoint is a merge of consecutive checkpoints.
+ * <p>
+ * Each file is written as it was when its record was written, but concurrent modifications of other entries
+ * while writing a checkpoint may be part of this checkpoint, or of the next one.
+ */
+final class Checkpoint {
+
+    static final int MAGIC = 0x4D454D43; // "MEMC"
+    static final int VERSION = 1;
+
+    private Checkpoint() {
+        // static utility
+    }
+
+    /**
+     * Entries modified since last checkpoint of a tree
+     */
+    static final class Tracker {
+
+        private final Set<Entry> dirty;
+
+        // nothing is tracked until first checkpoint, which contains all entries
+        private volatile boolean enabled;
+
+        // thread safety : guarded by tracker monitor
+        private long chain;
+        private long sequence;
+
+        Tracker() {
+            this.dirty = Collections.newSetFromMap(new ConcurrentHashMap<Entry, Boolean>());
+        }
+
+        boolean isEnabled() {
+            return enabled;
+        }
+
+        void add(Entry entry) {
+            dirty.add(entry);
+        }
+
+        /**
+         * @return entries modified since previous call, which are registered again on their next modification
+         */
+        private List<Entry> drain() {
+            List<Entry> result = new ArrayList<>();
+            for (Entry entry : dirty) {
+                dirty.remove(entry);
+                entry.clearDirty();
+                result.add(entry);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Writes next checkpoint of a tree, which contains all entries for first checkpoint, or after a failure since
+     * changes collected by failed checkpoint are lost.
+     *
+     * @param root root directory
+     * @param blockSize block size of filesystem
+     * @param channel target channel
+     * @throws IOException if channel fails to write
+     */
+    static void write(Entry root, int blockSize, WritableByteChannel channel) throws IOException {
+        Tracker tracker = root.getTracker();
+        synchronized (tracker) {
+            boolean full = !tracker.enabled;
+            if (full) {
+                tracker.chain = ThreadLocalRandom.current().nextLong();
+                tracker.sequence = 0;
+                tracker.enabled = true;
+            }
+            // entries modified from now on are part of next checkpoint
+            List<Entry> modified = tracker.drain();
+            boolean written = false;
+            try {
+                FileSystemImage.Writer out = new FileSystemImage.Writer(channel);
+                writeHeader(out, blockSize, tracker.chain, tracker.sequence, tracker.sequence, root.getId());
+                if (full) {
+                    writeTree(out, root, blockSize);
+                } else {
+                    for (Entry entry : modified) {
+                        if (!entry.isDeleted()) {
+                            writeEntry(out, entry, blockSize, false);
+                        }
+                    }
+                }
+                out.writeByte(FileSystemImage.END);
+                out.writeInt(MAGIC);
+                out.flush();
+                tracker.sequence++;
+                written = true;
+            } finally {
+                if (!written) {
+                    tracker.enabled = false;
+                }
+            }
+        }
+    }
+
+    private static void writeHeader(FileSystemImage.Writer out, int blockSize, long chain, long first, long last, long rootId) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(blockSize);
+        out.writeLong(chain);
+        out.writeLong(first);
+        out.writeLong(last);
+        out.writeLong(rootId);
+    }
+
+    private static void writeTree(FileSystemImage.Writer out, Entry entry, int blockSize) throws IOException {
+        List<Entry> children = writeEntry(out, entry, blockSize, true);
+        for (Entry child : children) {
+            writeTree(out, child, blockSize);
+        }
+    }
+
+    /**
+     * @param all true to write all file blocks, false to write only blocks modified since previous checkpoint
+     * @return children of directory, empty for files
+     */
+    private static List<Entry> writeEntry(FileSystemImage.Writer out, Entry entry, int blockSize, boolean all) throws IOException {
+        List<Entry> children = new ArrayList<>();
+        if (entry.isDirectory()) {
+            List<String> names = new ArrayList<>();
+            entry.listChildren(children, names);
+            out.writeByte(FileSystemImage.DIRECTORY);
+            out.writeLong(entry.getId());
+            out.writeInt(children.size());
+            for (int i = 0; i < children.size(); i++) {
+                out.writeLong(children.get(i).getId());
+                out.writeName(names.get(i));
+            }
+            return children;
+        }
+        BitSet blocks = new BitSet();
+        FileData data = entry.getData().copyModified(blocks);
+        try {
+            long size = data.size();
+            int count = blockCount(size, blockSize);
+            if (all) {
+                blocks.set(0, count);
+            }
+            blocks.clear(count, Math.max(count, blocks.length()));
+            out.writeByte(FileSystemImage.FILE);
+            out.writeLong(entry.getId());
+            out.writeLong(size);
+            out.writeInt(blocks.cardinality());
+            for (int i = blocks.nextSetBit(0); 0 <= i; i = blocks.nextSetBit(i + 1)) {
+                long position = (long) i * blockSize;
+                out.writeInt(i);
+                out.writeContent(data, position, Math.min(blockSize, size - position));
+            }
+        } finally {
+            data.release();
+        }
+        return children;
+    }
+
+    /**
+     * Restores a tree from a chain of checkpoints, restored entries are added to root directory.
+     *
+     * @param root root directory
+     * @param storage block storage of restored files
+     * @param space space of restored files
+     * @param chain consecutive checkpoints, starting with a full checkpoint
+     * @throws IOException if a checkpoint can't be read, is not valid, or chain is not consecutive
+     */
+    static void restore(Entry root, BlockStorage storage, Space space, List<? extends ReadableByteChannel> chain) throws IOException {
+        State state = new State(storage, space);
+        try {
+            for (ReadableByteChannel channel : chain) {
+                state.read(channel);
+            }
+            if (0 != state.first) {
+                throw new InvalidImageException("checkpoint chain must start with a full checkpoint");
+            }
+            Node rootNode = state.getDirectory(state.rootId);
+            for (int i = 0; i < rootNode.children.length; i++) {
+                state.create(root, rootNode.names[i], rootNode.children[i]);
+            }
+        } finally {
+            state.release();
+        }
+    }
+
+    /**
+     * Merges consecutive checkpoints into a single one, which is a full checkpoint if chain starts with a full
+     * checkpoint.
+     *
+     * @param chain consecutive checkpoints
+     * @param channel channel where merged checkpoint is written
+     * @throws IOException if a checkpoint can't be read, is not valid, or chain is not consecutive
+     */
+    static void merge(List<? extends ReadableByteChannel> chain, WritableByteChannel channel) throws IOException {
+        State state = new State(null, null);
+        for (ReadableByteChannel source : chain) {
+            state.read(source);
+        }
+        if (state.last < 0) {
+            throw new InvalidImageException("at least one checkpoint is required");
+        }
+        FileSystemImage.Writer out = new FileSystemImage.Writer(channel);
+        writeHeader(out, state.blockSize, state.chain, state.first, state.last, state.rootId);
+        if (0 == state.first) {
+            // entries that are not part of tree are dropped from a full checkpoint
+            state.writeTree(out, state.rootId);
+        } else {
+            for (Map.Entry<Long, Node> e : state.nodes.entrySet()) {
+                state.write(out, e.getKey(), e.getValue());
+            }
+        }
+        out.writeByte(FileSystemImage.END);
+        out.writeInt(MAGIC);
+        out.flush();
+    }
+
+    private static int blockCount(long size, int blockSize) {
+        long count = (size + blockSize - 1) / blockSize;
+        if (Integer.MAX_VALUE < count) {
+            throw new IllegalArgumentException("file too large : " + size);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Entry read from checkpoints, not yet part of filesystem tree
+     */
+    private static final class Node {
+
+        // directories only
+        private long[] children;
+        private String[] names;
+
+        // files only, content is stored in file data when restoring, and as a sparse set of blocks when merging
+        private long size;
+        private FileData data;
+        private SortedMap<Integer, byte[]> blocks;
+
+        private boolean created;
+
+        private boolean isDirectory() {
+            return null != children;
+        }
+    }
+
+    /**
+     * Entries read from consecutive checkpoints, by id
+     */
+    private static final class State {
+
+        // null when merging
+        private final BlockStorage storage;
+        private final Space space;
+
+        private final Map<Long, Node> nodes;
+        private int blockSize;
+        private long chain;
+        private long first;
+        private long last;
+        private long rootId;
+
+        private State(BlockStorage storage, Space space) {
+            this.storage = storage;
+            this.space = space;
+            this.nodes = new HashMap<>();
+            this.last = -1;
+        }
+
+        private void read(ReadableByteChannel channel) throws IOException {
+            FileSystemImage.Reader in = new FileSystemImage.Reader(channel);
+            if (MAGIC != in.readInt()) {
+                throw new InvalidImageException("not a checkpoint");
+            }
+            int version = in.readInt();
+            if (VERSION != version) {
+                throw new InvalidImageException("unsupported checkpoint version : " + version);
+            }
+            int checkpointBlockSize = in.readInt();
+            long checkpointChain = in.readLong();
+            long checkpointFirst = in.readLong();
+            long checkpointLast = in.readLong();
+            long checkpointRoot = in.readLong();
+            if (checkpointBlockSize <= 0 || checkpointFirst < 0 || checkpointLast < checkpointFirst) {
+                throw new InvalidImageException("invalid checkpoint header");
+            }
+            if (last < 0) {
+                blockSize = checkpointBlockSize;
+                chain = checkpointChain;
+                first = checkpointFirst;
+                rootId = checkpointRoot;
+            } else if (chain != checkpointChain || blockSize != checkpointBlockSize || rootId != checkpointRoot) {
+                throw new InvalidImageException("checkpoint is not part of chain");
+            } else if (last + 1 != checkpointFirst) {
+                throw new InvalidImageException("checkpoint " + checkpointFirst + " does not follow checkpoint " + last);
+            }
+            last = checkpointLast;
+            for (byte type = in.readByte(); FileSystemImage.END != type; type = in.readByte()) {
+                if (FileSystemImage.FILE == type) {
+                    readFile(in);
+                } else if (FileSystemImage.DIRECTORY == type) {
+                    readDirectory(in);
+                } else {
+                    throw new InvalidImageException("invalid record type : " + type);
+                }
+            }
+            if (MAGIC != in.readInt()) {
+                throw new InvalidImageException("invalid checkpoint trailer");
+            }
+        }
+
+        private void readDirectory(FileSystemImage.Reader in) throws IOException {
+            long id = in.readLong();
+            int count = in.readInt();
+            if (count < 0) {
+                throw new InvalidImageException("invalid directory child count : " + count);
+            }
+            Node node = getNode(id, true);
+            long[] children = new long[count];
+            String[] names = new String[count];
+            for (int i = 0; i < count; i++) {
+                children[i] = in.readLong();
+                names[i] = in.readName();
+            }
+            node.children = children;
+            node.names = names;
+        }
+
+        private void readFile(FileSystemImage.Reader in) throws IOException {
+            long id = in.readLong();
+            long size = in.readLong();
+            int count = in.readInt();
+            if (size < 0 || count < 0) {
+                throw new InvalidImageException("invalid file record : " + id);
+            }
+            Node node = getNode(id, false);
+            int blockCount = blockCount(size, blockSize);
+            if (null != storage) {
+                // file was truncated, bytes after size are zero
+                node.data.truncate(size);
+            } else {
+                node.blocks.tailMap(blockCount).clear();
+            }
+            node.size = size;
+            for (int i = 0; i < count; i++) {
+                int index = in.readInt();
+                if (index < 0 || blockCount <= index) {
+                    throw new InvalidImageException("invalid block index : " + index);
+                }
+                long position = (long) index * blockSize;
+                int length = (int) Math.min(blockSize, size - position);
+                if (null != storage) {
+                    in.readContent(node.data, position, length);
+                } else {
+                    byte[] block = new byte[length];
+                    in.readBytes(block);
+                    node.blocks.put(index, block);
+                }
+            }
+            if (null != storage && node.data.size() < size) {
+                // file has grown after its last written block, thus remaining content is zero
+                node.data.write(size - 1, ByteBuffer.wrap(new byte[1]));
+            }
+        }
+
+        private Node getNode(long id, boolean directory) throws IOException {
+            Node node = nodes.get(id);
+            if (null == node) {
+                node = new Node();
+                if (directory) {
+                    node.children = new long[0];
+                    node.names = new String[0];
+                } else if (null != storage) {
+                    node.data = FileData.newEmpty(storage, space);
+                } else {
+                    node.blocks = new TreeMap<>();
+                }
+                nodes.put(id, node);
+            } else if (directory != node.isDirectory()) {
+                throw new InvalidImageException("entry type modified : " + id);
+            }
+            return node;
+        }
+
+        private Node getDirectory(long id) throws IOException {
+            Node node = nodes.get(id);
+            if (null == node || !node.isDirectory()) {
+                throw new InvalidImageException("missing directory : " + id);
+            }
+            return node;
+        }
+
+        private void create(Entry parent, String name, long id) throws IOException {
+            Node node = nodes.get(id);
+            if (null == node || node.created) {
+                throw new InvalidImageException("missing or duplicate entry : " + id);
+            }
+            node.created = true;
+            if (!node.isDirectory()) {
+                Entry.newFile(parent, name, node.data);
+                return;
+            }
+            Entry directory = Entry.newDirectory(parent, name);
+            for (int i = 0; i < node.children.length; i++) {
+                create(directory, node.names[i], node.children[i]);
+            }
+        }
+
+        private void writeTree(FileSystemImage.Writer out, long id) throws IOException {
+            Node node = nodes.get(id);
+            if (null == node || node.created) {
+                throw new InvalidImageException("missing or duplicate entry : " + id);
+            }
+            node.created = true;
+            write(out, id, node);
+            if (node.isDirectory()) {
+                for (long child : node.children) {
+                    writeTree(out, child);
+                }
+            }
+        }
+
+        private void write(FileSystemImage.Writer out, long id, Node node) throws IOException {
+            if (node.isDirectory()) {
+                out.writeByte(FileSystemImage.DIRECTORY);
+                out.writeLong(id);
+                out.writeInt(node.children.length);
+                for (int i = 0; i < node.children.length; i++) {
+                    out.writeLong(node.children[i]);
+                    out.writeName(node.names[i]);
+                }
+                return;
+            }
+            out.writeByte(FileSystemImage.FILE);
+            out.writeLong(id);
+            out.writeLong(node.size);
+            out.writeInt(node.blocks.size());
+            for (Map.Entry<Integer, byte[]> block : node.blocks.entrySet()) {
+                int index = block.getKey();
+                // file may have grown after block was written, bytes after previous end of file are zero
+                int length = (int) Math.min(blockSize, node.size - (long) index * blockSize);
+                byte[] content = block.getValue();
+                out.writeInt(index);
+                out.writeBytes(content.length == length ? content : Arrays.copyOf(content, length));
+            }
+        }
+
+        /**
+         * Releases data of files that have not been added to tree
+         */
+        private void release() {
+            for (Node node : nodes.values()) {
+                if (null != node.data && !node.created) {
+                    node.data.release();
+                }
+            }
+        }
+    }
+}
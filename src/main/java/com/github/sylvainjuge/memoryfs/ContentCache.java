@@ -0,0 +1,130 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of content read from a backing filesystem, shared by all lower files of a filesystem, see {@link Overlay}.
+ * <p>
+ * When cache is bounded, cached content of least recently used files is evicted once cache size exceeds its budget.
+ * Cache also counts hits, misses and evictions, which are exposed through {@link CacheAttributeView}.
+ */
+final class ContentCache implements CacheAttributeView {
+
+    private final long budget; // zero for unbounded cache
+
+    // thread safety : synchronized on instance for r/w, files in access order with their cached size
+    private final LinkedHashMap<Content, Long> files;
+    private long size;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    /**
+     * Cached content of a file
+     */
+    interface Content {
+
+        /**
+         * @return size of cached content in bytes
+         */
+        long cachedSize();
+
+        /**
+         * Drops cached content, called while holding cache lock, thus must not wait for any other lock
+         */
+        void evict();
+    }
+
+    /**
+     * @param budget maximum size of cached content in bytes, zero for unbounded cache
+     */
+    ContentCache(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("cache budget can't be negative");
+        }
+        this.budget = budget;
+        this.files = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * Called when content is read from cache, which makes file the most recently used one
+     *
+     * @param content file content
+     */
+    void hit(Content content) {
+        hits.incrementAndGet();
+        if (0 < budget) {
+            synchronized (this) {
+                files.get(content);
+            }
+        }
+    }
+
+    /**
+     * Called once content has been read from backing filesystem and cached, which makes file the most recently used
+     * one, and evicts least recently used files when cache exceeds its budget.
+     *
+     * @param content file content
+     */
+    void miss(Content content) {
+        misses.incrementAndGet();
+        if (0 == budget) {
+            return;
+        }
+        synchronized (this) {
+            // cached size is read while holding cache lock, thus it is consistent with evictions
+            long cached = content.cachedSize();
+            Long previous = files.put(content, cached);
+            size += cached - (null == previous ? 0 : previous);
+            Iterator<Map.Entry<Content, Long>> it = files.entrySet().iterator();
+            while (budget < size && it.hasNext()) {
+                Map.Entry<Content, Long> eldest = it.next();
+                if (eldest.getKey() == content) {
+                    // most recently used file is kept, even when larger than budget
+                    break;
+                }
+                it.remove();
+                size -= eldest.getValue();
+                eldest.getKey().evict();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public String name() {
+        return "cache";
+    }
+
+    @Override
+    public long budget() {
+        return budget;
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public long hits() {
+        return hits.get();
+    }
+
+    @Override
+    public long misses() {
+        return misses.get();
+    }
+
+    @Override
+    public long evictions() {
+        return evictions.get();
+    }
+}
@@ -4,19 +4,108 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.Objects.requireNonNull;
 
-class Entry implements BasicFileAttributes {
-
+/**
+ * File system tree entry, either a file or a directory.
+ * <p>
+ * Thread safety :
+ * <ul>
+ * <li>lookups of children by name are lock-free, and retried when directory has been modified while scanning,
+ * which is detected with a sequence lock : modification count is odd while children are being modified</li>
+ * <li>modifications of a directory children are guarded by a lock owned by this directory, moves between two
+ * directories lock both of them in a global order</li>
+ * <li>moves of directories between two different directories are also serialized on a single lock per tree,
+ * which ensures that two concurrent moves can't create a cycle</li>
+ * </ul>
+ * <p>
+ * Directories may be loaded lazily : their children are provided by a {@link Loader} the first time they are
+ * accessed, which allows to mount large trees without reading them upfront.
+ * <p>
+ * Once checkpoints are enabled, entries whose children or file content are modified register themselves as dirty
+ * in a {@link Checkpoint.Tracker} shared by the whole tree.
+ * <p>
+ * When snapshots of the tree exist, each entry saves its state in latest snapshot before its first modification
+ * since this snapshot, see {@link Snapshot}.
+ */
+class Entry implements BasicFileAttributes, FileData.Listener {
+
+    // small directories are scanned, larger ones use a hash index of their children by name
+    static final int INDEX_THRESHOLD = 16;
+
+    // optimistic lookups retries before falling back to directory lock
+    private static final int OPTIMISTIC_LOOKUPS = 3;
+
+    // structure stamp : number of changes in progress in low bits, version in high bits
+    private static final int STRUCTURE_CHANGES = 0xFFFF;
+    private static final int STRUCTURE_VERSION = STRUCTURE_CHANGES + 1;
+
+    // unique identifiers, used to lock directories in a consistent order
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private final long id;
+    private final Object lock;
     private final boolean isDirectory;
     private final FileData data; // null for folders
 
-    private Entry parent; // null for root
-    private String name;
-    private Entry entries; // null for files
-    private Entry next;
-    private Entry previous;
+    // root only : serializes moves of directories between directories
+    private final Object renameLock;
+
+    private volatile Entry parent; // null for root
+    private volatile String name;
+    private volatile Entry entries; // null for files
+    private volatile Entry next;
+    private volatile Entry previous;
+    private volatile boolean deleted;
+
+    // directories only : children are linked in creation order, and indexed by name once directory is large
+    // modification count is incremented before and after any change to children, thus odd while children are being
+    // modified, and allows to validate lock-free lookups
+    private volatile int modCount;
+    private volatile Map<String, Entry> index;
+    private Entry last; // guarded by lock
+    private int childCount; // guarded by lock
+
+    // directories only : provides children on first access, null once they have been loaded
+    private volatile Loader loader;
+
+    // modified since last checkpoint, tracker is shared by all entries of a tree
+    private final Checkpoint.Tracker tracker;
+    private volatile boolean dirty;
+
+    // snapshots of tree, shared by all entries of a tree, and snapshot generation where state has been saved
+    private final Snapshot.History history;
+    private volatile Snapshot.Generation saved;
+
+    // shared by all entries of a tree, modified before and after any directory is moved or renamed, and on rollback,
+    // paths resolved with a given stable stamp remain valid as long as stamp is unchanged and entry itself is
+    // unchanged. Directories of different parents may be renamed concurrently, thus stamp holds a version in its high
+    // bits, incremented on both sides of each change, and the number of changes in progress in its low bits
+    private final AtomicInteger structure;
+
+    // tests only : called once a change of directory children or of tree structure has started, thus while
+    // modification count is odd or structure stamp is not stable, by the thread that modifies tree
+    static volatile Runnable changeHook;
+
+    /**
+     * Provides children of a lazily loaded directory
+     */
+    interface Loader {
+
+        /**
+         * Called once while holding directory lock, children must be created with
+         * {@link #newUnlinkedFile(Entry, String, FileData)} and {@link #newUnlinkedDirectory(Entry, String, Loader)}
+         *
+         * @param directory directory to load
+         * @return children of directory, in order
+         */
+        List<Entry> load(Entry directory);
+    }
 
     // As long as this constructor remains private, we can "trust" calling code to provide consistent set of parameters
     // thus, we don't check them (directory has null data, file has non-null data, root has null name)
@@ -24,47 +113,249 @@ class Entry implements BasicFileAttributes {
         if (null != name) {
             checkName(name);
         }
+        this.id = IDS.incrementAndGet();
+        this.lock = new Object();
+        this.renameLock = null == parent && isDirectory ? new Object() : null;
         this.parent = parent;
         this.isDirectory = isDirectory;
         this.name = name;
         this.data = data;
+        this.tracker = null == parent ? new Checkpoint.Tracker() : parent.tracker;
+        this.history = null == parent ? new Snapshot.History() : parent.history;
+        this.structure = null == parent ? new AtomicInteger() : parent.structure;
+        // created after latest snapshot, thus not part of it
+        this.saved = history.getLatest();
+        if (null != data) {
+            data.setListener(this);
+        }
     }
 
     private Entry addEntry(Entry child) {
-        Entry previous = null;
-        Entry current = entries;
-        while (current != null && !current.name.equals(child.name)) {
-            previous = current;
-            current = current.next;
+        ensureLoaded();
+        synchronized (lock) {
+            checkNotDeleted();
+            link(child);
         }
-        if (current != null) {
+        return child;
+    }
+
+    // caller must hold directory lock
+    private void link(Entry child) {
+        if (null != findChild(child.name)) {
             throw new ConflictException("name conflict : " + child.name);
         }
-        child.next = null;
-        if (entries == null) {
-            entries = child;
-            child.previous = null;
-        } else {
-            previous.next = child;
-            child.previous = previous;
+        preserve();
+        beginChange();
+        try {
+            markDirty();
+            child.markDirty();
+            child.parent = this;
+            child.next = null;
+            child.previous = last;
+            if (last == null) {
+                entries = child;
+            } else {
+                last.next = child;
+            }
+            last = child;
+            childCount++;
+            Map<String, Entry> childIndex = index;
+            if (null != childIndex) {
+                childIndex.put(child.name, child);
+            } else if (INDEX_THRESHOLD < childCount) {
+                childIndex = new ConcurrentHashMap<>();
+                for (Entry e = entries; e != null; e = e.next) {
+                    childIndex.put(e.name, e);
+                }
+                index = childIndex;
+            }
+        } finally {
+            endChange();
+        }
+    }
+
+    // caller must hold directory lock
+    private void beginChange() {
+        modCount++;
+        runChangeHook();
+    }
+
+    // caller must hold directory lock
+    private void endChange() {
+        modCount++;
+    }
+
+    private void beginStructureChange() {
+        structure.addAndGet(STRUCTURE_VERSION + 1);
+        runChangeHook();
+    }
+
+    private void endStructureChange() {
+        structure.addAndGet(STRUCTURE_VERSION - 1);
+    }
+
+    private static void runChangeHook() {
+        Runnable hook = changeHook;
+        if (null != hook) {
+            hook.run();
         }
-        child.parent = this;
-        return child;
     }
 
     static Entry newRoot() {
         return new Entry(null, true, null, null);
     }
 
+    static Entry newRoot(Loader loader) {
+        Entry root = newRoot();
+        root.loader = loader;
+        return root;
+    }
+
+    /**
+     * @param parent parent directory, which is being loaded
+     * @param name file name
+     * @param data file data
+     * @return new file, which is not yet a child of parent
+     */
+    static Entry newUnlinkedFile(Entry parent, String name, FileData data) {
+        return new Entry(parent, false, name, data);
+    }
+
+    /**
+     * @param parent parent directory, which is being loaded
+     * @param name directory name
+     * @param loader loader of directory children
+     * @return new directory, which is not yet a child of parent
+     */
+    static Entry newUnlinkedDirectory(Entry parent, String name, Loader loader) {
+        Entry directory = new Entry(parent, true, name, null);
+        directory.loader = loader;
+        return directory;
+    }
+
+    /**
+     * Loads children of this directory if not already done, children are linked all at once, thus lock-free
+     * lookups never see a partially loaded directory
+     */
+    private void ensureLoaded() {
+        if (null == loader) {
+            return;
+        }
+        synchronized (lock) {
+            Loader l = loader;
+            if (null == l) {
+                return;
+            }
+            // children of a deleted directory are never accessed
+            if (!deleted) {
+                for (Entry child : l.load(this)) {
+                    link(child);
+                }
+            }
+            loader = null;
+        }
+    }
+
+    /**
+     * @return false while children of this lazily loaded directory have not been loaded
+     */
+    boolean isLoaded() {
+        return null == loader;
+    }
+
     static Entry newDirectory(Entry parent, String name) {
         return parent.addEntry(new Entry(parent, true, name, null));
     }
 
+    /**
+     * @param parent parent directory
+     * @param name directory name
+     * @return existing directory with this name, or a new directory if there is no such entry
+     * @throws ConflictException if there is an existing file with this name
+     */
+    static Entry getOrCreateDirectory(Entry parent, String name) {
+        Entry entry = parent.getChild(name);
+        if (null == entry) {
+            synchronized (parent.lock) {
+                entry = parent.findChild(name);
+                if (null == entry) {
+                    entry = new Entry(parent, true, name, null);
+                    parent.checkNotDeleted();
+                    parent.link(entry);
+                }
+            }
+        }
+        if (!entry.isDirectory) {
+            throw new ConflictException("name conflict : " + name + " is not a directory");
+        }
+        return entry;
+    }
+
     static Entry newFile(Entry parent, String name) {
-        return parent.addEntry(new Entry(parent, false, name, FileData.newEmpty()));
+        return newFile(parent, name, FileData.newEmpty());
+    }
+
+    static Entry newFile(Entry parent, String name, FileData data) {
+        return parent.addEntry(new Entry(parent, false, name, data));
     }
 
     Entry getChild(String name) {
+        ensureLoaded();
+        for (int i = 0; i < OPTIMISTIC_LOOKUPS; i++) {
+            int stamp = modCount;
+            if (!isEven(stamp)) {
+                Thread.yield();
+                continue;
+            }
+            Entry child = findChild(name);
+            // lock-free scan may miss entries, or follow siblings of an entry concurrently moved to another
+            // directory, thus result is only valid if directory has not been modified while scanning
+            if (isUnmodifiedSince(stamp) && (null == child || this == child.parent)) {
+                return null == child || child.deleted ? null : child;
+            }
+        }
+        synchronized (lock) {
+            Entry child = findChild(name);
+            // entry being deleted remains linked until its parent lock is acquired
+            return null == child || child.deleted ? null : child;
+        }
+    }
+
+    /**
+     * @return modification count of children of this directory, which are loaded first if not already done, odd
+     * while children are being modified
+     */
+    int getModCount() {
+        ensureLoaded();
+        return modCount;
+    }
+
+    /**
+     * @param modCount modification count, read before a lock-free lookup of children
+     * @return true if children were not being modified when modification count was read, and have not been modified
+     * since, thus lookup result is consistent
+     */
+    boolean isUnmodifiedSince(int modCount) {
+        return isEven(modCount) && modCount == this.modCount;
+    }
+
+    private static boolean isEven(int modCount) {
+        return 0 == (modCount & 1);
+    }
+
+    /**
+     * @param stamp structure stamp
+     * @return true if stamp was read while no directory was being moved or renamed
+     */
+    static boolean isStable(int stamp) {
+        return 0 == (stamp & STRUCTURE_CHANGES);
+    }
+
+    private Entry findChild(String name) {
+        Map<String, Entry> childIndex = index;
+        if (null != childIndex) {
+            return childIndex.get(name);
+        }
         Entry current = entries;
         while (current != null && !current.name.equals(name)) {
             current = current.next;
@@ -76,15 +367,188 @@ class Entry implements BasicFileAttributes {
         return data;
     }
 
+    /**
+     * @return identifier of this entry, unique within this process
+     */
+    long getId() {
+        return id;
+    }
+
+    /**
+     * @return identifier of last created entry, entries created later have greater identifiers
+     */
+    static long lastId() {
+        return IDS.get();
+    }
+
+    Checkpoint.Tracker getTracker() {
+        return tracker;
+    }
+
+    /**
+     * Reads children of this directory and their names atomically
+     *
+     * @param children list where children are added, in order
+     * @param names list where children names are added
+     */
+    void listChildren(List<Entry> children, List<String> names) {
+        ensureLoaded();
+        synchronized (lock) {
+            for (Entry e = entries; e != null; e = e.next) {
+                children.add(e);
+                names.add(e.name);
+            }
+        }
+    }
+
+    @Override
+    public void modifying(FileData data) {
+        preserve();
+    }
+
+    @Override
+    public void modified(FileData data) {
+        markDirty();
+    }
+
+    Snapshot.History getHistory() {
+        return history;
+    }
+
+    /**
+     * Saves state of this entry in latest snapshot, unless already saved since this snapshot. Caller must hold entry
+     * lock, or file lock for files, thus state is saved before any modification made after snapshot.
+     */
+    private void preserve() {
+        Snapshot.Generation latest = history.getLatest();
+        // children being loaded are part of directory state, loading is not a modification
+        if (null == latest || saved == latest || null != loader) {
+            return;
+        }
+        if (isDirectory) {
+            List<Entry> children = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (Entry e = entries; e != null; e = e.next) {
+                children.add(e);
+                names.add(e.name);
+            }
+            latest.save(this, new Snapshot.State(children.toArray(new Entry[children.size()]), names.toArray(new String[names.size()]), null));
+        } else {
+            latest.save(this, new Snapshot.State(null, null, FileData.copy(data)));
+        }
+        saved = latest;
+    }
+
+    /**
+     * Rollback only : removes all children of this directory, which must then be linked again with
+     * {@link #linkAll(Entry[], String[])}, while filesystem is not modified concurrently.
+     */
+    void unlinkAll() {
+        beginStructureChange();
+        try {
+            synchronized (lock) {
+                while (null != entries) {
+                    unlink(entries);
+                }
+            }
+        } finally {
+            endStructureChange();
+        }
+    }
+
+    /**
+     * Rollback only : restores deleted directory and links children with their names
+     *
+     * @param children children, not linked to any directory
+     * @param names children names
+     */
+    void linkAll(Entry[] children, String[] names) {
+        beginStructureChange();
+        try {
+            synchronized (lock) {
+                deleted = false;
+                for (int i = 0; i < children.length; i++) {
+                    children[i].name = names[i];
+                    link(children[i]);
+                }
+            }
+        } finally {
+            endStructureChange();
+        }
+    }
+
+    /**
+     * Rollback only : restores deleted file and its content
+     *
+     * @param content file content
+     * @throws NoSpaceLeftException when there is not enough space for file content
+     */
+    void restoreData(FileData content) throws NoSpaceLeftException {
+        data.restore(content);
+        deleted = false;
+    }
+
+    /**
+     * Rollback only : deletes an entry that has already been unlinked from its parent, without deleting children
+     * of directories, which are discarded or linked elsewhere by caller
+     */
+    void discard() {
+        if (!markDeleted()) {
+            return;
+        }
+        if (isDirectory) {
+            synchronized (lock) {
+                beginChange();
+                entries = null;
+                last = null;
+                childCount = 0;
+                index = null;
+                endChange();
+            }
+        } else {
+            data.release();
+        }
+    }
+
+    private void markDirty() {
+        if (!dirty && tracker.isEnabled()) {
+            dirty = true;
+            tracker.add(this);
+        }
+    }
+
+    /**
+     * Called once entry has been removed from dirty entries of tracker, thus next modification registers it again
+     */
+    void clearDirty() {
+        dirty = false;
+    }
+
+    /**
+     * @return entry name, null for root
+     */
+    String getName() {
+        return name;
+    }
+
     Entry getParent() {
         return parent;
     }
 
+    /**
+     * @return structure stamp of tree, which changes when any directory of tree is moved or renamed, and which is
+     * not stable while a directory is being moved or renamed, see {@link #isStable(int)}
+     */
+    int getStructureStamp() {
+        return structure.get();
+    }
+
     Entry getNext() {
         return next;
     }
 
     Entry getEntries() {
+        ensureLoaded();
         return entries;
     }
 
@@ -96,11 +560,8 @@ class Entry implements BasicFileAttributes {
         if (null == newName || newName.isEmpty()) {
             throw new InvalidNameException(newName);
         }
-        Entry existingEntry = parent.getChild(newName);
-        if( null != existingEntry){
-            throw new ConflictException("name conflict : " + newName);
-        }
-        this.name = checkName(newName);
+        checkName(newName);
+        moveTo(null, newName);
     }
 
     public void move(Entry newParent){
@@ -111,41 +572,233 @@ class Entry implements BasicFileAttributes {
         if (!newParent.isDirectory) {
             throw new IllegalArgumentException("directory expected");
         }
-        // ensure that we don't move within itself
-        Entry e = newParent;
-        while (e != null && e != this) {
-            e = e.parent;
+        if( parent != newParent) {
+            moveTo(newParent, name);
+        }
+    }
+
+    /**
+     * Moves and renames this entry in a single atomic operation
+     *
+     * @param newParent new parent directory, null to keep current parent
+     * @param newName new entry name
+     */
+    void moveTo(Entry newParent, String newName) {
+        if (null == parent) {
+            throw new InvalidRequestException("can't move root");
         }
-        if (e == this) {
-            throw new IllegalArgumentException("can't move within itself");
+        if (null != newParent && !newParent.isDirectory) {
+            throw new IllegalArgumentException("directory expected");
         }
+        checkName(newName);
+        if (isDirectory && null != newParent && parent != newParent) {
+            // tree structure is modified, which requires to check that we don't move within itself
+            synchronized (newParent.getRoot().renameLock) {
+                Entry e = newParent;
+                while (e != null && e != this) {
+                    e = e.parent;
+                }
+                if (e == this) {
+                    throw new IllegalArgumentException("can't move within itself");
+                }
+                moveLocked(newParent, newName);
+            }
+        } else {
+            moveLocked(newParent, newName);
+        }
+    }
 
-        if( parent != newParent) {
-            delete();
-            newParent.addEntry(this);
+    private void moveLocked(Entry newParent, String newName) {
+        if (null != newParent) {
+            newParent.ensureLoaded();
+        }
+        while (true) {
+            Entry oldParent = parent;
+            Entry target = null == newParent ? oldParent : newParent;
+            Entry first = oldParent.id < target.id ? oldParent : target;
+            Entry second = first == oldParent ? target : oldParent;
+            synchronized (first.lock) {
+                synchronized (second.lock) {
+                    if (oldParent != parent) {
+                        // concurrently moved to another directory
+                        continue;
+                    }
+                    if (deleted) {
+                        throw new InvalidRequestException("entry has been deleted : " + name);
+                    }
+                    // children of a deleted directory are being deleted, and can't be moved out
+                    oldParent.checkNotDeleted();
+                    target.checkNotDeleted();
+                    if (null != target.findChild(newName)) {
+                        throw new ConflictException("name conflict : " + newName);
+                    }
+                    if (isDirectory) {
+                        // paths of all entries within directory are modified
+                        beginStructureChange();
+                    }
+                    try {
+                        if (oldParent == target) {
+                            renameLocked(newName);
+                        } else {
+                            oldParent.unlink(this);
+                            name = newName;
+                            target.link(this);
+                        }
+                    } finally {
+                        if (isDirectory) {
+                            endStructureChange();
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    // caller must hold parent lock
+    private void renameLocked(String newName) {
+        parent.preserve();
+        parent.beginChange();
+        try {
+            parent.markDirty();
+            String oldName = name;
+            Map<String, Entry> parentIndex = parent.index;
+            if (null != parentIndex) {
+                // new name is visible before old name is removed, thus lookups always find this entry
+                parentIndex.put(newName, this);
+                name = newName;
+                parentIndex.remove(oldName);
+            } else {
+                name = newName;
+            }
+        } finally {
+            parent.endChange();
         }
     }
 
-    public void delete() {
+    /**
+     * Deletes this entry and releases data of all deleted files
+     *
+     * @return false if entry was already deleted
+     */
+    public boolean delete() {
         if (null == parent) {
             throw new InvalidRequestException("deleting fs root is not allowed");
         }
-        if (previous == null) {
-            // remove 1st file in folder
-            parent.entries = next;
-            if (next != null) {
-                next.previous = null;
+        // directory does not accept any new child once deleted
+        if (!markDeleted()) {
+            return false;
+        }
+        while (true) {
+            Entry p = parent;
+            synchronized (p.lock) {
+                if (p == parent) {
+                    p.unlink(this);
+                    break;
+                }
+            }
+        }
+        release();
+        return true;
+    }
+
+    boolean isDeleted() {
+        return deleted;
+    }
+
+    private boolean markDeleted() {
+        synchronized (lock) {
+            if (deleted) {
+                return false;
+            }
+            preserve();
+            deleted = true;
+            return true;
+        }
+    }
+
+    /**
+     * Releases this deleted entry, and deletes all its children if any
+     */
+    private void release() {
+        if (isDirectory) {
+            // directory is deleted, thus children are neither added nor moved out once listed
+            List<Entry> children = new ArrayList<>();
+            synchronized (lock) {
+                for (Entry e = entries; e != null; e = e.next) {
+                    children.add(e);
+                }
+            }
+            for (Entry e : children) {
+                if (e.markDeleted()) {
+                    e.release();
+                }
             }
         } else {
-            previous.next = next;
+            data.release();
         }
     }
 
-    public Entry copy(Entry targetParent, String targetName) {
-        FileData dataCopy = isDirectory ? null : FileData.copy(data);
-        Entry entry = new Entry(parent, isDirectory, targetName, dataCopy);
-        targetParent.addEntry(entry);
-        return entry;
+    // caller must hold directory lock, removed entry keeps its next sibling, thus in-flight iterations continue
+    private void unlink(Entry child) {
+        preserve();
+        beginChange();
+        try {
+            markDirty();
+            if (child.previous == null) {
+                // remove 1st file in folder
+                entries = child.next;
+            } else {
+                child.previous.next = child.next;
+            }
+            if (child.next == null) {
+                // remove last file in folder
+                last = child.previous;
+            } else {
+                child.next.previous = child.previous;
+            }
+            childCount--;
+            Map<String, Entry> childIndex = index;
+            if (null != childIndex) {
+                childIndex.remove(child.name);
+                // index is dropped once directory is small again, half threshold avoids rebuilding it too often
+                if (childCount < INDEX_THRESHOLD / 2) {
+                    index = null;
+                }
+            }
+        } finally {
+            endChange();
+        }
+    }
+
+    private void checkNotDeleted() {
+        if (deleted) {
+            throw new InvalidRequestException("directory has been deleted : " + name);
+        }
+    }
+
+    private Entry getRoot() {
+        Entry e = this;
+        while (null != e.parent) {
+            e = e.parent;
+        }
+        return e;
+    }
+
+    /**
+     * @throws NoSpaceLeftException when there is not enough space to copy file data
+     */
+    public Entry copy(Entry targetParent, String targetName) throws NoSpaceLeftException {
+        FileData dataCopy = isDirectory ? null : data.newCopy();
+        try {
+            return targetParent.addEntry(new Entry(targetParent, isDirectory, targetName, dataCopy));
+        } catch (RuntimeException e) {
+            // copy space is released
+            if (null != dataCopy) {
+                dataCopy.release();
+            }
+            throw e;
+        }
     }
 
     @Override
@@ -1,49 +1,1060 @@
 package com.github.sylvainjuge.memoryfs;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
+/**
+ * File content, stored as a table of fixed-size blocks allocated from a {@link BlockStorage}.
+ * <p>
+ * Growing a file only allocates new blocks at the end of the table, existing data is never moved nor copied,
+ * and file size is not limited by maximum array size.
+ * <p>
+ * File copies share their block table until one of them is modified (copy-on-write), then only the block
+ * table is copied, and blocks are copied one at a time when they are written to.
+ * <p>
+ * Concurrent access : writers are serialized by a per-file lock, while readers do not lock and read optimistically.
+ * Each write increments file version before and after modification, and readers retry when version has changed
+ * while reading, thus readers never block each other and never return torn data. Readers only fall back to
+ * writer lock when a write is in progress for too long.
+ * <p>
+ * File size is charged against a {@link Space} before file grows, thus a write that would exceed capacity fails
+ * without modifying file.
+ * <p>
+ * Modified blocks are tracked for incremental checkpoints, see {@link #copyModified(BitSet)}. Blocks of a file mapped
+ * by a writable buffer may be modified without going through this file, thus they are always reported as modified.
+ */
 final class FileData {
 
-    private final InternalOutputStream stream;
+    static final int DEFAULT_BLOCK_SIZE = 4096;
 
-    private FileData(InternalOutputStream stream) {
-        this.stream = stream;
+    // number of optimistic read attempts before falling back to writer lock
+    private static final int OPTIMISTIC_READS = 3;
+
+    private static final AtomicLongFieldUpdater<FileData> VERSION = AtomicLongFieldUpdater.newUpdater(FileData.class, "version");
+
+    private final BlockStorage storage;
+    private final Space space;
+    private final int blockSize;
+
+    // thread safety : modified only while holding lock and within beginWrite/endWrite
+    // version is odd while a write is in progress
+    private final Object lock;
+    private volatile long version;
+    private volatile Table table;
+
+    // blocks modified since last call to copyModified, null until first call since all blocks are modified
+    // reported is set once listener has been notified of a modification since last call
+    // thread safety : guarded by lock
+    private BitSet modified;
+    private boolean reported;
+    private volatile Listener listener;
+
+    // set once file blocks have been mapped by a writable buffer, thus must be copied when file is shared
+    // thread safety : guarded by lock
+    private boolean writableMapped;
+
+    /**
+     * Notified of file modifications
+     */
+    interface Listener {
+
+        /**
+         * Called while holding file lock, before each modification
+         *
+         * @param data file about to be modified
+         */
+        void modifying(FileData data);
+
+        /**
+         * Called while holding file lock, at most once between two calls to {@link #copyModified(BitSet)}
+         *
+         * @param data modified file
+         */
+        void modified(FileData data);
     }
 
-    public void truncate(int newSize) {
-        stream.truncate(newSize);
+    private FileData(BlockStorage storage, Space space, Table table) {
+        this.storage = storage;
+        this.space = space;
+        this.blockSize = storage.getBlockSize();
+        this.lock = new Object();
+        this.version = 0;
+        this.table = table;
+    }
+
+    public void truncate(long newSize) {
+        if (newSize < 0) {
+            throw new IllegalArgumentException("can't truncate to negative size");
+        }
+        storage.pin();
+        try {
+            synchronized (lock) {
+                if (table.size <= newSize) {
+                    return;
+                }
+                beginWrite();
+                try {
+                    Table t = mutableTable();
+                    int keptBlocks = blockCount(newSize);
+                    int usedBlocks = blockCount(t.size);
+                    for (int i = keptBlocks; i < usedBlocks; i++) {
+                        releaseBlock(t.blocks[i]);
+                        t.blocks[i] = null;
+                    }
+                    int lastOffset = blockOffset(newSize);
+                    if (0 < lastOffset) {
+                        writableBlock(keptBlocks - 1).clear(lastOffset, blockSize);
+                    }
+                    space.free(t.size - newSize);
+                    t.size = newSize;
+                    markModified(-1);
+                } finally {
+                    endWrite();
+                }
+            }
+        } finally {
+            storage.unpin();
+        }
+    }
+
+    /**
+     * Releases all blocks of this file, which is then empty.
+     */
+    void release() {
+        synchronized (lock) {
+            beginWrite();
+            try {
+                Table released = table;
+                table = new Table(1);
+                space.free(released.size);
+                released.release(storage);
+            } finally {
+                endWrite();
+            }
+        }
     }
 
     public InputStream asInputStream() {
-        return new ByteArrayInputStream(stream.internalBuffer(), 0, stream.size());
+        return new BlockInputStream(size());
     }
 
     public OutputStream asOutputStream() {
-        return stream;
+        return new BlockOutputStream();
     }
 
     public long size() {
-        return stream.size();
+        return table.size;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Copies file data as {@link #copy(FileData)} does, and collects blocks modified since previous call, both
+     * atomically, thus any later modification is reported by next call.
+     *
+     * @param blocks set where indexes of blocks modified since previous call are added, all blocks are added on
+     * first call, and on each call once file has been mapped by a writable buffer
+     * @return copy of file data
+     */
+    FileData copyModified(BitSet blocks) {
+        Table t;
+        synchronized (lock) {
+            t = shareTable();
+            if (null == modified || writableMapped) {
+                blocks.set(0, blockCount(t.size));
+                modified = new BitSet();
+            } else {
+                blocks.or(modified);
+                modified.clear();
+            }
+            reported = false;
+            if (writableMapped) {
+                // mapped buffers may modify file from now on, thus file is already modified for next call
+                markModified(-1);
+            }
+        }
+        return new FileData(storage, new Space(0, t.size), t);
+    }
+
+    /**
+     * @param other other file data
+     * @return true if both files share the same content through copy-on-write
+     */
+    boolean sharesContentWith(FileData other) {
+        return table == other.table;
+    }
+
+    /**
+     * Appends data at the end of file, allocating new blocks when required.
+     *
+     * @param src source array
+     * @param offset offset in source array
+     * @param length number of bytes to append
+     * @throws NoSpaceLeftException when file can't grow
+     */
+    void append(byte[] src, int offset, int length) throws NoSpaceLeftException {
+        if (length <= 0) {
+            return;
+        }
+        storage.pin();
+        try {
+            synchronized (lock) {
+                beginWrite();
+                try {
+                    grow(table.size + length);
+                    Table t = mutableTable();
+                    while (0 < length) {
+                        int blockIndex = blockIndex(t.size);
+                        int blockOffset = blockOffset(t.size);
+                        Block block = 0 == blockOffset ? allocateBlock(blockIndex) : writableBlock(blockIndex);
+                        int count = Math.min(length, blockSize - blockOffset);
+                        block.put(blockOffset, src, offset, count);
+                        offset += count;
+                        length -= count;
+                        t.size += count;
+                    }
+                } finally {
+                    endWrite();
+                }
+            }
+        } finally {
+            storage.unpin();
+        }
+    }
+
+    /**
+     * Appends data at the end of file, end of file is read and written atomically, thus concurrent appends never
+     * overwrite each other.
+     *
+     * @param src source buffer, its position is advanced by the number of bytes written
+     * @return file size after write
+     * @throws NoSpaceLeftException when file can't grow
+     */
+    long append(ByteBuffer src) throws NoSpaceLeftException {
+        storage.pin();
+        try {
+            synchronized (lock) {
+                beginWrite();
+                try {
+                    long position = table.size;
+                    return position + writeBlocks(position, src, null);
+                } finally {
+                    endWrite();
+                }
+            }
+        } finally {
+            storage.unpin();
+        }
+    }
+
+    /**
+     * Reads data from file at a given position, without any intermediate copy
+     *
+     * @param position position in file
+     * @param dst destination buffer, its position is advanced by the number of bytes read
+     * @return number of bytes read, {@code -1} if position is at or after end of file
+     */
+    int read(long position, ByteBuffer dst) {
+        return read(position, dst, null);
+    }
+
+    /**
+     * Reads data from file at a given position, through a cursor reused across reads
+     *
+     * @param position position in file
+     * @param dst destination buffer, its position is advanced by the number of bytes read
+     * @param cursor cursor of caller, null if none
+     * @return number of bytes read, {@code -1} if position is at or after end of file
+     */
+    int read(long position, ByteBuffer dst, Block.Cursor cursor) {
+        storage.pin();
+        try {
+            int start = dst.position();
+            for (int attempt = 0; attempt < OPTIMISTIC_READS && Fences.isAvailable(); attempt++) {
+                long stamp = version;
+                if (isWriting(stamp)) {
+                    Thread.yield();
+                    continue;
+                }
+                try {
+                    int read = readBlocks(table, position, dst, cursor);
+                    if (validate(stamp)) {
+                        return read;
+                    }
+                } catch (RuntimeException e) {
+                    // data modified while reading, thus might have been inconsistent
+                    if (validate(stamp)) {
+                        throw e;
+                    }
+                }
+                dst.position(start);
+            }
+            synchronized (lock) {
+                return readBlocks(table, position, dst, cursor);
+            }
+        } finally {
+            storage.unpin();
+        }
+    }
+
+    private int readBlocks(Table t, long position, ByteBuffer dst, Block.Cursor cursor) {
+        long size = t.size;
+        if (size <= position) {
+            return -1;
+        }
+        Block[] blocks = t.blocks;
+        int toRead = (int) Math.min(dst.remaining(), size - position);
+        int remaining = toRead;
+        while (0 < remaining) {
+            int blockOffset = blockOffset(position);
+            int count = Math.min(remaining, blockSize - blockOffset);
+            blocks[blockIndex(position)].get(blockOffset, dst, count, cursor);
+            position += count;
+            remaining -= count;
+        }
+        return toRead;
+    }
+
+    /**
+     * Writes data to file at a given position, file grows when writing past its end, and any gap between
+     * previous end of file and position is filled with zeros.
+     *
+     * @param position position in file
+     * @param src source buffer, its position is advanced by the number of bytes written
+     * @return number of bytes written
+     * @throws NoSpaceLeftException when file can't grow
+     */
+    int write(long position, ByteBuffer src) throws NoSpaceLeftException {
+        return write(position, src, null);
+    }
+
+    /**
+     * Writes data to file at a given position, through a cursor reused across writes
+     *
+     * @param position position in file
+     * @param src source buffer, its position is advanced by the number of bytes written
+     * @param cursor cursor of caller, null if none
+     * @return number of bytes written
+     * @throws NoSpaceLeftException when file can't grow
+     */
+    int write(long position, ByteBuffer src, Block.Cursor cursor) throws NoSpaceLeftException {
+        if (position < 0) {
+            throw new IllegalArgumentException("negative position : " + position);
+        }
+        storage.pin();
+        try {
+            synchronized (lock) {
+                beginWrite();
+                try {
+                    return writeBlocks(position, src, cursor);
+                } finally {
+                    endWrite();
+                }
+            }
+        } finally {
+            storage.unpin();
+        }
+    }
+
+    private int writeBlocks(long position, ByteBuffer src, Block.Cursor cursor) throws NoSpaceLeftException {
+        int length = src.remaining();
+        if (0 == length) {
+            return 0;
+        }
+        grow(position + length);
+        Table t = mutableTable();
+        int allocated = blockCount(t.size);
+        int remaining = length;
+        while (0 < remaining) {
+            int blockIndex = blockIndex(position);
+            int blockOffset = blockOffset(position);
+            // gap blocks are allocated empty
+            while (allocated < blockIndex) {
+                allocateBlock(allocated++);
+            }
+            Block block;
+            if (blockIndex < allocated) {
+                block = writableBlock(blockIndex);
+            } else {
+                block = allocateBlock(blockIndex);
+                allocated++;
+            }
+            int count = Math.min(remaining, blockSize - blockOffset);
+            block.put(blockOffset, src, count, cursor);
+            position += count;
+            remaining -= count;
+            if (t.size < position) {
+                t.size = position;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Transfers file content to a channel, block content is written directly to target without intermediate copy.
+     * <p>
+     * File content is transferred as it was when transfer started, since concurrent writes are made to copies of
+     * the transferred blocks.
+     *
+     * @param position position in file
+     * @param count maximum number of bytes to transfer
+     * @param target target channel
+     * @return number of bytes transferred, which may be less than requested if target does not accept more bytes
+     * @throws IOException if target channel fails to write
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        storage.pin();
+        try {
+            Table t = snapshot();
+            try {
+                long toTransfer = Math.min(count, t.size - position);
+                long transferred = 0;
+                while (transferred < toTransfer) {
+                    int blockOffset = blockOffset(position);
+                    int length = (int) Math.min(toTransfer - transferred, blockSize - blockOffset);
+                    ByteBuffer src = t.blocks[blockIndex(position)].buffer(blockOffset, length).asReadOnlyBuffer();
+                    int written = target.write(src);
+                    transferred += written;
+                    position += written;
+                    if (written < length) {
+                        // target does not accept more bytes for now
+                        break;
+                    }
+                }
+                return transferred;
+            } finally {
+                t.release(storage);
+            }
+        } finally {
+            storage.unpin();
+        }
+    }
+
+    /**
+     * Transfers content from a channel to file, channel content is read directly into file blocks.
+     *
+     * @param src source channel
+     * @param position position in file, must not be greater than file size
+     * @param count maximum number of bytes to transfer
+     * @return number of bytes transferred, which may be less than requested if source has less bytes available
+     * @throws IOException if source channel fails to read
+     */
+    long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        storage.pin();
+        try {
+            synchronized (lock) {
+                if (table.size < position) {
+                    throw new IllegalArgumentException("position after end of file : " + position);
+                }
+                beginWrite();
+                try {
+                    long transferred = 0;
+                    while (transferred < count) {
+                        Table t = mutableTable();
+                        int blockIndex = blockIndex(position);
+                        int blockOffset = blockOffset(position);
+                        int length = (int) Math.min(count - transferred, blockSize - blockOffset);
+                        // source size is not known in advance, thus space is reserved for each block and adjusted after
+                        long reserved = Math.max(0, position + length - t.size);
+                        space.allocate(reserved);
+                        boolean allocated = blockIndex < blockCount(t.size);
+                        Block block = allocated ? writableBlock(blockIndex) : allocateBlock(blockIndex);
+                        int read = -1;
+                        try {
+                            read = src.read(block.buffer(blockOffset, length));
+                        } finally {
+                            space.free(reserved - Math.max(0, position + Math.max(0, read) - t.size));
+                        }
+                        if (!allocated && read <= 0) {
+                            t.blocks[blockIndex] = null;
+                            releaseBlock(block);
+                        }
+                        if (read <= 0) {
+                            break;
+                        }
+                        transferred += read;
+                        position += read;
+                        if (t.size < position) {
+                            t.size = position;
+                        }
+                    }
+                    return transferred;
+                } finally {
+                    endWrite();
+                }
+            }
+        } finally {
+            storage.unpin();
+        }
+    }
+
+    /**
+     * Transfers content from another file, blocks are shared with source file when both files use the same storage
+     * and transfer is aligned on blocks, thus most of the content is not copied until one of the files modifies it.
+     *
+     * @param source source file
+     * @param sourcePosition position in source file
+     * @param position position in this file, any gap between end of file and position is filled with zeros
+     * @param count maximum number of bytes to transfer
+     * @return number of bytes transferred
+     * @throws NoSpaceLeftException when file can't grow
+     */
+    long transferFrom(FileData source, long sourcePosition, long position, long count) throws NoSpaceLeftException {
+        pin(storage, source.storage);
+        try {
+            // source content is read from a snapshot, thus source may be modified concurrently, or even be this file
+            Table s = source.snapshot();
+            try {
+                synchronized (lock) {
+                    beginWrite();
+                    try {
+                        long toTransfer = Math.min(count, s.size - sourcePosition);
+                        if (0 < toTransfer) {
+                            grow(position + toTransfer);
+                        }
+                        long transferred = 0;
+                        while (transferred < toTransfer) {
+                            long from = sourcePosition + transferred;
+                            long to = position + transferred;
+                            int sourceOffset = source.blockOffset(from);
+                            int length = (int) Math.min(toTransfer - transferred, Math.min(blockSize - blockOffset(to), source.blockSize - sourceOffset));
+                            Block block = s.blocks[source.blockIndex(from)];
+                            if (canShare(source, s, from, to, length)) {
+                                shareBlock(blockIndex(to), block);
+                                Table t = table;
+                                if (t.size < to + length) {
+                                    t.size = to + length;
+                                }
+                            } else {
+                                writeBlocks(to, block.buffer(sourceOffset, length), null);
+                            }
+                            transferred += length;
+                        }
+                        return transferred;
+                    } finally {
+                        endWrite();
+                    }
+                }
+            } finally {
+                s.release(source.storage);
+            }
+        } finally {
+            unpin(storage, source.storage);
+        }
+    }
+
+    /**
+     * @return true if a source block can be used as-is at a given position in this file
+     */
+    private boolean canShare(FileData source, Table s, long from, long to, int length) {
+        if (storage != source.storage || 0 != blockOffset(from) || 0 != blockOffset(to)) {
+            return false;
+        }
+        if (writableMapped) {
+            // blocks of this file may be aliased by writable buffers, and must thus be written in place
+            return false;
+        }
+        if (length == blockSize) {
+            return true;
+        }
+        // partial block : bytes after source end are zero, and this file must not have any data after transferred range
+        return from + length == s.size && table.size <= to + length;
+    }
+
+    private void shareBlock(int index, Block block) {
+        Table t = mutableTable();
+        int allocated = blockCount(t.size);
+        // gap blocks are allocated empty
+        while (allocated < index) {
+            allocateBlock(allocated++);
+        }
+        block.retain();
+        if (index < allocated) {
+            releaseBlock(t.blocks[index]);
+        } else if (t.blocks.length <= index) {
+            t.blocks = Arrays.copyOf(t.blocks, Math.max(index + 1, t.blocks.length * 2));
+        }
+        t.blocks[index] = block;
+        markModified(index);
+    }
+
+    /**
+     * Provides a view of file content, which aliases file blocks directly.
+     * <p>
+     * Mapped content must be stored in contiguous memory, thus the first mapping moves all file blocks into a single
+     * direct memory region, with some spare room for file growth. Further mappings do not copy anything as long as
+     * file blocks remain in this region. Mapped regions are not released by storage, and remain valid as long as
+     * buffers use them.
+     * <p>
+     * Blocks mapped by a writable buffer may be modified at any time without going through this file, thus they are
+     * never shared : copies and snapshots of this file get their own copy of those blocks.
+     *
+     * @param position position in file
+     * @param size size of mapped range, must not go past end of file
+     * @param writable true if changes through buffer must be visible in file, thus mapped blocks must not be
+     * shared with other files
+     * @return direct buffer view of file content
+     */
+    ByteBuffer map(long position, int size, boolean writable) {
+        storage.pin();
+        try {
+            synchronized (lock) {
+                if (table.size < position + size) {
+                    throw new IllegalArgumentException("mapped range after end of file");
+                }
+                if (0 == size) {
+                    return ByteBuffer.allocateDirect(0);
+                }
+                int first = blockIndex(position);
+                int last = blockIndex(position + size - 1);
+                if (!isMapped(first, last, writable)) {
+                    beginWrite();
+                    try {
+                        relocate();
+                    } finally {
+                        endWrite();
+                    }
+                }
+                writableMapped |= writable;
+                return ((Block.DirectBlock) table.blocks[first]).regionView(blockOffset(position), size, writable);
+            }
+        } finally {
+            storage.unpin();
+        }
+    }
+
+    /**
+     * Borrows space required to write a range from shared budget, which may wait for other filesystems to release
+     * space, thus must be called before taking any lock, see {@link Space#prepare(long)}
+     *
+     * @param position position of write
+     * @param length length of write
+     * @return prepared bytes, which must be given to {@link #settle(long)} once write is done
+     * @throws NoSpaceLeftException when budget is still exhausted after waiting
+     */
+    long prepareWrite(long position, long length) throws NoSpaceLeftException {
+        return space.prepare(position + length - size());
+    }
+
+    void settle(long prepared) {
+        space.settle(prepared);
+    }
+
+    /**
+     * Copies file content into a new direct buffer, for private mappings where changes through buffer must not be
+     * visible in file.
+     * <p>
+     * Copy is charged against space of this file until buffer is garbage collected, as there is no other way to know
+     * when a mapped buffer is not used anymore. Caller must not hold any lock, as copy may wait for shared budget.
+     *
+     * @param position position in file
+     * @param size size of copied range
+     * @return direct buffer with a copy of file content
+     * @throws NoSpaceLeftException when there is not enough space for copy
+     */
+    ByteBuffer copyPrivate(long position, int size) throws NoSpaceLeftException {
+        PrivateCopy.reclaim();
+        long prepared = space.prepare(size);
+        try {
+            space.allocate(size);
+        } finally {
+            space.settle(prepared);
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect(size);
+        } catch (OutOfMemoryError e) {
+            space.free(size);
+            throw e;
+        }
+        read(position, buffer);
+        buffer.clear();
+        PrivateCopy.track(buffer, space, size);
+        return buffer;
+    }
+
+    /**
+     * @return true if blocks in range already belong to the same mapped region
+     */
+    private boolean isMapped(int first, int last, boolean writable) {
+        Table t = table;
+        for (int i = first; i <= last; i++) {
+            Block block = t.blocks[i];
+            if (writable && (t.isShared() || block.isShared())) {
+                return false;
+            }
+            if (!(block instanceof Block.DirectBlock) || !((Block.DirectBlock) block).isMapped()) {
+                return false;
+            }
+            if (i < last && !((Block.DirectBlock) block).isFollowedBy(t.blocks[i + 1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves all file blocks to a new mapped region, blocks content is copied once.
+     */
+    private void relocate() {
+        Table t = mutableTable();
+        int count = blockCount(t.size);
+        // spare room allows file to grow without being moved again
+        long capacity = Math.min(2L * count, Integer.MAX_VALUE / blockSize);
+        if (capacity < count) {
+            throw new IllegalArgumentException("file too large to be mapped");
+        }
+        Block.Region region = new Block.Region(blockSize, (int) capacity);
+        for (int i = 0; i < count; i++) {
+            Block block = region.allocate();
+            t.blocks[i].copyTo(block);
+            releaseBlock(t.blocks[i]);
+            t.blocks[i] = block;
+        }
+    }
+
+    /**
+     * Charges file growth against space, must be called before file is modified
+     *
+     * @param newSize file size after modification
+     * @throws NoSpaceLeftException when there is not enough space for file to grow
+     */
+    private void grow(long newSize) throws NoSpaceLeftException {
+        long size = table.size;
+        if (size < newSize) {
+            space.allocate(newSize - size);
+        }
+    }
+
+    /**
+     * Pins storage of two files, see {@link BlockStorage#pin()}
+     */
+    private static void pin(BlockStorage storage, BlockStorage other) {
+        storage.pin();
+        try {
+            other.pin();
+        } catch (RuntimeException e) {
+            storage.unpin();
+            throw e;
+        }
+    }
+
+    private static void unpin(BlockStorage storage, BlockStorage other) {
+        other.unpin();
+        storage.unpin();
+    }
+
+    private void beginWrite() {
+        Listener l = listener;
+        if (null != l) {
+            l.modifying(this);
+        }
+        // atomic update acts as a full fence, thus readers can't see any modification before version change
+        VERSION.incrementAndGet(this);
+    }
+
+    private void endWrite() {
+        version++;
+    }
+
+    private static boolean isWriting(long stamp) {
+        return 0 != (stamp & 1);
+    }
+
+    /**
+     * @param stamp version read before an optimistic read
+     * @return true if no write happened since version has been read
+     */
+    private boolean validate(long stamp) {
+        Fences.loadFence();
+        return stamp == version;
+    }
+
+    /**
+     * @return current block table, shared thus not modified until released by caller
+     */
+    private Table snapshot() {
+        synchronized (lock) {
+            return shareTable();
+        }
+    }
+
+    /**
+     * Shares current block table, caller must hold lock.
+     *
+     * @return current block table, or a copy of it where blocks mapped by writable buffers are copied
+     */
+    private Table shareTable() {
+        Table t = table;
+        if (!writableMapped) {
+            return t.share();
+        }
+        storage.pin();
+        try {
+            return t.copy(storage);
+        } finally {
+            storage.unpin();
+        }
+    }
+
+    /**
+     * @return block table of this file, copied first if shared with other files
+     */
+    private Table mutableTable() {
+        Table t = table;
+        if (t.isShared()) {
+            Table copy = t.copy();
+            t.release(storage);
+            table = t = copy;
+        }
+        return t;
+    }
+
+    /**
+     * @param index block index, block must be allocated
+     * @return block that can be modified in place, copied first if shared with other files
+     */
+    private Block writableBlock(int index) {
+        Block[] blocks = mutableTable().blocks;
+        Block block = blocks[index];
+        if (block.isShared()) {
+            Block copy = storage.allocate();
+            block.copyTo(copy);
+            releaseBlock(block);
+            blocks[index] = block = copy;
+        }
+        markModified(index);
+        return block;
+    }
+
+    private Block allocateBlock(int index) {
+        Table t = mutableTable();
+        if (t.blocks.length <= index) {
+            // only block references are copied, not block content
+            t.blocks = Arrays.copyOf(t.blocks, Math.max(index + 1, t.blocks.length * 2));
+        }
+        Block block = null;
+        if (0 < index && t.blocks[index - 1] instanceof Block.DirectBlock) {
+            // mapped files grow within their region when possible
+            block = ((Block.DirectBlock) t.blocks[index - 1]).allocateNext();
+        }
+        if (null == block) {
+            block = storage.allocate();
+        }
+        t.blocks[index] = block;
+        markModified(index);
+        return block;
+    }
+
+    /**
+     * @param index index of modified block, negative when only file size is modified
+     */
+    private void markModified(int index) {
+        if (null == modified) {
+            // not collected yet, thus all blocks are reported as modified
+            return;
+        }
+        if (0 <= index) {
+            modified.set(index);
+        }
+        if (!reported) {
+            reported = true;
+            Listener l = listener;
+            if (null != l) {
+                l.modified(this);
+            }
+        }
+    }
+
+    private void releaseBlock(Block block) {
+        if (block.unreference()) {
+            storage.release(block);
+        }
+    }
+
+    private int blockIndex(long position) {
+        long index = position / blockSize;
+        if (Integer.MAX_VALUE < index) {
+            throw new IllegalArgumentException("position out of bounds : " + position);
+        }
+        return (int) index;
     }
 
-    public static FileData copy(FileData data){
-        return null == data ? null : new FileData(new InternalOutputStream(data.stream));
+    private int blockOffset(long position) {
+        return (int) (position % blockSize);
+    }
+
+    private int blockCount(long size) {
+        return blockIndex(size + blockSize - 1);
+    }
+
+    /**
+     * Copies file data, which has a constant cost since block table is shared until one of the files is modified.
+     * <p>
+     * Copy is not charged against space of copied file, and is thus only suitable for snapshots of file content.
+     *
+     * @param data data to copy
+     * @return copy of data, or null if data is null
+     */
+    public static FileData copy(FileData data) {
+        if (null == data) {
+            return null;
+        }
+        Table t = data.snapshot();
+        return new FileData(data.storage, new Space(0, t.size), t);
+    }
+
+    /**
+     * Replaces content of this file with content of another file, which is shared by both files until one of them
+     * is modified.
+     *
+     * @param source file data using the same storage
+     * @throws NoSpaceLeftException when there is not enough space for restored content
+     */
+    void restore(FileData source) throws NoSpaceLeftException {
+        restore(source, null);
+    }
+
+    /**
+     * Replaces content of this file with content of another file, unless this file has been modified since it
+     * shared its content with expected content, see {@link #restore(FileData)}.
+     *
+     * @param source file data using the same storage
+     * @param expected content this file must still share, null to always replace content
+     * @return false if file has been modified, and has thus not been restored
+     * @throws NoSpaceLeftException when there is not enough space for restored content
+     */
+    boolean restore(FileData source, FileData expected) throws NoSpaceLeftException {
+        Table s = source.snapshot();
+        try {
+            synchronized (lock) {
+                if (null != expected && table != expected.table) {
+                    return false;
+                }
+                grow(s.size);
+                beginWrite();
+                try {
+                    Table previous = table;
+                    if (s.size < previous.size) {
+                        space.free(previous.size - s.size);
+                    }
+                    table = s;
+                    s = previous;
+                    if (null != modified) {
+                        modified.set(0, blockCount(table.size));
+                    }
+                    markModified(-1);
+                } finally {
+                    endWrite();
+                }
+            }
+        } finally {
+            s.release(storage);
+        }
+        return true;
+    }
+
+    /**
+     * Copies file data, copy is charged against space of this file, see {@link #copy(FileData)} for details.
+     *
+     * @return copy of file data
+     * @throws NoSpaceLeftException when there is not enough space for copy
+     */
+    FileData newCopy() throws NoSpaceLeftException {
+        return newCopy(space);
+    }
+
+    /**
+     * Copies file data, copy is charged against another space, and uses the same storage as this file.
+     *
+     * @param space space of copy
+     * @return copy of file data
+     * @throws NoSpaceLeftException when there is not enough space for copy
+     */
+    FileData newCopy(Space space) throws NoSpaceLeftException {
+        Table t = snapshot();
+        try {
+            space.allocate(t.size);
+        } catch (NoSpaceLeftException e) {
+            t.release(storage);
+            throw e;
+        }
+        return new FileData(storage, space, t);
     }
 
     public static FileData newEmpty() {
-        return new FileData(new InternalOutputStream());
+        return newEmpty(DEFAULT_BLOCK_SIZE);
+    }
+
+    public static FileData newEmpty(int blockSize) {
+        return newEmpty(BlockStorage.heap(blockSize));
+    }
+
+    public static FileData newEmpty(BlockStorage storage) {
+        return newEmpty(storage, new Space(0));
+    }
+
+    public static FileData newEmpty(BlockStorage storage, Space space) {
+        return new FileData(storage, space, new Table(1));
+    }
+
+    /**
+     * Creates file data over existing blocks, which are usually pinned by an extra reference to avoid releasing them
+     * to storage, and to copy them before any modification. File size is charged against space.
+     *
+     * @param storage storage used for new blocks
+     * @param space space of file
+     * @param blocks file blocks, each referenced once for this file, last block content after size must be zero
+     * @param size file size
+     * @return file data
+     * @throws NoSpaceLeftException when there is not enough space for file
+     */
+    static FileData fromBlocks(BlockStorage storage, Space space, Block[] blocks, long size) throws NoSpaceLeftException {
+        space.allocate(size);
+        Table t = new Table(Math.max(1, blocks.length));
+        System.arraycopy(blocks, 0, t.blocks, 0, blocks.length);
+        t.size = size;
+        return new FileData(storage, space, t);
     }
 
     // only used for test, may be dropped unless used somewhere else
     public static FileData fromData(byte[] data) {
-        return new FileData(new InternalOutputStream(data));
+        FileData result = newEmpty();
+        try {
+            result.append(data, 0, data.length);
+        } catch (NoSpaceLeftException e) {
+            // space is not limited
+            throw new IllegalStateException(e);
+        }
+        return result;
     }
 
-    // Hashcode and equals are rather "costly" since they naively read the whole buffer
+    // Hashcode and equals are rather "costly" since they naively read the whole content
+    // they read snapshots of file content, thus are not affected by concurrent writes
 
     // Note : if hashcode is called frequently without data change, we could avoid re-computing value
     // as long as data is not rewritten.
@@ -51,7 +1062,28 @@ final class FileData {
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(stream.internalBuffer());
+        storage.pin();
+        try {
+            // consistent with Arrays.hashCode(byte[]) on file content
+            Table t = snapshot();
+            try {
+                int result = 1;
+                long remaining = t.size;
+                for (int i = 0; 0 < remaining; i++) {
+                    Block block = t.blocks[i];
+                    int count = (int) Math.min(remaining, blockSize);
+                    for (int j = 0; j < count; j++) {
+                        result = 31 * result + block.get(j);
+                    }
+                    remaining -= count;
+                }
+                return result;
+            } finally {
+                t.release(storage);
+            }
+        } finally {
+            storage.unpin();
+        }
     }
 
     @Override
@@ -60,38 +1092,274 @@ final class FileData {
             return false;
         }
         FileData other = (FileData) o;
-        return Arrays.equals(stream.internalBuffer(), other.stream.internalBuffer());
+        pin(storage, other.storage);
+        try {
+            Table t = snapshot();
+            Table otherTable = other.snapshot();
+            try {
+                return equals(t, other, otherTable);
+            } finally {
+                t.release(storage);
+                otherTable.release(other.storage);
+            }
+        } finally {
+            unpin(storage, other.storage);
+        }
     }
 
-    private static class InternalOutputStream extends ByteArrayOutputStream {
+    private boolean equals(Table t, FileData other, Table otherTable) {
+        if (t.size != otherTable.size) {
+            return false;
+        }
+        if (t == otherTable) {
+            return true;
+        }
+        // both files may use distinct block sizes, thus we compare ranges that fit in both current blocks
+        long position = 0;
+        while (position < t.size) {
+            Block block = t.blocks[blockIndex(position)];
+            Block otherBlock = otherTable.blocks[other.blockIndex(position)];
+            int offset = blockOffset(position);
+            int otherOffset = other.blockOffset(position);
+            int count = (int) Math.min(t.size - position, Math.min(blockSize - offset, other.blockSize - otherOffset));
+            for (int i = 0; i < count; i++) {
+                if (block.get(offset + i) != otherBlock.get(otherOffset + i)) {
+                    return false;
+                }
+            }
+            position += count;
+        }
+        return true;
+    }
+
+    /**
+     * Block table, may be shared by several files.
+     * <p>
+     * Shared tables must not be modified, a file must obtain its own copy first.
+     */
+    private static final class Table {
+
+        // only the first blockCount(size) items are allocated
+        // invariant : bytes after size in last block are always zero
+        private Block[] blocks;
+        private volatile long size;
+
+        // number of files or snapshots that use this table
+        private final AtomicInteger refs;
+
+        private Table(int capacity) {
+            this.blocks = new Block[capacity];
+            this.size = 0;
+            this.refs = new AtomicInteger(1);
+        }
 
-        private InternalOutputStream() {
-            super();
+        private Table share() {
+            refs.incrementAndGet();
+            return this;
         }
 
-        private InternalOutputStream(InternalOutputStream data){
-            super(data.count);
-            count = data.count;
-            System.arraycopy(data.buf, 0, buf, 0, data.count);
+        private boolean isShared() {
+            return 1 < refs.get();
         }
 
-        private InternalOutputStream(byte[] data) {
-            super(data.length);
-            count = data.length;
-            System.arraycopy(data, 0, buf, 0, data.length);
+        /**
+         * @return unshared copy of this table, blocks are not copied but shared by both tables
+         */
+        private Table copy() {
+            Table copy = new Table(blocks.length);
+            for (int i = 0; i < blocks.length; i++) {
+                if (null != blocks[i]) {
+                    copy.blocks[i] = blocks[i].retain();
+                }
+            }
+            copy.size = size;
+            return copy;
         }
 
-        private byte[] internalBuffer() {
-            return buf;
+        /**
+         * @param storage storage used to allocate copied blocks
+         * @return unshared copy of this table, blocks mapped by writable buffers are copied, other blocks are shared
+         * by both tables
+         */
+        private Table copy(BlockStorage storage) {
+            Table copy = copy();
+            for (int i = 0; i < copy.blocks.length; i++) {
+                Block block = copy.blocks[i];
+                if (block instanceof Block.DirectBlock && ((Block.DirectBlock) block).isWritableMapped()) {
+                    Block blockCopy = storage.allocate();
+                    block.copyTo(blockCopy);
+                    // still referenced by this table
+                    block.unreference();
+                    copy.blocks[i] = blockCopy;
+                }
+            }
+            return copy;
         }
 
-        private void truncate(int newSize) {
-            if (newSize < 0) {
-                throw new IllegalArgumentException("can't truncate to negative size");
+        /**
+         * Drops a reference to this table, blocks are released when last reference is dropped.
+         *
+         * @param storage storage of table blocks
+         */
+        private void release(BlockStorage storage) {
+            if (0 < refs.decrementAndGet()) {
+                return;
+            }
+            for (int i = 0; i < blocks.length; i++) {
+                if (null != blocks[i] && blocks[i].unreference()) {
+                    storage.release(blocks[i]);
+                }
+                blocks[i] = null;
             }
-            if (newSize < count) {
-                count = newSize;
+            size = 0;
+        }
+    }
+
+    /**
+     * Memory fences required to validate optimistic reads, which are not part of public API before Java 9, thus we
+     * rely on JDK internals when required, and optimistic reads are disabled when not available.
+     */
+    private static final class Fences {
+
+        private static final MethodHandle LOAD_FENCE;
+
+        static {
+            MethodHandle loadFence;
+            try {
+                // java 9 and later
+                Class<?> varHandleClass = Class.forName("java.lang.invoke.VarHandle");
+                loadFence = MethodHandles.publicLookup().findStatic(varHandleClass, "acquireFence", MethodType.methodType(void.class));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                loadFence = unsafeLoadFence();
+            }
+            LOAD_FENCE = loadFence;
+        }
+
+        private static MethodHandle unsafeLoadFence() {
+            try {
+                // java 8
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return MethodHandles.lookup()
+                        .findVirtual(unsafeClass, "loadFence", MethodType.methodType(void.class))
+                        .bindTo(field.get(null));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        private static boolean isAvailable() {
+            return null != LOAD_FENCE;
+        }
+
+        private static void loadFence() {
+            try {
+                LOAD_FENCE.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Space charged by a private copy of file content, which is refunded once copy is garbage collected.
+     */
+    private static final class PrivateCopy extends PhantomReference<ByteBuffer> {
+
+        private static final ReferenceQueue<ByteBuffer> QUEUE = new ReferenceQueue<>();
+
+        // references must remain reachable until they are enqueued
+        private static final Set<PrivateCopy> PENDING = Collections.newSetFromMap(new ConcurrentHashMap<PrivateCopy, Boolean>());
+
+        private final Space space;
+        private final long size;
+
+        private PrivateCopy(ByteBuffer buffer, Space space, long size) {
+            super(buffer, QUEUE);
+            this.space = space;
+            this.size = size;
+        }
+
+        private static void track(ByteBuffer buffer, Space space, long size) {
+            PENDING.add(new PrivateCopy(buffer, space, size));
+        }
+
+        private static void reclaim() {
+            Reference<? extends ByteBuffer> reference;
+            while (null != (reference = QUEUE.poll())) {
+                PrivateCopy copy = (PrivateCopy) reference;
+                if (PENDING.remove(copy)) {
+                    copy.space.free(copy.size);
+                }
+            }
+        }
+    }
+
+    /**
+     * Input stream that reads file content up to its size at stream creation time.
+     */
+    private class BlockInputStream extends InputStream {
+
+        private final long end;
+        private long position;
+
+        private final byte[] single = new byte[1];
+
+        private BlockInputStream(long end) {
+            this.end = end;
+            this.position = 0;
+        }
+
+        @Override
+        public int read() {
+            int read = read(single, 0, 1);
+            return read < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            long limit = limit();
+            if (limit <= position) {
+                return -1;
+            }
+            int read = FileData.this.read(position, ByteBuffer.wrap(b, off, (int) Math.min(len, limit - position)));
+            if (0 < read) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, limit() - position));
+        }
+
+        private long limit() {
+            // file might have been truncated since stream creation
+            return Math.min(end, size());
+        }
+    }
+
+    /**
+     * Output stream that appends data at end of file.
+     */
+    private class BlockOutputStream extends OutputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            append(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || b.length < off + len) {
+                throw new IndexOutOfBoundsException();
             }
+            append(b, off, len);
         }
     }
 }
@@ -0,0 +1,632 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Binary image of a filesystem tree, which allows to save and load a whole filesystem in a single sequential pass.
+ * <p>
+ * Image format, all numbers are big-endian :
+ * <pre>
+ * header    : int magic, int version, int block size
+ * records   : one record per entry, children are written before their parent directory
+ *   file      : byte type (1), name, long size, file content
+ *   directory : byte type (2), name, int child count, long offset of each child record
+ * trailer   : byte type (0), long offset of root directory record, int magic
+ * name      : int length, UTF-8 bytes, empty for root directory
+ * </pre>
+ * Since directories know their children offsets, an image can also be read without reading it sequentially,
+ * starting from root directory offset found at end of image, see {@link Mapping}.
+ */
+final class FileSystemImage {
+
+    static final int MAGIC = 0x4D454D46; // "MEMF"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 12;
+    static final int TRAILER_SIZE = 13;
+
+    static final byte END = 0;
+    static final byte FILE = 1;
+    static final byte DIRECTORY = 2;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // size of mapped windows, file content that spans over two windows is copied
+    static final int WINDOW_SIZE = 1 << 30;
+
+    private FileSystemImage() {
+        // static utility
+    }
+
+    /**
+     * Writes filesystem tree to an image, file contents are written directly from file blocks.
+     * <p>
+     * Each file is written as it was when its record was written, but concurrent modifications of directories
+     * while saving may or may not be part of the image.
+     *
+     * @param root root directory
+     * @param blockSize block size of filesystem
+     * @param channel target channel
+     * @throws IOException if channel fails to write
+     */
+    static void save(Entry root, int blockSize, WritableByteChannel channel) throws IOException {
+        Writer out = new Writer(channel);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(blockSize);
+        long rootOffset = writeEntry(out, root);
+        out.writeByte(END);
+        out.writeLong(rootOffset);
+        out.writeInt(MAGIC);
+        out.flush();
+    }
+
+    /**
+     * @return entry record offset
+     */
+    private static long writeEntry(Writer out, Entry entry) throws IOException {
+        if (entry.isRegularFile()) {
+            long offset = out.position();
+            // file size and content must be consistent even if file is modified concurrently
+            FileData data = FileData.copy(entry.getData());
+            try {
+                out.writeByte(FILE);
+                out.writeName(entry.getName());
+                out.writeLong(data.size());
+                out.writeContent(data);
+            } finally {
+                data.release();
+            }
+            return offset;
+        }
+        List<Long> children = new ArrayList<>();
+        for (Entry child = entry.getEntries(); null != child; child = child.getNext()) {
+            if (!child.isDeleted()) {
+                children.add(writeEntry(out, child));
+            }
+        }
+        long offset = out.position();
+        out.writeByte(DIRECTORY);
+        out.writeName(entry.getName());
+        out.writeInt(children.size());
+        for (long childOffset : children) {
+            out.writeLong(childOffset);
+        }
+        return offset;
+    }
+
+    /**
+     * Reads a filesystem tree from an image, entries are added to root directory, and file contents are read
+     * directly into file blocks.
+     *
+     * @param root root directory
+     * @param storage block storage of loaded files
+     * @param space space of loaded files
+     * @param channel source channel
+     * @throws IOException if channel fails to read or image is not valid
+     */
+    static void load(Entry root, BlockStorage storage, Space space, ReadableByteChannel channel) throws IOException {
+        Reader in = new Reader(channel);
+        checkHeader(in.readInt(), in.readInt());
+        in.readInt(); // block size, loaded files use filesystem block size
+
+        // children are read before their parent, thus entries can't be created until root is read
+        Deque<Node> pending = new ArrayDeque<>();
+        try {
+            for (byte type = in.readByte(); END != type; type = in.readByte()) {
+                String name = in.readName();
+                if (FILE == type) {
+                    FileData data = FileData.newEmpty(storage, space);
+                    pending.push(new Node(name, data, null));
+                    in.readContent(data, in.readLong());
+                } else if (DIRECTORY == type) {
+                    int count = in.readInt();
+                    if (count < 0 || pending.size() < count) {
+                        throw new InvalidImageException("invalid directory child count : " + count);
+                    }
+                    in.skip(8L * count);
+                    Node[] children = new Node[count];
+                    for (int i = count - 1; 0 <= i; i--) {
+                        children[i] = pending.pop();
+                    }
+                    pending.push(new Node(name, null, children));
+                } else {
+                    throw new InvalidImageException("invalid record type : " + type);
+                }
+            }
+            in.readLong(); // root offset
+            if (MAGIC != in.readInt() || 1 != pending.size() || null == pending.peek().children) {
+                throw new InvalidImageException("invalid image trailer");
+            }
+            for (Node child : pending.peek().children) {
+                child.create(root);
+            }
+        } finally {
+            // data of files that have not been added to tree, when image is not valid or conflicts with tree
+            for (Node node : pending) {
+                node.release();
+            }
+        }
+    }
+
+    static void checkHeader(int magic, int version) throws InvalidImageException {
+        if (MAGIC != magic) {
+            throw new InvalidImageException("not a filesystem image");
+        }
+        if (VERSION != version) {
+            throw new InvalidImageException("unsupported image version : " + version);
+        }
+    }
+
+    /**
+     * Entry read from image, not yet part of filesystem tree
+     */
+    private static final class Node {
+
+        private final String name;
+        private final FileData data; // null for directories
+        private final Node[] children; // null for files
+        private boolean created;
+
+        private Node(String name, FileData data, Node[] children) {
+            this.name = name;
+            this.data = data;
+            this.children = children;
+        }
+
+        private void create(Entry parent) {
+            if (null != data) {
+                Entry.newFile(parent, name, data);
+                created = true;
+                return;
+            }
+            Entry directory = Entry.newDirectory(parent, name);
+            for (Node child : children) {
+                child.create(directory);
+            }
+        }
+
+        private void release() {
+            if (null != data) {
+                if (!created) {
+                    data.release();
+                }
+            } else {
+                for (Node child : children) {
+                    child.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffered channel writer, which keeps track of written bytes count
+     */
+    static final class Writer {
+
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer;
+        private long flushed;
+
+        Writer(WritableByteChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.flushed = 0;
+        }
+
+        long position() {
+            return flushed + buffer.position();
+        }
+
+        void writeByte(byte value) throws IOException {
+            ensure(1).put(value);
+        }
+
+        void writeInt(int value) throws IOException {
+            ensure(4).putInt(value);
+        }
+
+        void writeLong(long value) throws IOException {
+            ensure(8).putLong(value);
+        }
+
+        void writeName(String name) throws IOException {
+            byte[] bytes = null == name ? new byte[0] : name.getBytes(UTF_8);
+            writeInt(bytes.length);
+            writeBytes(bytes);
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            if (bytes.length <= buffer.capacity()) {
+                ensure(bytes.length).put(bytes);
+            } else {
+                flush();
+                writeFully(ByteBuffer.wrap(bytes));
+            }
+        }
+
+        void writeContent(FileData data) throws IOException {
+            writeContent(data, 0, data.size());
+        }
+
+        /**
+         * Writes a range of file content, which must be within file
+         */
+        void writeContent(FileData data, long position, long length) throws IOException {
+            flush();
+            long written = 0;
+            while (written < length) {
+                written += data.transferTo(position + written, length - written, channel);
+            }
+            flushed += length;
+        }
+
+        private ByteBuffer ensure(int length) throws IOException {
+            if (buffer.remaining() < length) {
+                flush();
+            }
+            return buffer;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            flushed += buffer.remaining();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        }
+    }
+
+    /**
+     * Buffered channel reader
+     */
+    static final class Reader {
+
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer;
+
+        Reader(ReadableByteChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.buffer.flip();
+        }
+
+        byte readByte() throws IOException {
+            return ensure(1).get();
+        }
+
+        int readInt() throws IOException {
+            return ensure(4).getInt();
+        }
+
+        long readLong() throws IOException {
+            return ensure(8).getLong();
+        }
+
+        String readName() throws IOException {
+            int length = readInt();
+            if (length < 0) {
+                throw new InvalidImageException("invalid name length : " + length);
+            }
+            byte[] bytes = new byte[length];
+            readBytes(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        void readBytes(byte[] bytes) throws IOException {
+            ByteBuffer dst = ByteBuffer.wrap(bytes);
+            copyBuffered(dst);
+            readFully(dst);
+        }
+
+        void skip(long count) throws IOException {
+            while (0 < count) {
+                int skipped = (int) Math.min(count, BUFFER_SIZE);
+                ensure(skipped);
+                buffer.position(buffer.position() + skipped);
+                count -= skipped;
+            }
+        }
+
+        void readContent(FileData data, long size) throws IOException {
+            readContent(data, 0, size);
+        }
+
+        /**
+         * Reads file content at a given position, bytes that are not already buffered are read directly into file
+         * blocks
+         */
+        void readContent(FileData data, long position, long size) throws IOException {
+            if (size < 0) {
+                throw new InvalidImageException("invalid file size : " + size);
+            }
+            if (0 < size && !buffer.hasRemaining()) {
+                // position may be after end of file, and only a write can fill the gap
+                ensure(1);
+            }
+            int buffered = (int) Math.min(size, buffer.remaining());
+            ByteBuffer src = buffer.duplicate();
+            src.limit(src.position() + buffered);
+            data.write(position, src);
+            buffer.position(buffer.position() + buffered);
+            long read = buffered;
+            while (read < size) {
+                long count = data.transferFrom(channel, position + read, size - read);
+                if (count <= 0) {
+                    throw new EOFException("unexpected end of image");
+                }
+                read += count;
+            }
+        }
+
+        private ByteBuffer ensure(int length) throws IOException {
+            if (buffer.remaining() < length) {
+                buffer.compact();
+                while (buffer.position() < length) {
+                    if (channel.read(buffer) < 0) {
+                        throw new EOFException("unexpected end of image");
+                    }
+                }
+                buffer.flip();
+            }
+            return buffer;
+        }
+
+        private void copyBuffered(ByteBuffer dst) {
+            int count = Math.min(dst.remaining(), buffer.remaining());
+            ByteBuffer src = buffer.duplicate();
+            src.limit(src.position() + count);
+            dst.put(src);
+            buffer.position(buffer.position() + count);
+        }
+
+        private void readFully(ByteBuffer dst) throws IOException {
+            while (dst.hasRemaining()) {
+                if (channel.read(dst) < 0) {
+                    throw new EOFException("unexpected end of image");
+                }
+            }
+        }
+    }
+
+    /**
+     * Image file mapped into memory, which is read without copy : directories are decoded when they are first
+     * accessed, and file blocks are views of the mapped file until they are written to.
+     * <p>
+     * Mapped blocks are pinned by an extra reference, thus they are never released to storage, and are always copied
+     * before being modified (copy-on-write). Mapped content must not be modified while mounted.
+     * <p>
+     * Files are charged against filesystem space when their directory is decoded.
+     */
+    static final class Mapping {
+
+        private final String source;
+        private final ByteBuffer[] windows;
+        private final int windowSize;
+        private final long size;
+        private final long rootOffset;
+
+        private Mapping(String source, ByteBuffer[] windows, int windowSize, long size, long rootOffset) {
+            this.source = source;
+            this.windows = windows;
+            this.windowSize = windowSize;
+            this.size = size;
+            this.rootOffset = rootOffset;
+        }
+
+        /**
+         * @param path image file
+         * @return mapped image, null if file is not a filesystem image
+         * @throws IOException if file can't be mapped, or image version is not supported
+         */
+        static Mapping open(Path path) throws IOException {
+            return open(path, WINDOW_SIZE);
+        }
+
+        static Mapping open(Path path, int windowSize) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER_SIZE + TRAILER_SIZE) {
+                    return null;
+                }
+                ByteBuffer[] windows = new ByteBuffer[(int) ((size + windowSize - 1) / windowSize)];
+                for (int i = 0; i < windows.length; i++) {
+                    long position = (long) i * windowSize;
+                    // mapping remains valid once channel is closed
+                    windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, size - position));
+                }
+                Mapping mapping = new Mapping(path.toString(), windows, windowSize, size, 0);
+                if (MAGIC != mapping.getInt(0)) {
+                    return null;
+                }
+                checkHeader(MAGIC, mapping.getInt(4));
+                long trailer = size - TRAILER_SIZE;
+                long rootOffset = mapping.getLong(trailer + 1);
+                if (END != mapping.getByte(trailer) || MAGIC != mapping.getInt(trailer + 9)
+                        || rootOffset < HEADER_SIZE || trailer <= rootOffset) {
+                    throw new InvalidImageException("invalid image trailer : " + path);
+                }
+                return new Mapping(path.toString(), windows, windowSize, size, rootOffset);
+            }
+        }
+
+        /**
+         * @param storage block storage of filesystem, used for blocks that can't be mapped, and for modified blocks
+         * @param space space of filesystem
+         * @return root directory, which is loaded on first access
+         */
+        Entry mount(BlockStorage storage, Space space) {
+            return Entry.newRoot(new DirectoryLoader(this, storage, space, rootOffset));
+        }
+
+        private Entry readEntry(Entry parent, long offset, BlockStorage storage, Space space) throws IOException {
+            check(offset, 5);
+            byte type = getByte(offset);
+            int nameLength = getInt(offset + 1);
+            check(offset + 5, nameLength);
+            String name = getName(offset + 5, nameLength);
+            long position = offset + 5 + nameLength;
+            if (FILE == type) {
+                check(position, 8);
+                long fileSize = getLong(position);
+                check(position + 8, fileSize);
+                return Entry.newUnlinkedFile(parent, name, readData(position + 8, fileSize, storage, space));
+            } else if (DIRECTORY == type) {
+                return Entry.newUnlinkedDirectory(parent, name, new DirectoryLoader(this, storage, space, offset));
+            }
+            throw new InvalidImageException("invalid record type : " + type);
+        }
+
+        private FileData readData(long offset, long fileSize, BlockStorage storage, Space space) throws IOException {
+            int blockSize = storage.getBlockSize();
+            long count = (fileSize + blockSize - 1) / blockSize;
+            if (Integer.MAX_VALUE < count) {
+                throw new InvalidImageException("file too large : " + fileSize);
+            }
+            Block[] blocks = new Block[(int) count];
+            for (int i = 0; i < blocks.length; i++) {
+                long position = offset + (long) i * blockSize;
+                int length = (int) Math.min(blockSize, offset + fileSize - position);
+                ByteBuffer view = length == blockSize ? slice(position, length) : null;
+                if (null != view) {
+                    // pinned, thus never released nor modified in place
+                    blocks[i] = new Block.DirectBlock(view).retain().retain();
+                } else {
+                    // partial blocks are copied, since bytes after end of file must be zero
+                    byte[] bytes = new byte[length];
+                    get(position, bytes);
+                    blocks[i] = storage.allocate();
+                    blocks[i].put(0, bytes, 0, length);
+                }
+            }
+            return FileData.fromBlocks(storage, space, blocks, fileSize);
+        }
+
+        private void check(long offset, long length) throws InvalidImageException {
+            if (offset < 0 || length < 0 || size - offset < length) {
+                throw new InvalidImageException("invalid image record at offset " + offset);
+            }
+        }
+
+        private byte getByte(long position) {
+            return windows[(int) (position / windowSize)].get((int) (position % windowSize));
+        }
+
+        private int getInt(long position) {
+            ByteBuffer view = slice(position, 4);
+            if (null != view) {
+                return view.getInt(0);
+            }
+            byte[] bytes = new byte[4];
+            get(position, bytes);
+            return ByteBuffer.wrap(bytes).getInt();
+        }
+
+        private long getLong(long position) {
+            ByteBuffer view = slice(position, 8);
+            if (null != view) {
+                return view.getLong(0);
+            }
+            byte[] bytes = new byte[8];
+            get(position, bytes);
+            return ByteBuffer.wrap(bytes).getLong();
+        }
+
+        private String getName(long position, int length) {
+            byte[] bytes = new byte[length];
+            get(position, bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        private void get(long position, byte[] dst) {
+            int copied = 0;
+            while (copied < dst.length) {
+                long current = position + copied;
+                ByteBuffer view = windows[(int) (current / windowSize)].duplicate();
+                view.position((int) (current % windowSize));
+                int length = Math.min(dst.length - copied, view.remaining());
+                view.get(dst, copied, length);
+                copied += length;
+            }
+        }
+
+        /**
+         * @return read-only view of mapped range, null if range spans over two windows
+         */
+        private ByteBuffer slice(long position, int length) {
+            int window = (int) (position / windowSize);
+            int offset = (int) (position % windowSize);
+            if (windowSize - offset < length) {
+                return null;
+            }
+            ByteBuffer view = windows[window].duplicate();
+            view.limit(offset + length).position(offset);
+            return view.slice().asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Decodes directory children from mapped image
+     */
+    private static final class DirectoryLoader implements Entry.Loader {
+
+        private final Mapping mapping;
+        private final BlockStorage storage;
+        private final Space space;
+        private final long offset;
+
+        private DirectoryLoader(Mapping mapping, BlockStorage storage, Space space, long offset) {
+            this.mapping = mapping;
+            this.storage = storage;
+            this.space = space;
+            this.offset = offset;
+        }
+
+        @Override
+        public List<Entry> load(Entry directory) {
+            List<Entry> children = new ArrayList<>();
+            try {
+                mapping.check(offset, 5);
+                if (DIRECTORY != mapping.getByte(offset)) {
+                    throw new InvalidImageException("directory record expected at offset " + offset);
+                }
+                long position = offset + 5 + mapping.getInt(offset + 1);
+                mapping.check(position, 4);
+                int count = mapping.getInt(position);
+                mapping.check(position + 4, 8L * count);
+                for (int i = 0; i < count; i++) {
+                    long childOffset = mapping.getLong(position + 4 + 8L * i);
+                    children.add(mapping.readEntry(directory, childOffset, storage, space));
+                }
+                return children;
+            } catch (IOException e) {
+                // files already read are not part of tree
+                for (Entry child : children) {
+                    if (child.isRegularFile()) {
+                        child.getData().release();
+                    }
+                }
+                throw new ImageLoadException("unable to load directory " + directory + " from image " + mapping.source, e);
+            }
+        }
+    }
+}
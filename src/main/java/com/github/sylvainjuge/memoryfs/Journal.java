@@ -0,0 +1,715 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of filesystem mutations, which allows to rebuild filesystem after a process crash.
+ * <p>
+ * Journal directory contains journal segments {@code journal-<n>}, and images {@code image-<n>} of filesystem
+ * state at start of segment {@code n}. Filesystem is recovered by loading latest image, then replaying all
+ * following segments.
+ * <p>
+ * Mutations are applied and appended to journal while holding journal lock, thus records are in the same order
+ * as mutations. Mutations then wait until their record is durable, and records of concurrent mutations are
+ * written and forced to disk at once by a single thread (group commit).
+ * <p>
+ * Journal is compacted in background once current segment grows over a threshold : a new segment is started, and
+ * an image of filesystem at start of this segment is written from a {@link Snapshot}, thus mutations are only blocked
+ * while taking snapshot, which costs the same whatever filesystem size.
+ * <p>
+ * Mutations that can't be journaled record by record, such as snapshot rollback, or loading an image or restoring
+ * checkpoints, are followed by an image of filesystem, written before any other mutation, see
+ * {@link #rewrite(Mutation)}.
+ * <p>
+ * Limitations : changes made through memory-mapped buffers are not journaled, and records only refer to paths,
+ * thus writes to files that have been deleted while open are not journaled.
+ * <p>
+ * Record format : int payload length, int payload CRC32, payload. Payload starts with record type, strings are
+ * stored as int length followed by UTF-8 bytes.
+ */
+final class Journal {
+
+    static final String SEGMENT_PREFIX = "journal-";
+    static final String IMAGE_PREFIX = "image-";
+
+    static final long DEFAULT_COMPACTION_THRESHOLD = 64 * 1024 * 1024;
+
+    // written file content is split in records of limited size
+    private static final int MAX_WRITE_RECORD = 64 * 1024;
+
+    private static final byte CREATE = 1;
+    private static final byte COPY = 2;
+    private static final byte MOVE = 3;
+    private static final byte DELETE = 4;
+    private static final byte WRITE = 5;
+    private static final byte TRUNCATE = 6;
+
+    private final MemoryFileSystem fs;
+    private final Path directory;
+    private final long compactionThreshold;
+
+    // orders mutations and their records, guards pending records
+    private final ReentrantLock lock;
+    private RecordBuffer records;
+    private int recordStart;
+    private long appended; // total size of appended records
+
+    // thread safety : synchronized on sync monitor for r/w
+    private final Object sync;
+    private boolean syncing;
+    private long durable; // total size of durable records
+    private IOException failure;
+
+    // only accessed by thread that has set syncing flag
+    private FileChannel segment;
+    private long segmentId;
+    private volatile long segmentSize;
+
+    private final AtomicBoolean compacting;
+    private final ExecutorService compactor;
+    // held for whole compaction, and by rewrites which must not run while compaction image is written
+    private final Object compaction;
+
+    private Journal(MemoryFileSystem fs, Path directory, long compactionThreshold, long segmentId, FileChannel segment) throws IOException {
+        this.fs = fs;
+        this.directory = directory;
+        this.compactionThreshold = compactionThreshold;
+        this.lock = new ReentrantLock();
+        this.records = new RecordBuffer();
+        this.sync = new Object();
+        this.segmentId = segmentId;
+        this.segment = segment;
+        this.segmentSize = segment.size();
+        this.compacting = new AtomicBoolean();
+        this.compaction = new Object();
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "memoryfs-journal-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Recovers filesystem from journal directory, then opens journal for new records.
+     *
+     * @param fs empty filesystem, which must not be modified until journal is open
+     * @param directory journal directory, created if required
+     * @param compactionThreshold journal size that triggers compaction
+     * @return journal, that must be attached to filesystem
+     * @throws IOException if journal directory can't be read, or is not valid
+     */
+    static Journal open(MemoryFileSystem fs, Path directory, long compactionThreshold) throws IOException {
+        if (compactionThreshold <= 0) {
+            throw new IllegalArgumentException("compaction threshold must be strictly positive : " + compactionThreshold);
+        }
+        if (!Files.isDirectory(directory)) {
+            Files.createDirectories(directory);
+        }
+        List<Long> segments = list(directory, SEGMENT_PREFIX);
+        List<Long> images = list(directory, IMAGE_PREFIX);
+        long imageId = images.isEmpty() ? -1 : images.get(images.size() - 1);
+        if (0 <= imageId) {
+            try (FileChannel channel = FileChannel.open(directory.resolve(IMAGE_PREFIX + imageId), StandardOpenOption.READ)) {
+                fs.load(channel);
+            }
+        }
+        long lastId = Math.max(0, imageId);
+        for (long id : segments) {
+            if (id < imageId) {
+                continue;
+            }
+            boolean last = id == segments.get(segments.size() - 1);
+            replay(fs, directory.resolve(SEGMENT_PREFIX + id), last);
+            lastId = id;
+        }
+        FileChannel segment = FileChannel.open(directory.resolve(SEGMENT_PREFIX + lastId),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        Journal journal = new Journal(fs, directory, compactionThreshold, lastId, segment);
+        journal.deleteBefore(imageId);
+        return journal;
+    }
+
+    /**
+     * Applies records of a journal segment, last segment is truncated after its last valid record, which allows to
+     * recover from a crash while writing records.
+     */
+    private static void replay(MemoryFileSystem fs, Path file, boolean last) throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        CRC32 crc = new CRC32();
+        while (8 <= buffer.remaining()) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || buffer.remaining() < length) {
+                buffer.position(start);
+                break;
+            }
+            crc.reset();
+            crc.update(content, buffer.position(), length);
+            if (checksum != (int) crc.getValue()) {
+                buffer.position(start);
+                break;
+            }
+            ByteBuffer record = buffer.slice();
+            record.limit(length);
+            buffer.position(buffer.position() + length);
+            apply(fs, record);
+        }
+        if (buffer.hasRemaining()) {
+            if (!last) {
+                throw new InvalidJournalException("invalid record in journal " + file + " at offset " + buffer.position());
+            }
+            // incomplete record, written while process crashed
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(buffer.position());
+                channel.force(true);
+            }
+        }
+    }
+
+    private static void apply(MemoryFileSystem fs, ByteBuffer record) throws IOException {
+        byte type = record.get();
+        Path path = fs.getPath(readString(record));
+        switch (type) {
+            case CREATE:
+                byte flags = record.get();
+                fs.createEntry(path, 0 != (flags & 1), 0 != (flags & 2));
+                break;
+            case COPY:
+                Path copyTarget = fs.getPath(readString(record));
+                fs.copy(path, copyTarget, copyOptions(record.get()));
+                break;
+            case MOVE:
+                Path moveTarget = fs.getPath(readString(record));
+                fs.move(path, moveTarget, copyOptions(record.get()));
+                break;
+            case DELETE:
+                fs.delete(path);
+                break;
+            case WRITE:
+                long position = record.getLong();
+                findData(fs, path).write(position, record);
+                break;
+            case TRUNCATE:
+                findData(fs, path).truncate(record.getLong());
+                break;
+            default:
+                throw new InvalidJournalException("invalid record type : " + type);
+        }
+    }
+
+    private static FileData findData(MemoryFileSystem fs, Path path) throws InvalidJournalException {
+        Entry entry = fs.findEntry(path);
+        if (null == entry || !entry.isRegularFile()) {
+            throw new InvalidJournalException("journaled file does not exist : " + path);
+        }
+        return entry.getData();
+    }
+
+    private static StandardCopyOption[] copyOptions(byte replace) {
+        return 0 == replace ? new StandardCopyOption[0] : new StandardCopyOption[]{StandardCopyOption.REPLACE_EXISTING};
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, FileSystemImage.UTF_8);
+    }
+
+    /**
+     * @return identifiers of files with prefix, in ascending order
+     */
+    private static List<Long> list(Path directory, String prefix) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (!name.startsWith(prefix)) {
+                    continue;
+                }
+                try {
+                    ids.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not a journal file, for example an incomplete image
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Mutation of filesystem that is not journaled record by record
+     */
+    interface Mutation {
+
+        void apply() throws IOException;
+    }
+
+    /**
+     * Must be called before any journaled mutation, and released with {@link #unlock()} once mutation is done
+     */
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * @return position of record end, to be provided to {@link #commit(long)}
+     */
+    long logCreate(Path path, boolean directory, boolean createParents) {
+        begin(CREATE, path.toString());
+        records.putByte((byte) ((directory ? 1 : 0) | (createParents ? 2 : 0)));
+        return end();
+    }
+
+    long logCopy(Path source, Path target, boolean replace) {
+        begin(COPY, source.toString());
+        records.putString(target.toString());
+        records.putByte((byte) (replace ? 1 : 0));
+        return end();
+    }
+
+    long logMove(Path source, Path target, boolean replace) {
+        begin(MOVE, source.toString());
+        records.putString(target.toString());
+        records.putByte((byte) (replace ? 1 : 0));
+        return end();
+    }
+
+    long logDelete(Path path) {
+        begin(DELETE, path.toString());
+        return end();
+    }
+
+    long logTruncate(Entry entry, long size) {
+        checkLocked();
+        if (entry.isDeleted()) {
+            return appended;
+        }
+        begin(TRUNCATE, entry.getPath());
+        records.putLong(size);
+        return end();
+    }
+
+    /**
+     * Journals a range of file content, which is read from file once written
+     *
+     * @param entry written file
+     * @param position start of written range
+     * @param length length of written range
+     * @return position of record end
+     */
+    long logWrite(Entry entry, long position, long length) {
+        checkLocked();
+        if (entry.isDeleted() || length <= 0) {
+            return appended;
+        }
+        String path = entry.getPath();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, MAX_WRITE_RECORD));
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = entry.getData().read(position, buffer);
+            if (read <= 0) {
+                break;
+            }
+            begin(WRITE, path);
+            records.putLong(position);
+            records.put(buffer.array(), 0, read);
+            end();
+            position += read;
+        }
+        return appended;
+    }
+
+    private void begin(byte type, String path) {
+        checkLocked();
+        recordStart = records.size();
+        // record header is set once payload size is known
+        records.putInt(0);
+        records.putInt(0);
+        records.putByte(type);
+        records.putString(path);
+    }
+
+    private long end() {
+        int length = records.size() - recordStart - 8;
+        CRC32 crc = new CRC32();
+        crc.update(records.array(), recordStart + 8, length);
+        ByteBuffer.wrap(records.array(), recordStart, 8).putInt(length).putInt((int) crc.getValue());
+        appended += length + 8;
+        return appended;
+    }
+
+    private void checkLocked() {
+        if (!lock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("journal lock must be held");
+        }
+    }
+
+    /**
+     * Waits until records are durable, records appended concurrently by other threads are forced at once by a
+     * single thread. Does nothing while journal lock is held, since records are then committed once lock is
+     * released by outermost mutation.
+     *
+     * @param position position of record end
+     * @throws IOException if journal can't be written, in which case journal fails all further commits
+     */
+    void commit(long position) throws IOException {
+        if (lock.isHeldByCurrentThread()) {
+            return;
+        }
+        synchronized (sync) {
+            while (true) {
+                checkFailure();
+                if (position <= durable) {
+                    return;
+                }
+                if (!syncing) {
+                    syncing = true;
+                    break;
+                }
+                awaitSync();
+            }
+        }
+        // this thread forces all pending records, including the ones of threads waiting for it
+        long forced = durable;
+        IOException error = null;
+        try {
+            forced = flush();
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            endSync(forced, error);
+        }
+        if (compactionThreshold < segmentSize && compacting.compareAndSet(false, true)) {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compact();
+                }
+            });
+        }
+    }
+
+    /**
+     * Applies a mutation that is not journaled record by record, then starts a new segment with an image of
+     * filesystem, thus filesystem is recovered with mutation applied. All other journaled mutations are blocked
+     * until image is written, which costs as much as filesystem size.
+     * <p>
+     * Image is written even when mutation fails, since it may have been partially applied.
+     *
+     * @param mutation mutation
+     * @throws IOException if mutation fails, or if image can't be written, in which case journal fails all further
+     * commits, since it can't recover filesystem anymore
+     */
+    void rewrite(Mutation mutation) throws IOException {
+        synchronized (compaction) {
+            rewriteLocked(mutation);
+        }
+    }
+
+    private void rewriteLocked(Mutation mutation) throws IOException {
+        beginSync();
+        long forced = durable;
+        IOException error = null;
+        lock.lock();
+        try {
+            try {
+                forced = flush();
+            } catch (IOException e) {
+                error = e;
+                throw e;
+            }
+            try {
+                mutation.apply();
+            } finally {
+                try {
+                    long imageId = segmentId + 1;
+                    writeImage(fs.getRootEntry(), imageId);
+                    segment.close();
+                    segmentId = imageId;
+                    segment = FileChannel.open(directory.resolve(SEGMENT_PREFIX + imageId),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                    segmentSize = 0;
+                    deleteBefore(imageId);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        } finally {
+            lock.unlock();
+            endSync(forced, error);
+        }
+        if (null != error) {
+            throw error;
+        }
+    }
+
+    /**
+     * Writes and forces pending records to current segment, must be called by syncing thread
+     *
+     * @return position of last record forced
+     */
+    private long flush() throws IOException {
+        byte[] batch;
+        int size;
+        long position;
+        lock.lock();
+        try {
+            batch = records.array();
+            size = records.size();
+            position = appended;
+            records = new RecordBuffer();
+        } finally {
+            lock.unlock();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(batch, 0, size);
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+        segment.force(false);
+        segmentSize += size;
+        return position;
+    }
+
+    /**
+     * Starts a new segment and writes an image of filesystem at start of this segment, older segments and images
+     * are then deleted.
+     * <p>
+     * Mutations are only blocked while taking a snapshot, which costs the same whatever filesystem size, image is
+     * then written from a fork of this snapshot, whose directories are copied one at a time when first listed.
+     */
+    private void compact() {
+        try {
+            synchronized (compaction) {
+                compactLocked();
+            }
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    private void compactLocked() {
+        beginSync();
+        long forced = durable;
+        IOException error = null;
+        Snapshot snapshot = null;
+        long imageId = 0;
+        lock.lock();
+        try {
+            forced = flush();
+            segment.close();
+            imageId = ++segmentId;
+            segment = FileChannel.open(directory.resolve(SEGMENT_PREFIX + imageId),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            segmentSize = 0;
+            snapshot = fs.snapshot();
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            lock.unlock();
+            endSync(forced, error);
+        }
+        if (null == snapshot) {
+            return;
+        }
+        try {
+            // fork is not charged against space of filesystem, as it only shares file blocks
+            Entry root = snapshot.fork(new Space(0));
+            try {
+                writeImage(root, imageId);
+                deleteBefore(imageId);
+            } catch (IOException e) {
+                // journal remains valid, previous image and segments are kept
+            } finally {
+                release(root);
+                snapshot.releaseFork();
+            }
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private void writeImage(Entry snapshot, long imageId) throws IOException {
+        Path tmp = directory.resolve(IMAGE_PREFIX + imageId + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            FileSystemImage.save(snapshot, fs.getBlockSize(), channel);
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(IMAGE_PREFIX + imageId), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes segments and images that are older than an image
+     */
+    private void deleteBefore(long imageId) throws IOException {
+        for (long id : list(directory, SEGMENT_PREFIX)) {
+            if (id < imageId) {
+                Files.deleteIfExists(directory.resolve(SEGMENT_PREFIX + id));
+            }
+        }
+        for (long id : list(directory, IMAGE_PREFIX)) {
+            if (id < imageId) {
+                Files.deleteIfExists(directory.resolve(IMAGE_PREFIX + id));
+            }
+        }
+    }
+
+    private static void release(Entry root) {
+        Entry e;
+        while (null != (e = root.getEntries())) {
+            e.delete();
+        }
+    }
+
+    /**
+     * Forces pending records and closes journal, further commits fail
+     *
+     * @throws IOException if pending records can't be written
+     */
+    void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        beginSync();
+        long forced = durable;
+        IOException error = null;
+        try {
+            if (null == failure) {
+                forced = flush();
+            }
+            segment.close();
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            endSync(forced, null == error ? new ClosedChannelException() : error);
+        }
+    }
+
+    private void beginSync() {
+        synchronized (sync) {
+            while (syncing) {
+                awaitSync();
+            }
+            syncing = true;
+        }
+    }
+
+    private void endSync(long forced, IOException error) {
+        synchronized (sync) {
+            syncing = false;
+            durable = Math.max(durable, forced);
+            if (null == failure && null != error) {
+                failure = error;
+            }
+            sync.notifyAll();
+        }
+    }
+
+    // caller must hold sync monitor, commits are not interruptible since mutation has already been applied
+    private void awaitSync() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                sync.wait();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // caller must hold sync monitor
+    private void checkFailure() throws IOException {
+        if (null != failure) {
+            throw new IOException("journal failure, filesystem is not durable anymore", failure);
+        }
+    }
+
+    /**
+     * Growable buffer of records not yet written to segment
+     */
+    private static final class RecordBuffer {
+
+        private byte[] bytes = new byte[4096];
+        private int size = 0;
+
+        private int size() {
+            return size;
+        }
+
+        private byte[] array() {
+            return bytes;
+        }
+
+        private void putByte(byte value) {
+            ensure(1)[size++] = value;
+        }
+
+        private void putInt(int value) {
+            ByteBuffer.wrap(ensure(4), size, 4).putInt(value);
+            size += 4;
+        }
+
+        private void putLong(long value) {
+            ByteBuffer.wrap(ensure(8), size, 8).putLong(value);
+            size += 8;
+        }
+
+        private void putString(String value) {
+            byte[] encoded = value.getBytes(FileSystemImage.UTF_8);
+            putInt(encoded.length);
+            put(encoded, 0, encoded.length);
+        }
+
+        private void put(byte[] src, int offset, int length) {
+            System.arraycopy(src, offset, ensure(length), size, length);
+            size += length;
+        }
+
+        private byte[] ensure(int length) {
+            if (bytes.length - size < length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + length, bytes.length * 2));
+            }
+            return bytes;
+        }
+    }
+}
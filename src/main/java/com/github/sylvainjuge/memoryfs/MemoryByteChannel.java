@@ -7,86 +7,160 @@ import java.util.Objects;
 
 import static com.github.sylvainjuge.memoryfs.ParamAssert.checkNotNull;
 
+/**
+ * Byte channel over file data, reads and writes are done at channel position directly on file blocks, thus
+ * position can be set anywhere in file, including past its end.
+ * <p>
+ * Read-only channels read a snapshot of file content as it was when channel was opened, thus they are not affected
+ * by concurrent writes and never block writers. Snapshot content is shared with file until file is modified
+ * (copy-on-write), and released when channel is closed. Channels that are both readable and writable read file
+ * content directly, thus file can be updated in place.
+ */
 public class MemoryByteChannel implements SeekableByteChannel {
 
-    private boolean open;
+    private volatile boolean open;
+
+    // thread safety : synchronized on instance for r/w
     private long position;
+    private final Block.Cursor cursor = new Block.Cursor();
 
-    private final WritableByteChannel writeChannel;
-    private final ReadableByteChannel readChannel;
+    private final boolean readable;
+    private final boolean writable;
     private final FileData data;
 
-    private MemoryByteChannel(FileData data, boolean readOnly, boolean append) {
-        this.data = checkNotNull(data, "file data");
+    // null when writes are not journaled
+    private final Entry entry;
+    private final Journal journal;
+
+    private MemoryByteChannel(FileData data, Entry entry, Journal journal, boolean readable, boolean writable, boolean append) {
+        checkNotNull(data, "file data");
+        this.data = writable ? data : FileData.copy(data);
+        this.entry = entry;
+        this.journal = journal;
         this.open = true;
-        if (readOnly) {
-            writeChannel = null;
-            readChannel = Channels.newChannel(data.asInputStream());
-        } else {
-            readChannel = null;
-            if (append) {
-                position = data.size();
-            } else {
-                data.truncate(0);
-            }
-            writeChannel = Channels.newChannel(data.asOutputStream());
+        this.readable = readable;
+        this.writable = writable;
+        if (append) {
+            position = data.size();
         }
     }
 
     public static MemoryByteChannel newReadChannel(FileData data) {
-        return new MemoryByteChannel(data, true, false);
+        return new MemoryByteChannel(data, null, null, true, false, false);
     }
 
+    /**
+     * @param data file data
+     * @param append true if channel position is initially at end of file, file is truncated otherwise
+     * @return new write-only channel
+     */
     public static MemoryByteChannel newWriteChannel(FileData data, boolean append) {
-        return new MemoryByteChannel(data, false, append);
+        MemoryByteChannel channel = new MemoryByteChannel(data, null, null, false, true, append);
+        if (!append) {
+            data.truncate(0);
+        }
+        return channel;
+    }
+
+    /**
+     * @param entry file entry
+     * @param journal journal of file writes, null if writes are not journaled
+     * @param readable true if channel allows to read data
+     * @param writable true if channel allows to write data
+     * @param append true if channel position is initially at end of file, only allowed for write-only channels
+     * @return new channel
+     */
+    static MemoryByteChannel newChannel(Entry entry, Journal journal, boolean readable, boolean writable, boolean append) {
+        if (!readable && !writable) {
+            throw new IllegalArgumentException("channel must be readable or writable");
+        }
+        if (append && (readable || !writable)) {
+            throw new IllegalArgumentException("append only allowed for write-only channels");
+        }
+        return new MemoryByteChannel(entry.getData(), entry, journal, readable, writable, append);
     }
 
     @Override
     public int read(ByteBuffer dst) throws IOException {
-        checkOpen();
-        checkCanRead();
-        int read = readChannel.read(dst);
-        position += read;
-        return read;
+        try {
+            synchronized (this) {
+                checkOpen();
+                checkCanRead();
+                int read = data.read(position, dst, cursor);
+                if (0 < read) {
+                    position += read;
+                }
+                return read;
+            }
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
     }
 
     @Override
     public int write(ByteBuffer src) throws IOException {
-        Objects.requireNonNull(src, "source buffer");
-        // all writes are sequential
-        synchronized (this) {
-            checkOpen();
-            checkCanWrite();
-            int written = writeChannel.write(src);
-            position += written;
+        try {
+            Objects.requireNonNull(src, "source buffer");
+            int written;
+            long logged = 0;
+            // space is borrowed from shared budget before taking any lock, as it may wait for other filesystems
+            long prepared = data.prepareWrite(position(), src.remaining());
+            // journal lock is always taken before channel lock, thus records are in the same order as writes
+            if (null != journal) {
+                journal.lock();
+            }
+            try {
+                // all writes are sequential
+                synchronized (this) {
+                    checkOpen();
+                    checkCanWrite();
+                    written = data.write(position, src, cursor);
+                    if (null != journal) {
+                        logged = journal.logWrite(entry, position, written);
+                    }
+                    position += written;
+                }
+            } finally {
+                if (null != journal) {
+                    journal.unlock();
+                }
+                data.settle(prepared);
+            }
+            if (null != journal) {
+                journal.commit(logged);
+            }
             return written;
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
         }
     }
 
     private void checkCanRead() {
-        if (null == readChannel) {
+        if (!readable) {
             throw new NonReadableChannelException();
         }
     }
 
     private void checkCanWrite() {
-        if (null == writeChannel) {
+        if (!writable) {
             throw new NonWritableChannelException();
         }
     }
 
     @Override
-    public long position() throws IOException {
+    public synchronized long position() throws IOException {
         return position;
     }
 
     @Override
     public SeekableByteChannel position(long newPosition) throws IOException {
         checkOpen();
-        if (newPosition < 0 || data.size() <= newPosition) {
+        if (newPosition < 0) {
             throw new IllegalArgumentException("position out of bounds : " + newPosition);
         }
-        this.position = newPosition;
+        synchronized (this) {
+            this.position = newPosition;
+        }
         return this;
     }
 
@@ -97,16 +171,38 @@ public class MemoryByteChannel implements SeekableByteChannel {
 
     @Override
     public SeekableByteChannel truncate(long newSize) throws IOException {
-        checkOpen();
-        checkCanWrite();
-        if (newSize < 0) {
-            throw new IllegalArgumentException("can't truncate to negative size");
-        }
-        data.truncate((int) newSize);
-        if (data.size() < position) {
-            position = data.size();
+        try {
+            checkOpen();
+            checkCanWrite();
+            if (newSize < 0) {
+                throw new IllegalArgumentException("can't truncate to negative size");
+            }
+            long logged = 0;
+            if (null != journal) {
+                journal.lock();
+            }
+            try {
+                synchronized (this) {
+                    data.truncate(newSize);
+                    if (data.size() < position) {
+                        position = data.size();
+                    }
+                    if (null != journal) {
+                        logged = journal.logTruncate(entry, newSize);
+                    }
+                }
+            } finally {
+                if (null != journal) {
+                    journal.unlock();
+                }
+            }
+            if (null != journal) {
+                journal.commit(logged);
+            }
+            return this;
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
         }
-        return this;
     }
 
     @Override
@@ -116,19 +212,13 @@ public class MemoryByteChannel implements SeekableByteChannel {
 
     @Override
     public void close() throws IOException {
-        if (! open) {
-          return;
-        }
-        
-        if (writeChannel != null) {
-          writeChannel.close();
-        }
-        
-        if (readChannel != null) {
-          readChannel.close();
+        synchronized (this) {
+            if (open && !writable) {
+                // old file blocks are released once no longer used by any snapshot
+                data.release();
+            }
+            this.open = false;
         }
-        
-        this.open = false;
     }
 
     private void checkOpen() throws ClosedChannelException {
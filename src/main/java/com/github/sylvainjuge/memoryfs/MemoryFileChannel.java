@@ -0,0 +1,573 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.util.Objects;
+
+import static com.github.sylvainjuge.memoryfs.ParamAssert.checkNotNull;
+
+/**
+ * File channel over file data, reads and writes are done directly on file blocks.
+ * <p>
+ * Transfers to or from other channels read and write file blocks directly, and transfers between two memory files
+ * of the same filesystem share file blocks instead of copying them.
+ * <p>
+ * Limitations :
+ * <ul>
+ * <li>memory-mapped buffers are not backed by any file descriptor, thus {@link MappedByteBuffer#force()} and
+ * {@link MappedByteBuffer#load()} do nothing</li>
+ * <li>file locks are only advisory, they do not prevent any other channel to access file</li>
+ * <li>when filesystem is journaled, changes made through memory-mapped buffers are not journaled</li>
+ * </ul>
+ */
+public class MemoryFileChannel extends FileChannel {
+
+    // thread safety : synchronized on instance for r/w
+    private long position;
+    private final Block.Cursor cursor = new Block.Cursor();
+
+    private final boolean readable;
+    private final boolean writable;
+    private final boolean append;
+    private final FileData data;
+
+    // null when writes are not journaled
+    private final Entry entry;
+    private final Journal journal;
+
+    private MemoryFileChannel(FileData data, Entry entry, Journal journal, boolean readable, boolean writable, boolean append) {
+        this.data = checkNotNull(data, "file data");
+        this.entry = entry;
+        this.journal = journal;
+        this.readable = readable;
+        this.writable = writable;
+        this.append = append;
+        this.position = 0;
+    }
+
+    /**
+     * @param data file data
+     * @param readable true if channel allows to read data
+     * @param writable true if channel allows to write data
+     * @param append true if writes are made at end of file, only allowed for write-only channels
+     * @return new channel, with position at beginning of file
+     */
+    public static MemoryFileChannel newChannel(FileData data, boolean readable, boolean writable, boolean append) {
+        checkMode(readable, writable, append);
+        return new MemoryFileChannel(data, null, null, readable, writable, append);
+    }
+
+    /**
+     * @param entry file entry
+     * @param journal journal of file writes, null if writes are not journaled
+     * @param readable true if channel allows to read data
+     * @param writable true if channel allows to write data
+     * @param append true if writes are made at end of file, only allowed for write-only channels
+     * @return new channel, with position at beginning of file
+     */
+    static MemoryFileChannel newChannel(Entry entry, Journal journal, boolean readable, boolean writable, boolean append) {
+        checkMode(readable, writable, append);
+        return new MemoryFileChannel(entry.getData(), entry, journal, readable, writable, append);
+    }
+
+    private static void checkMode(boolean readable, boolean writable, boolean append) {
+        if (!readable && !writable) {
+            throw new IllegalArgumentException("channel must be readable or writable");
+        }
+        if (append && (readable || !writable)) {
+            throw new IllegalArgumentException("append only allowed for write-only channels");
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        try {
+            synchronized (this) {
+                checkOpen();
+                checkCanRead();
+                int read = data.read(position, dst, cursor);
+                if (0 < read) {
+                    position += read;
+                }
+                return read;
+            }
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        try {
+            checkRange(dsts, offset, length);
+            synchronized (this) {
+                checkOpen();
+                checkCanRead();
+                long total = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    int read = data.read(position, dsts[i], cursor);
+                    if (read < 0) {
+                        return 0 == total ? -1 : total;
+                    }
+                    position += read;
+                    total += read;
+                    if (dsts[i].hasRemaining()) {
+                        break;
+                    }
+                }
+                return total;
+            }
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        try {
+            checkPosition(position);
+            checkOpen();
+            checkCanRead();
+            return data.read(position, dst);
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        try {
+            Objects.requireNonNull(src, "source buffer");
+            int written;
+            long logged;
+            long prepared = prepareWrite(src.remaining());
+            lockJournal();
+            try {
+                synchronized (this) {
+                    checkOpen();
+                    checkCanWrite();
+                    written = src.remaining();
+                    if (append) {
+                        position = data.append(src);
+                    } else {
+                        position += data.write(position, src, cursor);
+                    }
+                    logged = logWrite(position - written, written);
+                }
+            } finally {
+                unlockJournal();
+                data.settle(prepared);
+            }
+            commitJournal(logged);
+            return written;
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        try {
+            checkRange(srcs, offset, length);
+            long total = 0;
+            long logged = 0;
+            long remaining = 0;
+            for (int i = offset; i < offset + length; i++) {
+                remaining += srcs[i].remaining();
+            }
+            long prepared = prepareWrite(remaining);
+            lockJournal();
+            try {
+                synchronized (this) {
+                    checkOpen();
+                    checkCanWrite();
+                    for (int i = offset; i < offset + length; i++) {
+                        int written = srcs[i].remaining();
+                        if (append) {
+                            position = data.append(srcs[i]);
+                        } else {
+                            position += data.write(position, srcs[i], cursor);
+                        }
+                        logged = logWrite(position - written, written);
+                        total += written;
+                    }
+                }
+            } finally {
+                unlockJournal();
+                data.settle(prepared);
+            }
+            commitJournal(logged);
+            return total;
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        try {
+            Objects.requireNonNull(src, "source buffer");
+            checkPosition(position);
+            checkOpen();
+            checkCanWrite();
+            int written;
+            long logged;
+            long prepared = data.prepareWrite(position, src.remaining());
+            lockJournal();
+            try {
+                written = data.write(position, src);
+                logged = logWrite(position, written);
+            } finally {
+                unlockJournal();
+                data.settle(prepared);
+            }
+            commitJournal(logged);
+            return written;
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        checkPosition(newPosition);
+        checkOpen();
+        synchronized (this) {
+            this.position = newPosition;
+        }
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        return data.size();
+    }
+
+    @Override
+    public FileChannel truncate(long newSize) throws IOException {
+        try {
+            if (newSize < 0) {
+                throw new IllegalArgumentException("can't truncate to negative size");
+            }
+            checkOpen();
+            checkCanWrite();
+            long logged;
+            lockJournal();
+            try {
+                synchronized (this) {
+                    data.truncate(newSize);
+                    if (newSize < position) {
+                        position = newSize;
+                    }
+                    logged = logTruncate(newSize);
+                }
+            } finally {
+                unlockJournal();
+            }
+            commitJournal(logged);
+            return this;
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        // nothing to do, all changes are immediately visible
+        checkOpen();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        try {
+            checkPosition(position);
+            checkCount(count);
+            checkOpen();
+            checkCanRead();
+            if (target instanceof MemoryFileChannel) {
+                return ((MemoryFileChannel) target).transferIn(data, position, count);
+            }
+            return data.transferTo(position, count, target);
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        try {
+            checkPosition(position);
+            checkCount(count);
+            checkOpen();
+            checkCanWrite();
+            long transferred;
+            long logged;
+            long prepared = data.prepareWrite(position, transferSize(src, count));
+            lockJournal();
+            try {
+                if (data.size() < position) {
+                    return 0;
+                }
+                if (src instanceof MemoryFileChannel) {
+                    transferred = ((MemoryFileChannel) src).transferOut(data, position, count);
+                } else {
+                    transferred = data.transferFrom(src, position, count);
+                }
+                logged = logWrite(position, transferred);
+            } finally {
+                unlockJournal();
+                data.settle(prepared);
+            }
+            commitJournal(logged);
+            return transferred;
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    /**
+     * Writes content of another file at this channel position
+     */
+    private long transferIn(FileData source, long sourcePosition, long count) throws IOException {
+        long transferred;
+        long logged;
+        long prepared = prepareWrite(Math.min(count, Math.max(0, source.size() - sourcePosition)));
+        lockJournal();
+        try {
+            synchronized (this) {
+                checkOpen();
+                checkCanWrite();
+                if (append) {
+                    position = data.size();
+                }
+                transferred = data.transferFrom(source, sourcePosition, position, count);
+                logged = logWrite(position, transferred);
+                position += transferred;
+            }
+        } finally {
+            unlockJournal();
+            data.settle(prepared);
+        }
+        commitJournal(logged);
+        return transferred;
+    }
+
+    /**
+     * Reads content of this channel at its position into another file
+     */
+    private long transferOut(FileData target, long targetPosition, long count) throws IOException {
+        synchronized (this) {
+            checkOpen();
+            checkCanRead();
+            long transferred = target.transferFrom(data, position, targetPosition, count);
+            position += transferred;
+            return transferred;
+        }
+    }
+
+    /**
+     * Maps file content into memory, returned buffer is a view of file content without any copy, except for
+     * {@link MapMode#PRIVATE} mode where the whole mapped range is copied eagerly into a private buffer, which is
+     * charged against file store space until it is garbage collected.
+     * <p>
+     * File content mapped in {@link MapMode#READ_WRITE} mode is never shared, thus copies and snapshots of this file
+     * copy mapped content instead of sharing it.
+     */
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        try {
+            Objects.requireNonNull(mode, "map mode");
+            checkPosition(position);
+            if (size < 0) {
+                throw new IllegalArgumentException("invalid size : " + size);
+            }
+            if (Integer.MAX_VALUE < size) {
+                // mapped buffers are indexed by int, even for private copies
+                throw new IllegalArgumentException("mapped size exceeds Integer.MAX_VALUE : " + size);
+            }
+            checkOpen();
+            checkCanRead();
+            if (MapMode.READ_ONLY != mode) {
+                checkCanWrite();
+            }
+            ByteBuffer buffer;
+            long logged = 0;
+            long prepared = writable ? data.prepareWrite(position, size) : 0;
+            lockJournal();
+            try {
+                synchronized (this) {
+                    if (data.size() < position + size) {
+                        if (!writable) {
+                            throw new IOException("channel not open for writing, can't extend file to mapped size");
+                        }
+                        // file grows up to mapped size, new content is filled with zeros
+                        data.write(position + size - 1, ByteBuffer.allocate(1));
+                        logged = logWrite(position + size - 1, 1);
+                    }
+                    if (MapMode.PRIVATE == mode) {
+                        buffer = null;
+                    } else {
+                        buffer = data.map(position, (int) size, MapMode.READ_WRITE == mode);
+                        if (MapMode.READ_ONLY == mode) {
+                            buffer = buffer.asReadOnlyBuffer();
+                        }
+                    }
+                }
+            } finally {
+                unlockJournal();
+                data.settle(prepared);
+            }
+            commitJournal(logged);
+            if (null == buffer) {
+                // changes through buffer must not be visible in file, thus content is copied, space is charged without
+                // holding any lock as it may have to wait for a shared budget
+                buffer = data.copyPrivate(position, (int) size);
+            }
+            if (!(buffer instanceof MappedByteBuffer)) {
+                // direct buffers are mapped buffers in all known JDK implementations
+                throw new UnsupportedOperationException("memory-mapping not supported");
+            }
+            return (MappedByteBuffer) buffer;
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return tryLock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        checkPosition(position);
+        checkCount(size);
+        checkOpen();
+        if (shared) {
+            checkCanRead();
+        } else {
+            checkCanWrite();
+        }
+        return new MemoryFileLock(this, position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        // nothing to release
+    }
+
+    /**
+     * Borrows space for a write at channel position before taking any lock, see {@link FileData#prepareWrite(long, long)}
+     */
+    private long prepareWrite(long length) throws IOException {
+        return data.prepareWrite(append ? data.size() : position(), length);
+    }
+
+    /**
+     * @return number of bytes a transfer from a channel is expected to write, zero when unknown
+     */
+    private static long transferSize(ReadableByteChannel src, long count) throws IOException {
+        if (src instanceof SeekableByteChannel) {
+            SeekableByteChannel channel = (SeekableByteChannel) src;
+            return Math.min(count, Math.max(0, channel.size() - channel.position()));
+        }
+        return 0;
+    }
+
+    // journal lock is always taken before channel lock, thus records are in the same order as writes
+
+    private void lockJournal() {
+        if (null != journal) {
+            journal.lock();
+        }
+    }
+
+    private void unlockJournal() {
+        if (null != journal) {
+            journal.unlock();
+        }
+    }
+
+    private long logWrite(long position, long length) {
+        return null == journal ? 0 : journal.logWrite(entry, position, length);
+    }
+
+    private long logTruncate(long size) {
+        return null == journal ? 0 : journal.logTruncate(entry, size);
+    }
+
+    private void commitJournal(long position) throws IOException {
+        if (null != journal) {
+            journal.commit(position);
+        }
+    }
+
+    private void checkCanRead() {
+        if (!readable) {
+            throw new NonReadableChannelException();
+        }
+    }
+
+    private void checkCanWrite() {
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private static void checkPosition(long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("position out of bounds : " + position);
+        }
+    }
+
+    private static void checkCount(long count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("negative count : " + count);
+        }
+    }
+
+    private static void checkRange(ByteBuffer[] buffers, int offset, int length) {
+        Objects.requireNonNull(buffers, "buffers");
+        if (offset < 0 || length < 0 || buffers.length - length < offset) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    private static class MemoryFileLock extends FileLock {
+
+        private volatile boolean valid;
+
+        private MemoryFileLock(FileChannel channel, long position, long size, boolean shared) {
+            super(channel, position, size, shared);
+            this.valid = true;
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid && channel().isOpen();
+        }
+
+        @Override
+        public void release() throws IOException {
+            if (!channel().isOpen()) {
+                throw new ClosedChannelException();
+            }
+            valid = false;
+        }
+    }
+}
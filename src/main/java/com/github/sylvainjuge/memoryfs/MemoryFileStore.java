@@ -9,23 +9,27 @@ public class MemoryFileStore extends FileStore {
 
     private final String name;
     private final boolean readOnly;
-    private long totalSpace = 0;
-    private long freeSpace = 0;
+    private final Space space;
+    private final ContentCache cache; // null when filesystem has no backing directory
 
-    private MemoryFileStore(String name, boolean readOnly, long capacity) {
+    private MemoryFileStore(String name, boolean readOnly, Space space, ContentCache cache) {
         this.name = name;
         this.readOnly = readOnly;
-        this.totalSpace = capacity;
-        this.freeSpace = capacity;
+        this.space = space;
+        this.cache = cache;
     }
 
     static class Builder {
         private long capacity = 0;
         private boolean readOnly = false;
         private String name = "";
+        private Budget budget = null;
+        private long reservation = 0;
+        private ContentCache cache = null;
 
         MemoryFileStore build() {
-            return new MemoryFileStore(name, readOnly, capacity);
+            Space space = null == budget ? new Space(capacity) : new Space(capacity, budget, reservation);
+            return new MemoryFileStore(name, readOnly, space, cache);
         }
 
         public Builder readOnly(boolean readOnly) {
@@ -37,12 +41,39 @@ public class MemoryFileStore extends FileStore {
             this.capacity = capacity;
             return this;
         }
+
+        /**
+         * @param budget budget shared with other stores, null if store only limited by its capacity
+         * @param reservation part of budget reserved for this store
+         * @return this builder
+         */
+        Builder budget(Budget budget, long reservation) {
+            this.budget = budget;
+            this.reservation = reservation;
+            return this;
+        }
+
+        /**
+         * @param cache cache of backing directory content, null if filesystem has no backing directory
+         * @return this builder
+         */
+        Builder cache(ContentCache cache) {
+            this.cache = cache;
+            return this;
+        }
     }
 
     static Builder builder() {
         return new Builder();
     }
 
+    /**
+     * @return space shared by all files of this store
+     */
+    Space getSpace() {
+        return space;
+    }
+
 
     @Override
     public String name() {
@@ -61,17 +92,17 @@ public class MemoryFileStore extends FileStore {
 
     @Override
     public long getTotalSpace() throws IOException {
-        return totalSpace;
+        return space.getCapacity();
     }
 
     @Override
     public long getUsableSpace() throws IOException {
-        return readOnly ? 0 : freeSpace;
+        return readOnly ? 0 : space.getUsable();
     }
 
     @Override
     public long getUnallocatedSpace() throws IOException {
-        return freeSpace;
+        return space.getFree();
     }
 
     @Override
@@ -84,13 +115,41 @@ public class MemoryFileStore extends FileStore {
         return false;
     }
 
+    /**
+     * @param type attribute view type, only {@link CacheAttributeView} is supported
+     * @return attribute view, null if not supported, or if filesystem has no backing directory
+     */
     @Override
     public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+        if (null != cache && type.isAssignableFrom(CacheAttributeView.class)) {
+            return type.cast(cache);
+        }
         return null;
     }
 
+    /**
+     * @param attribute attribute name, either {@code cache:budget}, {@code cache:size}, {@code cache:hits},
+     * {@code cache:misses} or {@code cache:evictions}, see {@link CacheAttributeView}
+     * @return attribute value, null if filesystem has no backing directory, or if attribute is not supported
+     */
     @Override
     public Object getAttribute(String attribute) throws IOException {
-        return null;
+        if (null == cache) {
+            return null;
+        }
+        switch (attribute) {
+            case "cache:budget":
+                return cache.budget();
+            case "cache:size":
+                return cache.size();
+            case "cache:hits":
+                return cache.hits();
+            case "cache:misses":
+                return cache.misses();
+            case "cache:evictions":
+                return cache.evictions();
+            default:
+                return null;
+        }
     }
 }
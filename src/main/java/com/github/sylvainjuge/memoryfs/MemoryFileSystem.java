@@ -1,6 +1,8 @@
 package com.github.sylvainjuge.memoryfs;
 
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.nio.file.spi.FileSystemProvider;
@@ -15,15 +17,31 @@ public class MemoryFileSystem extends FileSystem {
     static final String SEPARATOR = "/";
     static final String SCHEME = "memory";
 
-    private final MemoryFileSystemProvider provider;
+    private final AbstractMemoryFileSystemProvider provider;
     private final String id;
-    private final FileStore store;
+    private final MemoryFileStore store;
+    private final BlockStorage storage;
 
-    private final Entry rootEntry = Entry.newRoot();
+    private final Entry rootEntry;
     private final List<Path> rootDirectories;
 
     private AtomicBoolean isOpen;
 
+    // null when filesystem is not durable
+    private volatile Journal journal;
+
+    // snapshot this filesystem has been forked from, null when not forked
+    private final Snapshot template;
+
+    // null when filesystem has no lower layer
+    private final Overlay overlay;
+
+    // snapshot shared by filesystems forked from this one, replaced once this filesystem is modified
+    private Snapshot forkTemplate; // guarded by this
+
+    // null when path lookups are not cached
+    private final PathCache pathCache;
+
     static MemoryFileSystem asMemoryFileSystem(FileSystem fs) {
         if (fs instanceof MemoryFileSystem || null == fs) {
             return (MemoryFileSystem) fs;
@@ -31,21 +49,48 @@ public class MemoryFileSystem extends FileSystem {
         throw new ProviderMismatchException();
     }
 
-    private MemoryFileSystem(MemoryFileSystemProvider provider, String id, long capacity) {
+    private MemoryFileSystem(AbstractMemoryFileSystemProvider provider, String id, MemoryFileStore store, BlockStorage storage, Entry rootEntry, Snapshot template, Overlay overlay, PathCache pathCache) {
         this.provider = provider;
+        this.pathCache = pathCache;
+        this.template = template;
+        this.overlay = overlay;
+        this.rootEntry = rootEntry;
         this.id = id;
+        this.storage = storage;
         this.isOpen = new AtomicBoolean(true);
-        this.store = MemoryFileStore.builder().capacity(capacity).build();
+        this.store = store;
         this.rootDirectories = new ArrayList<>();
         this.rootDirectories.add(MemoryPath.createRoot(this));
     }
 
+    /**
+     * Storage used for file content
+     */
+    public enum Storage {
+        /**
+         * file content is stored in heap
+         */
+        HEAP,
+        /**
+         * file content is stored outside of heap, in direct memory, which is released when filesystem is closed
+         */
+        DIRECT
+    }
+
     static class Builder {
-        private final MemoryFileSystemProvider provider;
+        private final AbstractMemoryFileSystemProvider provider;
         private long capacity = 0;
+        private long reservation = 0;
+        private int blockSize = FileData.DEFAULT_BLOCK_SIZE;
+        private Storage storage = Storage.HEAP;
         private String id = "";
+        private FileSystemImage.Mapping image = null;
+        private Snapshot template = null;
+        private Path lower = null;
+        private long cacheBudget = 0;
+        private int lookupCache = PathCache.DEFAULT_CAPACITY;
 
-        private Builder(MemoryFileSystemProvider provider) {
+        private Builder(AbstractMemoryFileSystemProvider provider) {
             this.provider = provider;
         }
 
@@ -65,12 +110,199 @@ public class MemoryFileSystem extends FileSystem {
             return this;
         }
 
+        /**
+         * @param reservation part of provider budget reserved for this filesystem, ignored when provider has no
+         * budget, see {@link MemoryFileSystemProvider#MemoryFileSystemProvider(long)}
+         * @return this builder
+         */
+        public Builder reservation(long reservation) {
+            if (reservation < 0) {
+                throw new IllegalArgumentException("reservation can't be negative");
+            }
+            this.reservation = reservation;
+            return this;
+        }
+
+        /**
+         * @param image mapped image, which content is loaded lazily as initial content of filesystem
+         * @return this builder
+         */
+        Builder image(FileSystemImage.Mapping image) {
+            this.image = image;
+            return this;
+        }
+
+        /**
+         * Forks a snapshot : new filesystem initially has the content of snapshot, and shares its directories and
+         * file blocks with snapshot filesystem until they are modified. Thus creating a fork costs the same whatever
+         * template size, and each directory is only copied when first accessed.
+         * <p>
+         * Block size and storage of template filesystem are used, and snapshot is only released once all its forks
+         * are closed.
+         *
+         * @param template snapshot of template filesystem
+         * @return this builder
+         * @see MemoryFileSystemProvider#fork(MemoryFileSystem, String)
+         */
+        public Builder template(Snapshot template) {
+            if (null == template) {
+                throw new IllegalArgumentException("template is required");
+            }
+            this.template = template;
+            return this;
+        }
+
+        /**
+         * Mounts a directory as read-only lower layer : filesystem initially has the content of this directory,
+         * which is merged into filesystem tree when accessed, and all modifications are made in memory, see
+         * {@link #changeset()}.
+         *
+         * @param lower lower directory, which may belong to any filesystem, and must not be modified while mounted
+         * @return this builder
+         */
+        public Builder lower(Path lower) {
+            if (null == lower || !Files.isDirectory(lower)) {
+                throw new IllegalArgumentException("lower directory is required : " + lower);
+            }
+            this.lower = lower;
+            return this;
+        }
+
+        /**
+         * Uses lower layer as a read-through cache of a backing directory : content read from backing directory is
+         * cached up to a budget, beyond which content of least recently used files is evicted, and files are
+         * revalidated against size and last modification time of backing files when opened. Cache statistics are
+         * available through {@link CacheAttributeView}.
+         *
+         * @param budget maximum size of cached content in bytes
+         * @return this builder
+         * @see #lower(Path)
+         */
+        public Builder cache(long budget) {
+            if (budget <= 0) {
+                throw new IllegalArgumentException("cache budget must be strictly positive");
+            }
+            this.cacheBudget = budget;
+            return this;
+        }
+
+        /**
+         * Paths lookups are cached, which allows to resolve frequently used paths without walking filesystem tree.
+         * Cached lookups are invalidated when entry or any of its parent directories is deleted, moved or renamed.
+         *
+         * @param capacity maximum number of cached lookups, zero to disable cache
+         * @return this builder
+         */
+        public Builder lookupCache(int capacity) {
+            if (capacity < 0) {
+                throw new IllegalArgumentException("lookup cache capacity can't be negative");
+            }
+            this.lookupCache = capacity;
+            return this;
+        }
+
+        public Builder blockSize(int blockSize) {
+            if (blockSize <= 0) {
+                throw new IllegalArgumentException("block size must be strictly positive");
+            }
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        public Builder storage(Storage storage) {
+            if (null == storage) {
+                throw new IllegalArgumentException("storage is required");
+            }
+            this.storage = storage;
+            return this;
+        }
+
+        /**
+         * Configures filesystem from environment map provided to {@link MemoryFileSystemProvider}, unknown keys are
+         * ignored.
+         *
+         * @param env environment map, may be null
+         * @return this builder
+         */
+        Builder env(Map<String, ?> env) {
+            if (null == env) {
+                return this;
+            }
+            Object value = env.get(MemoryFileSystemProvider.ENV_ID);
+            if (null != value) {
+                id(value.toString());
+            }
+            value = env.get(MemoryFileSystemProvider.ENV_CAPACITY);
+            if (null != value) {
+                capacity(Long.parseLong(value.toString()));
+            }
+            value = env.get(MemoryFileSystemProvider.ENV_RESERVATION);
+            if (null != value) {
+                reservation(Long.parseLong(value.toString()));
+            }
+            value = env.get(MemoryFileSystemProvider.ENV_CACHE);
+            if (null != value) {
+                cache(Long.parseLong(value.toString()));
+            }
+            value = env.get(MemoryFileSystemProvider.ENV_BLOCK_SIZE);
+            if (null != value) {
+                blockSize(Integer.parseInt(value.toString()));
+            }
+            value = env.get(MemoryFileSystemProvider.ENV_STORAGE);
+            if (value instanceof Storage) {
+                storage((Storage) value);
+            } else if (null != value) {
+                storage(Storage.valueOf(value.toString().toUpperCase(Locale.ROOT)));
+            }
+            return this;
+        }
+
         public MemoryFileSystem build() {
-            return provider.registerFileSystem(new MemoryFileSystem(provider, id, capacity));
+            if ((null != image ? 1 : 0) + (null != template ? 1 : 0) + (null != lower ? 1 : 0) > 1) {
+                throw new IllegalStateException("only one of image, template or lower layer can be used");
+            }
+            if (0 < cacheBudget && null == lower) {
+                throw new IllegalStateException("cache requires a lower layer");
+            }
+            ContentCache cache = null == lower ? null : new ContentCache(cacheBudget);
+            MemoryFileStore store = MemoryFileStore.builder()
+                    .capacity(capacity)
+                    .budget(provider.getBudget(), reservation)
+                    .cache(cache)
+                    .build();
+            BlockStorage blockStorage;
+            try {
+                // forked files share blocks with template files, thus storage is shared
+                blockStorage = null == template ? BlockStorage.create(storage, blockSize) : template.getFileSystem().storage.share();
+            } catch (RuntimeException e) {
+                store.getSpace().close();
+                throw e;
+            }
+            Entry root = null;
+            Overlay overlay = null;
+            try {
+                if (null != template) {
+                    root = template.fork(store.getSpace());
+                } else if (null != lower) {
+                    overlay = new Overlay(lower, blockStorage, store.getSpace(), cache, 0 < cacheBudget);
+                    root = overlay.mount();
+                } else {
+                    root = null == image ? Entry.newRoot() : image.mount(blockStorage, store.getSpace());
+                }
+                return provider.registerFileSystem(new MemoryFileSystem(provider, id, store, blockStorage, root, template, overlay,
+                        0 == lookupCache ? null : new PathCache(lookupCache)));
+            } catch (RuntimeException e) {
+                if (null != template && null != root) {
+                    template.releaseFork();
+                }
+                store.getSpace().close();
+                blockStorage.close();
+                throw e;
+            }
         }
     }
 
-    public static Builder builder(MemoryFileSystemProvider provider) {
+    public static Builder builder(AbstractMemoryFileSystemProvider provider) {
         if (provider == null) {
             throw new IllegalArgumentException("provider must be provided");
         }
@@ -81,6 +313,61 @@ public class MemoryFileSystem extends FileSystem {
         return id;
     }
 
+    Space getSpace() {
+        return store.getSpace();
+    }
+
+    Entry getRootEntry() {
+        return rootEntry;
+    }
+
+    int getBlockSize() {
+        return storage.getBlockSize();
+    }
+
+    /**
+     * Applies a mutation that is not journaled record by record, on a journaled filesystem the mutation is then
+     * made durable with an image of filesystem
+     */
+    void rewrite(Journal.Mutation mutation) throws IOException {
+        Journal j = journal;
+        if (null == j) {
+            mutation.apply();
+        } else {
+            j.rewrite(mutation);
+        }
+    }
+
+    /**
+     * Makes this filesystem durable : its state is first recovered from journal directory, then all namespace
+     * mutations and file writes are journaled, see {@link Journal} for details. Snapshot rollback, images loading
+     * and checkpoints restore are followed by an image of whole filesystem, which blocks other mutations until
+     * written.
+     *
+     * @param directory journal directory, created if it does not exist
+     * @throws IOException if journal can't be read or opened
+     */
+    public void openJournal(Path directory) throws IOException {
+        openJournal(directory, Journal.DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @param directory journal directory, created if it does not exist
+     * @param compactionThreshold journal size in bytes that triggers compaction
+     * @throws IOException if journal can't be read or opened
+     * @see #openJournal(Path)
+     */
+    public void openJournal(Path directory, long compactionThreshold) throws IOException {
+        storage.checkOpen();
+        if (null != journal) {
+            throw new IllegalStateException("journal already open");
+        }
+        if (null != rootEntry.getEntries()) {
+            throw new IllegalStateException("journal can only be opened on an empty filesystem");
+        }
+        journal = Journal.open(this, directory, compactionThreshold);
+    }
+
     FileStore getFileStore(Path path) throws IOException {
         Entry entry = findEntry(path);
         if (null == entry) {
@@ -90,6 +377,137 @@ public class MemoryFileSystem extends FileSystem {
         return store;
     }
 
+    /**
+     * Saves all files and directories of this filesystem to a binary image, in a single sequential pass.
+     *
+     * @param channel channel where image is written, channel is not closed
+     * @throws IOException if image can't be written
+     */
+    public void save(WritableByteChannel channel) throws IOException {
+        storage.checkOpen();
+        FileSystemImage.save(rootEntry, storage.getBlockSize(), channel);
+    }
+
+    /**
+     * Loads files and directories from a binary image created with {@link #save(WritableByteChannel)}, loaded
+     * entries are added to root directory of this filesystem.
+     * <p>
+     * On a journaled filesystem, an image of whole filesystem is then written to journal, see
+     * {@link #openJournal(Path)}.
+     *
+     * @param channel channel where image is read, channel is not closed
+     * @throws IOException if image is not valid or can't be read
+     * @throws ConflictException if an entry of image root directory already exists in this filesystem
+     */
+    public void load(final ReadableByteChannel channel) throws IOException {
+        storage.checkOpen();
+        rewrite(new Journal.Mutation() {
+            @Override
+            public void apply() throws IOException {
+                FileSystemImage.load(rootEntry, storage, store.getSpace(), channel);
+            }
+        });
+    }
+
+    /**
+     * Takes a point-in-time snapshot of this filesystem, in constant time whatever the number of files, see
+     * {@link Snapshot} for details.
+     *
+     * @return snapshot, which allows to rollback this filesystem, or to list changes made since snapshot
+     */
+    public Snapshot snapshot() {
+        storage.checkOpen();
+        return Snapshot.create(this, rootEntry);
+    }
+
+    /**
+     * Lists changes made to the lower layer of this filesystem : created and modified entries are in memory, while
+     * deleted entries are whiteouts that hide lower entries. Created directories are listed without their content,
+     * and moved entries are listed as deleted then created.
+     *
+     * @return changes, sorted by path
+     * @throws IllegalStateException if this filesystem has no lower layer
+     * @see Builder#lower(Path)
+     */
+    public List<Snapshot.Change> changeset() {
+        storage.checkOpen();
+        if (null == overlay) {
+            throw new IllegalStateException("filesystem has no lower layer");
+        }
+        return overlay.changeset(this, rootEntry);
+    }
+
+    /**
+     * Forks this filesystem in constant time : new filesystem shares all directories and file blocks with this one
+     * until they are modified, see {@link Builder#template(Snapshot)}. Forks share a single snapshot of this
+     * filesystem, which is only replaced when this filesystem has been modified since previous fork.
+     *
+     * @param builder builder of new filesystem
+     * @return new filesystem, with current content of this filesystem
+     */
+    synchronized MemoryFileSystem fork(Builder builder) {
+        if (!isOpen()) {
+            throw new ClosedFileSystemException();
+        }
+        if (null == forkTemplate || !forkTemplate.isUnmodified()) {
+            if (null != forkTemplate) {
+                // released once its forks are closed
+                forkTemplate.close();
+            }
+            forkTemplate = snapshot();
+        }
+        return builder.template(forkTemplate).build();
+    }
+
+    /**
+     * Writes an incremental checkpoint of this filesystem : first checkpoint contains all files and directories,
+     * following ones only contain directories and file blocks modified since previous checkpoint. Thus a checkpoint
+     * costs as much as modifications since previous one, see {@link Checkpoint} for details.
+     * <p>
+     * Files mapped by writable memory-mapped buffers are part of every checkpoint, with all their blocks, since they may
+     * be modified through buffers at any time.
+     *
+     * @param channel channel where checkpoint is written, channel is not closed
+     * @throws IOException if checkpoint can't be written, next checkpoint then contains all files and directories
+     */
+    public void checkpoint(WritableByteChannel channel) throws IOException {
+        storage.checkOpen();
+        Checkpoint.write(rootEntry, storage.getBlockSize(), channel);
+    }
+
+    /**
+     * Restores files and directories from a chain of checkpoints created with
+     * {@link #checkpoint(WritableByteChannel)}, restored entries are added to root directory of this filesystem.
+     * <p>
+     * Restored filesystem starts a new chain, thus its first checkpoint contains all files and directories. On a
+     * journaled filesystem, an image of whole filesystem is then written to journal, see {@link #openJournal(Path)}.
+     *
+     * @param chain consecutive checkpoints, starting with a full checkpoint, channels are not closed
+     * @throws IOException if a checkpoint is not valid or can't be read, or if checkpoints are not consecutive
+     * @throws ConflictException if an entry of restored root directory already exists in this filesystem
+     */
+    public void restore(final List<? extends ReadableByteChannel> chain) throws IOException {
+        storage.checkOpen();
+        rewrite(new Journal.Mutation() {
+            @Override
+            public void apply() throws IOException {
+                Checkpoint.restore(rootEntry, storage, store.getSpace(), chain);
+            }
+        });
+    }
+
+    /**
+     * Merges consecutive checkpoints into a single one, without any filesystem. Merging a chain that starts with
+     * a full checkpoint creates a full checkpoint, which can replace the whole chain.
+     *
+     * @param chain consecutive checkpoints, channels are not closed
+     * @param channel channel where merged checkpoint is written, channel is not closed
+     * @throws IOException if a checkpoint is not valid or can't be read, or if checkpoints are not consecutive
+     */
+    public static void mergeCheckpoints(List<? extends ReadableByteChannel> chain, WritableByteChannel channel) throws IOException {
+        Checkpoint.merge(chain, channel);
+    }
+
     /**
      * @param path path
      * @return filesystem entry associated to this path, null if no such entry exists
@@ -100,21 +518,76 @@ public class MemoryFileSystem extends FileSystem {
             return rootEntry;
         }
 
-        Entry parentEntry = rootEntry;
-        Entry childEntry = null;
+        // stamp is read before walking tree, thus lookup is invalidated by any concurrent directory move, and lookups
+        // are not cached while a directory is being moved, since walk may then follow either old or new path
+        int stamp = rootEntry.getStructureStamp();
+        boolean cacheable = null != pathCache && Entry.isStable(stamp);
+        if (cacheable) {
+            PathCache.Lookup cached = pathCache.get(p, stamp);
+            if (null != cached) {
+                return cached.getEntry();
+            }
+        }
+
         Iterator<String> it = p.partsIterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        Entry entry = rootEntry;
+        Entry parentEntry = null;
+        String name = null;
         while (it.hasNext()) {
             String part = it.next();
-            childEntry = parentEntry.getChild(part);
-            if (null == childEntry) {
+            // read before looking up child, thus any child created concurrently invalidates missing path lookup
+            int modCount = entry.getModCount();
+            Entry child = entry.getChild(part);
+            if (null == child) {
+                // missing child is only cached when no child was being added while looking it up
+                if (cacheable && entry.isUnmodifiedSince(modCount) && stamp == rootEntry.getStructureStamp()) {
+                    pathCache.putAbsent(p, entry, parentEntry, name, modCount, stamp);
+                }
                 return null;
             }
-            parentEntry = childEntry;
+            parentEntry = entry;
+            name = part;
+            entry = child;
         }
-        return childEntry;
+        if (cacheable && stamp == rootEntry.getStructureStamp()) {
+            pathCache.put(p, entry, parentEntry, name, stamp);
+        }
+        return entry;
     }
 
     Entry copy(Path source, Path target, CopyOption... options) throws IOException {
+        // space is borrowed from shared budget before taking any lock, as it may wait for other filesystems
+        Entry sourceEntry = findEntry(source);
+        long prepared = null == sourceEntry || sourceEntry.isDirectory() ? 0 : store.getSpace().prepare(sourceEntry.size());
+        try {
+            return copyPrepared(source, target, options);
+        } finally {
+            store.getSpace().settle(prepared);
+        }
+    }
+
+    private Entry copyPrepared(Path source, Path target, CopyOption... options) throws IOException {
+        Journal j = journal;
+        if (null == j) {
+            return copyEntry(source, target, options);
+        }
+        Entry result;
+        long position;
+        j.lock();
+        try {
+            result = copyEntry(source, target, options);
+            position = j.logCopy(source.toAbsolutePath(), target.toAbsolutePath(), hasOption(REPLACE_EXISTING, options));
+        } finally {
+            j.unlock();
+        }
+        j.commit(position);
+        return result;
+    }
+
+    private Entry copyEntry(Path source, Path target, CopyOption... options) throws IOException {
         // Copies a single file/folder withint the same fs instance,
         // and does not perform recursive copy for folders (see Files#copy(...) for details)
 
@@ -162,6 +635,23 @@ public class MemoryFileSystem extends FileSystem {
     }
 
     void move(Path source, Path target, CopyOption... options) throws IOException {
+        Journal j = journal;
+        if (null == j) {
+            moveEntry(source, target, options);
+            return;
+        }
+        long position;
+        j.lock();
+        try {
+            moveEntry(source, target, options);
+            position = j.logMove(source.toAbsolutePath(), target.toAbsolutePath(), hasOption(REPLACE_EXISTING, options));
+        } finally {
+            j.unlock();
+        }
+        j.commit(position);
+    }
+
+    private void moveEntry(Path source, Path target, CopyOption... options) throws IOException {
 
         Entry sourceEntry = findEntry(source);
         if (null == sourceEntry) {
@@ -176,15 +666,15 @@ public class MemoryFileSystem extends FileSystem {
             }
             Entry targetParentEntry = targetEntry.getParent();
             if (sourceEntry.isDirectory()) {
-                Entry item = sourceEntry.getEntries();
-                while (null != item) {
+                Entry item;
+                while (null != (item = sourceEntry.getEntries())) {
                     // TODO : what happens when there is a name conflict, do we overwrite too ?
                     item.move(targetEntry);
                 }
                 sourceEntry.delete();
             } else {
                 targetEntry.delete();
-                sourceEntry.move(targetParentEntry);
+                sourceEntry.moveTo(targetParentEntry, target.getFileName().toString());
             }
         } else {
             Entry targetParentEntry = findEntry(target.getParent());
@@ -193,8 +683,8 @@ public class MemoryFileSystem extends FileSystem {
             }
             String targetFileName = target.getFileName().toString();
 
-            sourceEntry.rename(targetFileName);
-            sourceEntry.move(targetParentEntry);
+            // rename and move at once, thus source is never visible at an intermediate location
+            sourceEntry.moveTo(targetParentEntry, targetFileName);
         }
 
     }
@@ -203,7 +693,53 @@ public class MemoryFileSystem extends FileSystem {
         createEntry(path, true, false);
     }
 
-    private Entry createEntry(Path path, boolean directory, boolean createParents) throws IOException {
+    void delete(Path path) throws IOException {
+        Journal j = journal;
+        if (null == j) {
+            deleteEntry(path);
+            return;
+        }
+        long position;
+        j.lock();
+        try {
+            deleteEntry(path);
+            position = j.logDelete(path.toAbsolutePath());
+        } finally {
+            j.unlock();
+        }
+        j.commit(position);
+    }
+
+    private void deleteEntry(Path path) throws IOException {
+        Entry entry = findEntry(path);
+        if (null == entry) {
+            throw new NoSuchFileException(path.toString());
+        }
+        if (!entry.delete()) {
+            // concurrently deleted
+            throw new NoSuchFileException(path.toString());
+        }
+    }
+
+    Entry createEntry(Path path, boolean directory, boolean createParents) throws IOException {
+        Journal j = journal;
+        if (null == j) {
+            return createNewEntry(path, directory, createParents);
+        }
+        Entry result;
+        long position;
+        j.lock();
+        try {
+            result = createNewEntry(path, directory, createParents);
+            position = j.logCreate(path.toAbsolutePath(), directory, createParents);
+        } finally {
+            j.unlock();
+        }
+        j.commit(position);
+        return result;
+    }
+
+    private Entry createNewEntry(Path path, boolean directory, boolean createParents) throws IOException {
         Path absolutePath = path.toAbsolutePath();
         Path parent = absolutePath.getParent();
         Entry parentEntry = findEntry(parent);
@@ -216,15 +752,10 @@ public class MemoryFileSystem extends FileSystem {
             // 1st entry is always a child of root
             parentEntry = rootEntry;
 
+            // parent directories may be created concurrently, existing ones are reused
             for (Path dir : parent) {
-                Entry dirEntry = findEntry(dir);
-                if (null == dirEntry) {
-                    String name = MemoryPath.asMemoryPath(dir.getFileName()).getPath();
-                    dirEntry = Entry.newDirectory(parentEntry, name);
-                } else if (!dirEntry.isDirectory()) {
-                    throw new ConflictException("conflict : path exists and is not a directory :" + dir);
-                }
-                parentEntry = dirEntry;
+                String name = MemoryPath.asMemoryPath(dir.getFileName()).getPath();
+                parentEntry = Entry.getOrCreateDirectory(parentEntry, name);
             }
         }
 
@@ -233,9 +764,12 @@ public class MemoryFileSystem extends FileSystem {
         }
 
         String name = MemoryPath.asMemoryPath(absolutePath.getFileName()).getPath();
+        if (directory && createParents) {
+            return Entry.getOrCreateDirectory(parentEntry, name);
+        }
         return directory ?
                 Entry.newDirectory(parentEntry, name) :
-                Entry.newFile(parentEntry, name);
+                Entry.newFile(parentEntry, name, FileData.newEmpty(storage, store.getSpace()));
 
     }
 
@@ -247,6 +781,8 @@ public class MemoryFileSystem extends FileSystem {
         } else if (!startFolder.isDirectory()) {
             throw new NotDirectoryException("not a valid directory : " + path);
         }
+        // lower directory is merged when stream is opened rather than while iterating, which can't throw I/O errors
+        startFolder.getEntries();
 
         return new DirectoryStream<Path>() {
 
@@ -270,6 +806,22 @@ public class MemoryFileSystem extends FileSystem {
     public void close() throws IOException {
         if (isOpen.getAndSet(false)) {
             provider.removeFileSystem(id);
+            synchronized (this) {
+                if (null != forkTemplate) {
+                    forkTemplate.close();
+                }
+            }
+            if (null != template) {
+                template.releaseFork();
+            }
+            try {
+                if (null != journal) {
+                    journal.close();
+                }
+            } finally {
+                storage.close();
+                store.getSpace().close();
+            }
         }
     }
 
@@ -295,7 +847,7 @@ public class MemoryFileSystem extends FileSystem {
 
     @Override
     public Iterable<FileStore> getFileStores() {
-        return Collections.singletonList(store);
+        return Collections.<FileStore>singletonList(store);
     }
 
     @Override
@@ -305,13 +857,7 @@ public class MemoryFileSystem extends FileSystem {
 
     @Override
     public Path getPath(String first, String... more) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(first);
-        for (String s : more) {
-            sb.append(SEPARATOR);
-            sb.append(s);
-        }
-        return MemoryPath.create(this, sb.toString());
+        return MemoryPath.create(this, first, more);
     }
 
     @Override
@@ -335,37 +881,92 @@ public class MemoryFileSystem extends FileSystem {
     }
 
     public MemoryByteChannel newByteChannel(Path path, Set<? extends OpenOption> options) throws IOException {
+        ChannelTarget target = resolveChannelTarget(path, options);
+        MemoryByteChannel channel = MemoryByteChannel.newChannel(target.entry, journal, target.read, target.write, target.append);
+        if (target.truncate) {
+            channel.truncate(0);
+        }
+        return channel;
+    }
+
+    public MemoryFileChannel newFileChannel(Path path, Set<? extends OpenOption> options) throws IOException {
+        ChannelTarget target = resolveChannelTarget(path, options);
+        MemoryFileChannel channel = MemoryFileChannel.newChannel(target.entry, journal, target.read, target.write, target.append);
+        if (target.truncate) {
+            channel.truncate(0);
+        }
+        return channel;
+    }
+
+    /**
+     * Validates channel open options and resolves (or creates) the target file entry.
+     */
+    private ChannelTarget resolveChannelTarget(Path path, Set<? extends OpenOption> options) throws IOException {
         if (hasAnyOption(options, SPARSE, DELETE_ON_CLOSE, SYNC, DSYNC)) {
             throw new UnsupportedOperationException();
         }
+        boolean append = hasAnyOption(options, APPEND);
         boolean isRead = hasAnyOption(options, READ);
-        boolean isWrite = hasAnyOption(options, WRITE);
+        boolean isWrite = append || hasAnyOption(options, WRITE);
         if (!isRead && !isWrite) {
             isRead = true;
-        } else if (isRead && isWrite) {
-            throw new IllegalArgumentException("exactly one of read or write expected, mutualy exclusive");
+        }
+        if (append && isRead) {
+            throw new IllegalArgumentException("append not allowed with read");
+        }
+        if (append && hasAnyOption(options, TRUNCATE_EXISTING)) {
+            throw new IllegalArgumentException("append not allowed with truncate");
         }
 
         boolean create = isWrite && hasAnyOption(options, CREATE, CREATE_NEW);
         boolean createNew = isWrite && hasAnyOption(options, CREATE_NEW);
-        boolean truncate = create && hasAnyOption(options, TRUNCATE_EXISTING);
+        boolean truncate = isWrite && hasAnyOption(options, TRUNCATE_EXISTING);
 
         Path absolutePath = path.toAbsolutePath();
         Entry entry = findEntry(absolutePath);
+        if (null != entry && null != overlay) {
+            overlay.revalidate(entry);
+        }
 
-        if (isRead) {
-            if (null == entry) throw new DoesNotExistsException(absolutePath);
-            if (entry.isDirectory()) throw new InvalidRequestException("target path is a directory : " + absolutePath);
-            return MemoryByteChannel.newReadChannel(entry.getData());
+        if (null == entry) {
+            if (!create) throw new DoesNotExistsException(absolutePath);
+            entry = createNew ? createEntry(absolutePath, false, false) : findOrCreateFile(absolutePath);
         } else {
+            if (createNew) throw new ConflictException("impossible to create new file, it already exists");
+        }
+        if (entry.isDirectory()) throw new InvalidRequestException("target path is a directory : " + absolutePath);
+        return new ChannelTarget(entry, isRead, isWrite, append, truncate);
+    }
+
+    private static final class ChannelTarget {
+
+        private final Entry entry;
+        private final boolean read;
+        private final boolean write;
+        private final boolean append;
+        private final boolean truncate;
+
+        private ChannelTarget(Entry entry, boolean read, boolean write, boolean append, boolean truncate) {
+            this.entry = entry;
+            this.read = read;
+            this.write = write;
+            this.append = append;
+            this.truncate = truncate;
+        }
+    }
+
+    /**
+     * Creates a new file, or returns existing entry when it has been created concurrently
+     */
+    private Entry findOrCreateFile(Path absolutePath) throws IOException {
+        try {
+            return createEntry(absolutePath, false, false);
+        } catch (ConflictException e) {
+            Entry entry = findEntry(absolutePath);
             if (null == entry) {
-                if (!create) throw new DoesNotExistsException(path);
-                entry = createEntry(absolutePath, false, false);
-            } else {
-                if (createNew) throw new ConflictException("impossible to create new file, it already exists");
-                if (truncate) entry.getData().truncate(0);
+                throw e;
             }
-            return MemoryByteChannel.newWriteChannel(entry.getData(), options.contains(APPEND));
+            return entry;
         }
     }
 
@@ -388,12 +989,16 @@ public class MemoryFileSystem extends FileSystem {
 
         @Override
         public boolean hasNext() {
+            // entries deleted while iterating are skipped
+            while (null != current && current.isDeleted()) {
+                current = current.getNext();
+            }
             return null != current;
         }
 
         @Override
         public Path next() {
-            if (null == current) {
+            if (!hasNext()) {
                 throw new NoSuchElementException();
             }
             Path result = MemoryPath.create(fs, current.getPath());
@@ -1,5 +1,7 @@
 package com.github.sylvainjuge.memoryfs;
 
+import java.io.IOException;
+import java.nio.file.FileSystemException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 
@@ -12,6 +14,10 @@ class MemoryFileSystemException extends RuntimeException {
         super(msg);
     }
 
+    MemoryFileSystemException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+
 }
 
 /**
@@ -23,6 +29,21 @@ class DoesNotExistsException extends NoSuchFileException {
     }
 }
 
+/**
+ * exception thrown when looking up a path that does not exist, without stack trace since such lookups are frequent
+ * and expected, for example to check file existence
+ */
+class MissingPathException extends DoesNotExistsException {
+    MissingPathException(Path path) {
+        super(path);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
+
 /**
  * exception thrown when there is a conflict, when trying to create two files/folders with same same in the same directory
  * or when trying to create a file that should not exist.
@@ -44,4 +65,52 @@ class InvalidRequestException extends MemoryFileSystemException{
     InvalidRequestException(String msg){
         super(msg);
     }
-}
\ No newline at end of file
+}
+/** exception thrown when a file can't grow because file store capacity is exhausted */
+class NoSpaceLeftException extends FileSystemException {
+    NoSpaceLeftException(long requested, long free) {
+        super(null, null, String.format("no space left on file store : %d bytes requested, %d available", requested, free));
+    }
+}
+
+/** exception thrown when a filesystem image can't be read */
+class InvalidImageException extends IOException {
+    InvalidImageException(String msg) {
+        super(msg);
+    }
+}
+
+/** exception thrown when a lazily loaded directory can't be read from its image */
+class ImageLoadException extends MemoryFileSystemException {
+    ImageLoadException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+}
+
+/** exception thrown when a directory of a forked filesystem can't be copied from its template */
+class ForkLoadException extends MemoryFileSystemException {
+    ForkLoadException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+}
+
+/**
+ * exception thrown when lower layer of an overlay filesystem can't be read, lower layer is read lazily from code
+ * that can't throw checked exceptions, thus channels and provider convert it back to an I/O exception
+ */
+class LowerLayerException extends MemoryFileSystemException {
+    LowerLayerException(String msg, IOException cause) {
+        super(msg, cause);
+    }
+
+    IOException asIOException() {
+        return new IOException(getMessage(), getCause());
+    }
+}
+
+/** exception thrown when a journal can't be replayed */
+class InvalidJournalException extends IOException {
+    InvalidJournalException(String msg) {
+        super(msg);
+    }
+}
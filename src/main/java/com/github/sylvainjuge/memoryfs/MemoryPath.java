@@ -4,9 +4,8 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.*;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
 
 import static com.github.sylvainjuge.memoryfs.MemoryFileSystem.SCHEME;
@@ -16,14 +15,23 @@ public class MemoryPath implements Path {
 
     private static final String TWO_DOTS = "..";
     private static final String ONE_DOT = ".";
+    private static final char SEPARATOR_CHAR = '/';
+    private static final String[] NO_SEGMENTS = new String[0];
 
     private final MemoryFileSystem fs;
-    private final List<String> parts;
     private final boolean absolute;
 
+    // names are stored in a backing string shared with sub-paths, in which they are separated by a single separator,
+    // name i of backing string starts at offsets[i] and ends before offsets[i + 1] - 1, offsets are never modified
+    private final String data;
+    private final int[] offsets;
+    private final int first;
+    private final int count;
+
     // cached values (safe since class is immutable)
     private URI uri = null;
     private String path = null;
+    private int hash = 0;
 
     static MemoryPath asMemoryPath(Path path) {
         if (path instanceof MemoryPath || null == path) {
@@ -32,46 +40,151 @@ public class MemoryPath implements Path {
         throw new ProviderMismatchException();
     }
 
-    private static void checkPath(String path) {
-        if (null == path || path.isEmpty() || path.contains("*") || path.contains("?")) {
-            throw new InvalidPathException(path, "path required not empty and without illegal characters");
+    static MemoryPath create(MemoryFileSystem fs, String path) {
+        return create(fs, path, NO_SEGMENTS);
+    }
+
+    /**
+     * @param fs filesystem
+     * @param first first path segment
+     * @param more following path segments, each one being separated from previous one by a separator
+     * @return path
+     * @throws InvalidPathException if path is empty, or contains illegal characters
+     */
+    static MemoryPath create(MemoryFileSystem fs, String first, String... more) {
+        if (first.isEmpty() && 0 == more.length) {
+            throw new InvalidPathException(first, "path required not empty and without illegal characters");
         }
+        MemoryPath result = parse(fs, first, more);
+        if (result.absolute && 0 < result.count && result.nameEquals(0, TWO_DOTS)) {
+            throw new IllegalArgumentException("invalid absolute path : can't go upper than root");
+        }
+        return result;
     }
 
-    static MemoryPath create(MemoryFileSystem fs, String path) {
-        checkPath(path);
-
-        boolean absolute = path.startsWith(SEPARATOR);
-        List<String> parts = new ArrayList<>();
-        for (String s : path.split(SEPARATOR)) {
-            if (!s.isEmpty()) {
-                if (absolute && parts.isEmpty() && TWO_DOTS.equals(s)) {
-                    throw new IllegalArgumentException("invalid absolute path : can't go upper than root");
+    static MemoryPath createRoot(MemoryFileSystem fs) {
+        return create(fs, "/");
+    }
+
+    /**
+     * Parses path segments in a single pass, any redundant separator is ignored.
+     *
+     * @param fs filesystem
+     * @param first first path segment
+     * @param more following path segments
+     * @return path, which shares first segment as backing string when there is no other segment and it has no
+     * redundant separator
+     * @throws InvalidPathException if path contains illegal characters
+     */
+    private static MemoryPath parse(MemoryFileSystem fs, String first, String... more) {
+        boolean absolute = first.isEmpty() ? 0 < more.length : SEPARATOR_CHAR == first.charAt(0);
+        int capacity = first.length();
+        for (String segment : more) {
+            capacity += segment.length() + 1;
+        }
+        char[] chars = new char[capacity];
+        // each name but last is followed by a separator
+        int[] offsets = new int[capacity / 2 + 2];
+        int length = 0;
+        int count = 0;
+        for (int s = -1; s < more.length; s++) {
+            String segment = s < 0 ? first : more[s];
+            boolean inName = false;
+            for (int i = 0; i < segment.length(); i++) {
+                char c = segment.charAt(i);
+                if (SEPARATOR_CHAR == c) {
+                    inName = false;
+                    continue;
+                }
+                if ('*' == c || '?' == c) {
+                    throw new InvalidPathException(join(first, more), "path required not empty and without illegal characters");
                 }
-                parts.add(s);
+                if (!inName) {
+                    if (0 < count || absolute) {
+                        chars[length++] = SEPARATOR_CHAR;
+                    }
+                    offsets[count++] = length;
+                    inName = true;
+                }
+                chars[length++] = c;
             }
         }
-        return new MemoryPath(fs, parts, 0, parts.size(), absolute);
+        offsets[count] = length + 1;
+        // parsed path is never longer than input, thus same length means same content
+        String data = 0 == more.length && length == first.length() ? first : new String(chars, 0, length);
+        return new MemoryPath(fs, data, Arrays.copyOf(offsets, count + 1), 0, count, absolute);
     }
 
-    static MemoryPath createRoot(MemoryFileSystem fs) {
-        return create(fs, "/");
+    private static String join(String first, String... more) {
+        StringBuilder sb = new StringBuilder(first);
+        for (String segment : more) {
+            sb.append(SEPARATOR_CHAR).append(segment);
+        }
+        return sb.toString();
     }
 
-    private MemoryPath(MemoryFileSystem fs, List<String> parts, int start, int end, boolean absolute) {
+    private MemoryPath(MemoryFileSystem fs, String data, int[] offsets, int first, int count, boolean absolute) {
         if (null == fs) {
             throw new IllegalArgumentException("filesytem required");
         }
-        if (start < 0 || parts.size() < end || end < start) {
-            throw new IllegalArgumentException(String.format("invalid range [%d,%d[ in interval [0,%d[", start, end, parts.size()));
-        }
         this.fs = fs;
-        this.parts = new ArrayList<>(parts.subList(start, end));
+        this.data = data;
+        this.offsets = offsets;
+        this.first = first;
+        this.count = count;
         this.absolute = absolute;
     }
 
+    /**
+     * @param start index of first name, inclusive
+     * @param end index of last name, exclusive
+     * @param absolute true for absolute path
+     * @return path that shares backing string of this path
+     */
+    private MemoryPath subPath(int start, int end, boolean absolute) {
+        if (start < 0 || count < end || end < start) {
+            throw new IllegalArgumentException(String.format("invalid range [%d,%d[ in interval [0,%d[", start, end, count));
+        }
+        return new MemoryPath(fs, data, offsets, first + start, end - start, absolute);
+    }
+
+    private int begin(int index) {
+        return offsets[first + index];
+    }
+
+    private int end(int index) {
+        return offsets[first + index + 1] - 1;
+    }
+
+    /**
+     * @param start index of first name, inclusive
+     * @param end index of last name, exclusive
+     * @return length of names in range, including separators between them
+     */
+    private int length(int start, int end) {
+        return start == end ? 0 : end(end - 1) - begin(start);
+    }
+
+    private boolean nameEquals(int index, String name) {
+        int begin = begin(index);
+        return end(index) - begin == name.length() && data.startsWith(name, begin);
+    }
+
+    /**
+     * @param start index of first name of this path
+     * @param other other path
+     * @param otherStart index of first name of other path
+     * @param n number of names to compare
+     * @return true if names are equal, which is true only when their backing string ranges are equal
+     */
+    private boolean regionEquals(int start, MemoryPath other, int otherStart, int n) {
+        int length = length(start, start + n);
+        return length == other.length(otherStart, otherStart + n)
+                && (0 == length || data.regionMatches(begin(start), other.data, other.begin(otherStart), length));
+    }
+
     boolean isRoot() {
-        return absolute && parts.isEmpty();
+        return absolute && 0 == count;
     }
 
     /**
@@ -85,7 +198,29 @@ public class MemoryPath implements Path {
      * @return an iterator over path parts
      */
     public Iterator<String> partsIterator() {
-        return parts.iterator();
+        return new Iterator<String>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < count;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("iterator has no more elements");
+                }
+                String name = data.substring(begin(i), end(i));
+                i++;
+                return name;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("not supported");
+            }
+        };
     }
 
     @Override
@@ -103,13 +238,12 @@ public class MemoryPath implements Path {
         if (isRoot()) {
             return this;
         }
-        return absolute ? create(fs, SEPARATOR) : null;
+        return absolute ? subPath(0, 0, true) : null;
     }
 
     @Override
     public Path getFileName() {
-        return parts.isEmpty() ? null :
-                new MemoryPath(fs, parts, parts.size() - 1, parts.size(), false);
+        return 0 == count ? null : subPath(count - 1, count, false);
     }
 
     @Override
@@ -117,28 +251,28 @@ public class MemoryPath implements Path {
         if (isRoot()) {
             return null;
         }
-        if (parts.size() == 1) {
+        if (count == 1) {
             return getRoot();
         }
-        return new MemoryPath(fs, parts, 0, parts.size() - 1, absolute);
+        return subPath(0, count - 1, absolute);
     }
 
     @Override
     public int getNameCount() {
-        return parts.size();
+        return count;
     }
 
     @Override
     public Path getName(int index) {
-        if (index < 0 || parts.size() <= index) {
+        if (index < 0 || count <= index) {
             throw new IllegalArgumentException("invalid name index : " + index);
         }
-        return new MemoryPath(fs, parts, index, index + 1, false);
+        return subPath(index, index + 1, false);
     }
 
     @Override
     public Path subpath(int beginIndex, int endIndex) {
-        return new MemoryPath(fs, parts, beginIndex, endIndex, false);
+        return subPath(beginIndex, endIndex, false);
     }
 
     private static MemoryPath toMemoryPath(Path path) {
@@ -154,15 +288,10 @@ public class MemoryPath implements Path {
             return true;
         }
         MemoryPath path = toMemoryPath(other);
-        if (absolute != path.isAbsolute() || parts.size() < path.parts.size()) {
+        if (absolute != path.isAbsolute() || count < path.count) {
             return false;
         }
-        for (int i = 0; i < path.parts.size(); i++) {
-            if (!parts.get(i).equals(path.parts.get(i))) {
-                return false;
-            }
-        }
-        return true;
+        return regionEquals(0, path, 0, path.count);
     }
 
     @Override
@@ -176,16 +305,12 @@ public class MemoryPath implements Path {
             return true;
         }
         MemoryPath path = toMemoryPath(other);
-        if (parts.size() < path.parts.size()) {
+        if (count < path.count) {
             return false;
         }
-        int i = path.parts.size() - 1;
-        int offset = parts.size() - path.parts.size();
-        while (0 <= i) {
-            if (!parts.get(i + offset).equals(path.parts.get(i))) {
-                return false;
-            }
-            i--;
+        int offset = count - path.count;
+        if (!regionEquals(offset, path, 0, path.count)) {
+            return false;
         }
         if (0 < offset) {
             // there is an offset, path must be non-absolute to match
@@ -203,30 +328,60 @@ public class MemoryPath implements Path {
 
     @Override
     public Path normalize() {
-        List<String> normalized = new ArrayList<>();
-        for (String part : parts) {
-            switch (part) {
-                case ONE_DOT:
-                    if (normalized.isEmpty()) {
-                        normalized.add(part);
-                    }
-                    break;
-                case TWO_DOTS:
-                    int last = normalized.size() - 1;
-                    if (normalized.isEmpty() || TWO_DOTS.equals(normalized.get(last))) {
-                        normalized.add(part);
-                    } else {
-                        normalized.remove(last);
-                    }
-                    break;
-                default:
-                    if (normalized.size() == 1 && ONE_DOT.equals(normalized.get(0))) {
-                        normalized.clear();
-                    }
-                    normalized.add(part);
+        // indexes of names kept in normalized path
+        int[] normalized = new int[count];
+        int size = 0;
+        boolean modified = false;
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, ONE_DOT)) {
+                if (0 == size) {
+                    normalized[size++] = i;
+                } else {
+                    modified = true;
+                }
+            } else if (nameEquals(i, TWO_DOTS)) {
+                if (0 == size || nameEquals(normalized[size - 1], TWO_DOTS)) {
+                    normalized[size++] = i;
+                } else {
+                    size--;
+                    modified = true;
+                }
+            } else {
+                if (size == 1 && nameEquals(normalized[0], ONE_DOT)) {
+                    size = 0;
+                    modified = true;
+                }
+                normalized[size++] = i;
             }
         }
-        return new MemoryPath(fs, normalized, 0, normalized.size(), absolute);
+        if (!modified) {
+            return this;
+        }
+        StringBuilder sb = new StringBuilder(length(0, count));
+        for (int i = 0; i < size; i++) {
+            appendNames(sb, normalized[i], normalized[i] + 1);
+        }
+        return fromNames(sb);
+    }
+
+    /**
+     * @param sb names separated by a single separator
+     * @return path with given names, relative or absolute as this path
+     */
+    private MemoryPath fromNames(StringBuilder sb) {
+        if (absolute) {
+            sb.insert(0, SEPARATOR_CHAR);
+        }
+        return parse(fs, sb.toString(), NO_SEGMENTS);
+    }
+
+    private void appendNames(StringBuilder sb, int start, int end) {
+        if (start < end) {
+            if (0 < sb.length()) {
+                sb.append(SEPARATOR_CHAR);
+            }
+            sb.append(data, begin(start), end(end - 1));
+        }
     }
 
     @Override
@@ -235,7 +390,7 @@ public class MemoryPath implements Path {
         if (other.isAbsolute()) {
             return path;
         }
-        return toSibling(parts.size(), path);
+        return toSibling(count, path);
     }
 
     @Override
@@ -246,18 +401,17 @@ public class MemoryPath implements Path {
     @Override
     public Path resolveSibling(Path other) {
         MemoryPath path = toMemoryPath(other);
-        if (path.isAbsolute() || parts.size() < 2) {
+        if (path.isAbsolute() || count < 2) {
             return path;
         }
-        return toSibling(parts.size() - 1, path);
+        return toSibling(count - 1, path);
     }
 
     private Path toSibling(int end, MemoryPath sibling) {
-        List<String> newParts = new ArrayList<>(parts.subList(0, end));
-        for (String s : sibling.parts) {
-            newParts.add(s);
-        }
-        return new MemoryPath(fs, newParts, 0, newParts.size(), absolute);
+        StringBuilder sb = new StringBuilder(length(0, end) + sibling.length(0, sibling.count) + 2);
+        appendNames(sb, 0, end);
+        sibling.appendNames(sb, 0, sibling.count);
+        return fromNames(sb);
     }
 
     @Override
@@ -276,7 +430,7 @@ public class MemoryPath implements Path {
         }
         // a/b a/b/c/d -> test if first path is prefix of other, return suffix
         int i = 0;
-        while (i < parts.size() && i < path.parts.size() && parts.get(i).equals(path.parts.get(i))) {
+        while (i < count && i < path.count && regionEquals(i, path, i, 1)) {
             i++;
         }
 
@@ -288,19 +442,22 @@ public class MemoryPath implements Path {
             return other;
         }
         // we have some prefix in common
-        if (0 < i && i <= parts.size()) {
+        if (0 < i && i <= count) {
             // other path is longer
             // this path is a prefix, we return remaining part of other path
             return path.subpath(i, path.getNameCount());
         }
         // this path is longer or same length -> we have to add .. to remove all trailing levels
-        int trailingCount = relativePathBetweenAbsolutes ? parts.size() : parts.size() - path.parts.size();
-        List<String> relativePath = new ArrayList<>();
+        int trailingCount = relativePathBetweenAbsolutes ? count : count - path.count;
+        StringBuilder sb = new StringBuilder();
         for (int j = 0; j < trailingCount; j++) {
-            relativePath.add(TWO_DOTS);
+            if (0 < j) {
+                sb.append(SEPARATOR_CHAR);
+            }
+            sb.append(TWO_DOTS);
         }
-        relativePath.addAll(path.parts.subList(i, path.parts.size()));
-        return new MemoryPath(fs, relativePath, 0, relativePath.size(), false);
+        path.appendNames(sb, i, path.count);
+        return parse(fs, sb.toString(), NO_SEGMENTS);
     }
 
     @Override
@@ -324,14 +481,20 @@ public class MemoryPath implements Path {
         if (null != path) {
             return path;
         }
-        StringBuilder sb = new StringBuilder();
-        for (String part : parts) {
-            if (0 < sb.length()) {
-                sb.append(SEPARATOR);
+        if (0 == count) {
+            path = absolute ? SEPARATOR : "";
+        } else {
+            int begin = begin(0);
+            int end = end(count - 1);
+            if (!absolute) {
+                path = data.substring(begin, end);
+            } else if (0 < begin && SEPARATOR_CHAR == data.charAt(begin - 1)) {
+                // backing string already holds the leading separator
+                path = data.substring(begin - 1, end);
+            } else {
+                path = SEPARATOR + data.substring(begin, end);
             }
-            sb.append(part);
         }
-        path = (absolute ? SEPARATOR : "") + sb.toString();
         return path;
     }
 
@@ -340,7 +503,7 @@ public class MemoryPath implements Path {
         if (absolute) {
             return this;
         }
-        return new MemoryPath(fs, parts, 0, parts.size(), true);
+        return subPath(0, count, true);
     }
 
     @Override
@@ -376,15 +539,25 @@ public class MemoryPath implements Path {
         } else if (!absolute && path.absolute) {
             return 1;
         }
-        int max = Math.min(path.parts.size(), parts.size());
+        int max = Math.min(path.count, count);
         for (int i = 0; i < max; i++) {
-            int itemCompare = parts.get(i).compareTo(path.parts.get(i));
-            if (itemCompare != 0) {
-                return itemCompare;
+            int begin = begin(i);
+            int otherBegin = path.begin(i);
+            int length = end(i) - begin;
+            int otherLength = path.end(i) - otherBegin;
+            int n = Math.min(length, otherLength);
+            for (int j = 0; j < n; j++) {
+                int itemCompare = data.charAt(begin + j) - path.data.charAt(otherBegin + j);
+                if (itemCompare != 0) {
+                    return itemCompare;
+                }
+            }
+            if (length != otherLength) {
+                return length - otherLength;
             }
         }
         // shortest first
-        return parts.size() - path.parts.size();
+        return count - path.count;
     }
 
     @Override
@@ -395,25 +568,27 @@ public class MemoryPath implements Path {
         MemoryPath other = (MemoryPath) o;
         if (fs != other.fs) return false;
         if (absolute != other.absolute) return false;
-        if (parts.size() != other.parts.size()) return false;
-
-        for (int i = 0; i < parts.size(); i++) {
-            if (!parts.get(i).equals(other.parts.get(i))) return false;
-        }
+        if (count != other.count) return false;
 
-        return true;
+        return regionEquals(0, other, 0, count);
     }
 
     @Override
     public int hashCode() {
-        int result = 19;
-        // note : we rely on default hashcode implementation, which should return
-        // a different value for each fs instance, and it is consistent with implementation
-        // of equals method.
-        result = 32 * result + fs.hashCode();
-        result = 31 * result + (absolute ? 1 : 0);
-        for (String s : parts) {
-            result = 31 * result + s.hashCode();
+        int result = hash;
+        if (0 == result) {
+            result = 19;
+            // note : we rely on default hashcode implementation, which should return
+            // a different value for each fs instance, and it is consistent with implementation
+            // of equals method.
+            result = 32 * result + fs.hashCode();
+            result = 31 * result + (absolute ? 1 : 0);
+            if (0 < count) {
+                for (int i = begin(0); i < end(count - 1); i++) {
+                    result = 31 * result + data.charAt(i);
+                }
+            }
+            hash = result;
         }
         return result;
     }
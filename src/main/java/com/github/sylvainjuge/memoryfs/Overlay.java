@@ -0,0 +1,448 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Overlay of a read-only lower directory, which may belong to any filesystem, with filesystem tree as upper layer.
+ * <p>
+ * Lower directories are merged into upper layer when first accessed : their children are listed and become children
+ * of upper directory, while lower file content is only read when accessed. Thus once a directory has been accessed,
+ * lookups only consult upper layer, and all modifications land in upper layer : lower blocks are copied before being
+ * written to (copy-on-write), and deleted lower entries are hidden by their upper directory (whiteout).
+ * <p>
+ * Lower blocks are read a few at once, and their content is kept in a soft cache, thus it may be read again from
+ * lower layer when memory is low. Lower files are charged against filesystem space when their directory is first
+ * accessed, and lower tree must not be modified while mounted.
+ * <p>
+ * When used as a cache of a backing directory, cached content is also bounded by a {@link ContentCache}, and lower
+ * files are revalidated when opened : unless modified in upper layer, their content is reloaded when the size or
+ * last modification time of backing file has changed. Lower directories are not revalidated once merged.
+ * <p>
+ * Upper layer can be listed as a changeset, see {@link #changeset(MemoryFileSystem, Entry)}.
+ */
+final class Overlay {
+
+    // lower blocks read at once, thus sequential reads do not open lower file for each block
+    private static final int READ_AHEAD = 16;
+
+    private final BlockStorage storage;
+    private final Space space;
+    private final Origin root;
+    private final ContentCache cache;
+    private final boolean revalidate;
+
+    // thread safety : synchronized on instance for r/w, merged entries are dropped once no longer used
+    private final Map<Entry, Origin> origins;
+
+    /**
+     * @param lower lower directory
+     * @param storage block storage of filesystem, used for blocks modified in upper layer
+     * @param space space of filesystem
+     * @param cache cache of lower content
+     * @param revalidate true to revalidate lower files when opened
+     */
+    Overlay(Path lower, BlockStorage storage, Space space, ContentCache cache, boolean revalidate) {
+        this.storage = storage;
+        this.space = space;
+        this.cache = cache;
+        this.revalidate = revalidate;
+        this.root = new Origin(null, null, lower);
+        this.origins = Collections.synchronizedMap(new WeakHashMap<Entry, Origin>());
+    }
+
+    /**
+     * @return root directory, which is merged with lower directory on first access
+     */
+    Entry mount() {
+        Entry entry = Entry.newRoot(new DirectoryLoader(root));
+        origins.put(entry, root);
+        return entry;
+    }
+
+    /**
+     * Lists changes of upper layer compared to lower layer : created or modified entries are in upper layer, while
+     * deleted entries are whiteouts that hide lower entries. Created directories are listed without their content,
+     * and moved entries are listed as deleted then created. Directories that have never been accessed are unchanged.
+     *
+     * @param fs filesystem
+     * @param rootEntry root directory of filesystem
+     * @return changes of upper layer, sorted by path
+     */
+    List<Snapshot.Change> changeset(MemoryFileSystem fs, Entry rootEntry) {
+        List<Snapshot.Change> changes = new ArrayList<>();
+        collectChanges(fs, rootEntry, root, changes);
+        Collections.sort(changes, Snapshot.Change.ORDER);
+        return changes;
+    }
+
+    private void collectChanges(MemoryFileSystem fs, Entry directory, Origin origin, List<Snapshot.Change> changes) {
+        if (!directory.isLoaded()) {
+            return;
+        }
+        List<Entry> children = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        directory.listChildren(children, names);
+        Path path = fs.getPath(directory.getPath());
+        Set<String> kept = new HashSet<>();
+        for (int i = 0; i < children.size(); i++) {
+            Entry child = children.get(i);
+            Origin childOrigin = origins.get(child);
+            if (null != childOrigin && childOrigin.parent == origin && childOrigin.name.equals(names.get(i))) {
+                kept.add(childOrigin.name);
+                if (child.isDirectory()) {
+                    collectChanges(fs, child, childOrigin, changes);
+                } else if (!child.getData().sharesContentWith(childOrigin.content)) {
+                    changes.add(new Snapshot.Change(Snapshot.Change.Type.MODIFIED, path.resolve(names.get(i))));
+                }
+            } else {
+                changes.add(new Snapshot.Change(Snapshot.Change.Type.CREATED, path.resolve(names.get(i))));
+            }
+        }
+        for (String name : origin.names) {
+            if (!kept.contains(name)) {
+                changes.add(new Snapshot.Change(Snapshot.Change.Type.DELETED, path.resolve(name)));
+            }
+        }
+    }
+
+    /**
+     * Revalidates a lower file before it is opened, see {@link Overlay}
+     *
+     * @param entry file
+     * @throws IOException if backing file can't be read
+     */
+    void revalidate(Entry entry) throws IOException {
+        Origin origin = revalidate ? origins.get(entry) : null;
+        if (null == origin) {
+            return;
+        }
+        synchronized (origin) {
+            FileData data = entry.getData();
+            if (!data.sharesContentWith(origin.content)) {
+                // modified in upper layer, which hides lower file
+                return;
+            }
+            BasicFileAttributes attributes = Files.readAttributes(origin.path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile() || origin.file.isValid(attributes)) {
+                return;
+            }
+            // new content is only charged once it replaces current content
+            LowerFile file = lowerFile(origin.path, attributes);
+            FileData fresh = lowerData(file, new Space(0));
+            try {
+                if (data.restore(fresh, origin.content)) {
+                    origin.content.release();
+                    origin.content = FileData.copy(data);
+                    origin.file = file;
+                }
+            } finally {
+                fresh.release();
+            }
+        }
+    }
+
+    private LowerFile lowerFile(Path path, BasicFileAttributes attributes) throws IOException {
+        int blockSize = storage.getBlockSize();
+        long count = (attributes.size() + blockSize - 1) / blockSize;
+        if (Integer.MAX_VALUE < count) {
+            throw new IOException("file too large : " + path);
+        }
+        return new LowerFile(path, attributes, blockSize, (int) count, cache, revalidate);
+    }
+
+    /**
+     * @param file lower file
+     * @param space space charged for file
+     * @return file data, which content is read from lower file when accessed
+     */
+    private FileData lowerData(LowerFile file, Space space) throws NoSpaceLeftException {
+        Block[] blocks = new Block[file.blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            // pinned, thus never released nor modified in place
+            blocks[i] = file.blocks[i].retain().retain();
+        }
+        return FileData.fromBlocks(storage, space, blocks, file.size);
+    }
+
+    /**
+     * Location of an entry in lower layer
+     */
+    private static final class Origin {
+
+        private final Origin parent;
+        private final String name;
+        private final Path path;
+
+        // directories only : names of lower children, set once directory has been merged
+        private volatile String[] names;
+
+        // files only : lower file and its content, which is shared with upper file until modified
+        // thread safety : guarded by origin lock once file is merged
+        private volatile LowerFile file;
+        private volatile FileData content;
+
+        private Origin(Origin parent, String name, Path path) {
+            this.parent = parent;
+            this.name = name;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Merges lower directory children into upper directory
+     */
+    private final class DirectoryLoader implements Entry.Loader {
+
+        private final Origin origin;
+
+        private DirectoryLoader(Origin origin) {
+            this.origin = origin;
+        }
+
+        @Override
+        public List<Entry> load(Entry directory) {
+            List<Entry> children = new ArrayList<>();
+            List<Origin> childOrigins = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(origin.path)) {
+                for (Path path : stream) {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    Origin childOrigin = new Origin(origin, path.getFileName().toString(), path);
+                    Entry child;
+                    if (attributes.isDirectory()) {
+                        child = newEntry(directory, childOrigin, null);
+                    } else if (attributes.isRegularFile()) {
+                        childOrigin.file = lowerFile(path, attributes);
+                        child = newEntry(directory, childOrigin, lowerData(childOrigin.file, space));
+                    } else {
+                        // other lower entries are not supported
+                        continue;
+                    }
+                    if (null != child) {
+                        children.add(child);
+                        childOrigins.add(childOrigin);
+                    }
+                }
+            } catch (IOException e) {
+                // files already merged are not part of tree
+                for (Entry child : children) {
+                    if (child.isRegularFile()) {
+                        child.getData().release();
+                    }
+                }
+                throw new LowerLayerException("unable to merge lower directory " + origin.path, e);
+            }
+            String[] names = new String[children.size()];
+            for (int i = 0; i < names.length; i++) {
+                Origin childOrigin = childOrigins.get(i);
+                names[i] = childOrigin.name;
+                if (children.get(i).isRegularFile()) {
+                    childOrigin.content = FileData.copy(children.get(i).getData());
+                }
+                origins.put(children.get(i), childOrigin);
+            }
+            origin.names = names;
+            return children;
+        }
+
+        /**
+         * @return new entry, or null if lower name is not valid in this filesystem
+         */
+        private Entry newEntry(Entry directory, Origin childOrigin, FileData data) {
+            try {
+                if (null == data) {
+                    return Entry.newUnlinkedDirectory(directory, childOrigin.name, new DirectoryLoader(childOrigin));
+                }
+                return Entry.newUnlinkedFile(directory, childOrigin.name, data);
+            } catch (InvalidNameException e) {
+                if (null != data) {
+                    data.release();
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Lower file, which blocks are read on demand
+     */
+    private static final class LowerFile implements ContentCache.Content {
+
+        private final Path path;
+        private final FileTime lastModified;
+        private final long size;
+        private final int blockSize;
+        private final LowerBlock[] blocks;
+        private final ContentCache cache;
+        private final boolean revalidate;
+
+        private LowerFile(Path path, BasicFileAttributes attributes, int blockSize, int count, ContentCache cache, boolean revalidate) {
+            this.path = path;
+            this.lastModified = attributes.lastModifiedTime();
+            this.size = attributes.size();
+            this.blockSize = blockSize;
+            this.cache = cache;
+            this.revalidate = revalidate;
+            this.blocks = new LowerBlock[count];
+            for (int i = 0; i < count; i++) {
+                blocks[i] = new LowerBlock(this, i);
+            }
+        }
+
+        /**
+         * @param attributes current attributes of lower file
+         * @return true if lower file has not been modified since this file has been created
+         */
+        private boolean isValid(BasicFileAttributes attributes) {
+            FileTime modified = attributes.lastModifiedTime();
+            return size == attributes.size() && (null == lastModified ? null == modified : lastModified.equals(modified));
+        }
+
+        /**
+         * Reads a block and following ones, unless already in cache
+         *
+         * @param index block index
+         * @return block content
+         */
+        private synchronized Block read(int index) {
+            Block result = blocks[index].cached();
+            if (null != result) {
+                cache.hit(this);
+                return result;
+            }
+            try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+                if (revalidate && !isValid(Files.readAttributes(path, BasicFileAttributes.class))) {
+                    // content already read can't be mixed with new content
+                    throw new IOException("lower file modified while in use");
+                }
+                channel.position((long) index * blockSize);
+                int last = Math.min(blocks.length, index + READ_AHEAD);
+                for (int i = index; i < last && (i == index || null == blocks[i].cached()); i++) {
+                    Block block = new Block.HeapBlock(blockSize);
+                    ByteBuffer buffer = block.buffer(0, (int) Math.min(blockSize, size - (long) i * blockSize));
+                    // remaining content is zero if lower file is shorter than expected
+                    int read = 0;
+                    while (buffer.hasRemaining() && 0 <= read) {
+                        read = channel.read(buffer);
+                    }
+                    blocks[i].cache = new SoftReference<>(block);
+                    if (i == index) {
+                        result = block;
+                    }
+                }
+            } catch (IOException e) {
+                throw new LowerLayerException("unable to read lower file " + path, e);
+            }
+            cache.miss(this);
+            return result;
+        }
+
+        @Override
+        public long cachedSize() {
+            long cached = 0;
+            for (LowerBlock block : blocks) {
+                if (null != block.cached()) {
+                    cached += blockSize;
+                }
+            }
+            return cached;
+        }
+
+        @Override
+        public void evict() {
+            for (LowerBlock block : blocks) {
+                block.cache = null;
+            }
+        }
+    }
+
+    /**
+     * Block of a lower file, which content is read when first accessed. Lower blocks are pinned, thus only read,
+     * and copied before any modification.
+     */
+    private static final class LowerBlock extends Block {
+
+        private final LowerFile file;
+        private final int index;
+
+        private volatile SoftReference<Block> cache;
+
+        private LowerBlock(LowerFile file, int index) {
+            this.file = file;
+            this.index = index;
+        }
+
+        private Block cached() {
+            SoftReference<Block> reference = cache;
+            return null == reference ? null : reference.get();
+        }
+
+        private Block content() {
+            Block content = cached();
+            if (null == content) {
+                return file.read(index);
+            }
+            file.cache.hit(file);
+            return content;
+        }
+
+        @Override
+        int size() {
+            return file.blockSize;
+        }
+
+        @Override
+        byte get(int offset) {
+            return content().get(offset);
+        }
+
+        @Override
+        void get(int offset, byte[] dst, int dstOffset, int length) {
+            content().get(offset, dst, dstOffset, length);
+        }
+
+        @Override
+        void put(int offset, byte[] src, int srcOffset, int length) {
+            throw new UnsupportedOperationException("lower block is read-only");
+        }
+
+        @Override
+        void get(int offset, ByteBuffer dst, int length) {
+            content().get(offset, dst, length);
+        }
+
+        @Override
+        void put(int offset, ByteBuffer src, int length) {
+            throw new UnsupportedOperationException("lower block is read-only");
+        }
+
+        @Override
+        ByteBuffer buffer(int offset, int length) {
+            return content().buffer(offset, length);
+        }
+
+        @Override
+        void clear(int from, int to) {
+            throw new UnsupportedOperationException("lower block is read-only");
+        }
+
+        @Override
+        void copyTo(Block target) {
+            content().copyTo(target);
+        }
+    }
+}
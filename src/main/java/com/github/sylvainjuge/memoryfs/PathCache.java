@@ -0,0 +1,135 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded cache of path lookups, which allows to resolve frequently used paths without walking the tree, including
+ * paths that do not exist.
+ * <p>
+ * A cached lookup remains valid as long as tree structure stamp is unchanged, which ensures that no directory has
+ * been moved or renamed, and as long as entry has not been deleted, moved or renamed. Lookups of missing paths keep
+ * the deepest existing entry of path, and also remain valid as long as children of this entry are unchanged. Thus
+ * lookups are invalidated precisely, without having to track cached paths when tree is modified.
+ * <p>
+ * Lookups are only cached when read without any concurrent change of tree structure, or of the children of the
+ * deepest entry of missing paths, see {@link Entry#isStable(int)} and {@link Entry#isUnmodifiedSince(int)}.
+ * <p>
+ * When cache is full, an arbitrary quarter of cached lookups is evicted, which keeps lookups free of any lock.
+ */
+final class PathCache {
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private final int capacity;
+    private final ConcurrentHashMap<MemoryPath, Lookup> lookups;
+    private final AtomicInteger size;
+
+    /**
+     * Result of a path lookup
+     */
+    static final class Lookup {
+        private final Entry entry;
+        private final Entry parent;
+        private final String name;
+        private final int stamp;
+        private final boolean absent;
+        private final int modCount;
+
+        private Lookup(Entry entry, Entry parent, String name, int stamp, boolean absent, int modCount) {
+            this.entry = entry;
+            this.parent = parent;
+            this.name = name;
+            this.stamp = stamp;
+            this.absent = absent;
+            this.modCount = modCount;
+        }
+
+        /**
+         * @return entry found, null if path does not exist
+         */
+        Entry getEntry() {
+            return absent ? null : entry;
+        }
+
+        private boolean isValid(int currentStamp) {
+            return stamp == currentStamp
+                    && !entry.isDeleted()
+                    && entry.getParent() == parent
+                    && (null == name || name.equals(entry.getName()))
+                    && (!absent || entry.isUnmodifiedSince(modCount));
+        }
+    }
+
+    /**
+     * @param capacity maximum number of cached lookups
+     */
+    PathCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be strictly positive");
+        }
+        this.capacity = capacity;
+        this.lookups = new ConcurrentHashMap<>();
+        this.size = new AtomicInteger();
+    }
+
+    /**
+     * @param path path
+     * @param stamp current structure stamp of tree
+     * @return lookup of this path, null if not cached or if cached lookup is no longer valid
+     */
+    Lookup get(MemoryPath path, int stamp) {
+        Lookup lookup = lookups.get(path);
+        if (null == lookup) {
+            return null;
+        }
+        if (lookup.isValid(stamp)) {
+            return lookup;
+        }
+        if (lookups.remove(path, lookup)) {
+            size.decrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * @param path path
+     * @param entry entry found for this path
+     * @param parent parent directory through which entry has been found
+     * @param name name with which entry has been found
+     * @param stamp structure stamp of tree, read before looking up entry
+     */
+    void put(MemoryPath path, Entry entry, Entry parent, String name, int stamp) {
+        put(path, new Lookup(entry, parent, name, stamp, false, 0));
+    }
+
+    /**
+     * @param path path that does not exist
+     * @param deepest deepest existing entry of path
+     * @param parent parent directory through which deepest entry has been found, null for root
+     * @param name name with which deepest entry has been found, null for root
+     * @param modCount modification count of deepest entry, read before looking up its missing child
+     * @param stamp structure stamp of tree, read before looking up entry
+     */
+    void putAbsent(MemoryPath path, Entry deepest, Entry parent, String name, int modCount, int stamp) {
+        put(path, new Lookup(deepest, parent, name, stamp, true, modCount));
+    }
+
+    private void put(MemoryPath path, Lookup lookup) {
+        if (null == lookups.put(path, lookup) && capacity < size.incrementAndGet()) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<MemoryPath, Lookup>> it = lookups.entrySet().iterator();
+        while (capacity - capacity / 4 < size.get() && it.hasNext()) {
+            Map.Entry<MemoryPath, Lookup> e = it.next();
+            if (lookups.remove(e.getKey(), e.getValue())) {
+                size.decrementAndGet();
+            }
+        }
+    }
+}
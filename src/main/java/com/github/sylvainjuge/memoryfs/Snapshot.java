@@ -0,0 +1,564 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Point-in-time snapshot of a filesystem, which allows to rollback filesystem, or to list changes made since snapshot.
+ * <p>
+ * Taking a snapshot does not copy anything, thus costs the same whatever filesystem size : each directory or file
+ * saves its state in latest snapshot just before its first modification after this snapshot, and saved file content
+ * shares its blocks with file until they are written to (copy-on-write). Thus rollback and diff only cost as much as
+ * modifications made since snapshot.
+ * <p>
+ * Several snapshots may exist at once : state of an entry at a given snapshot is the first state saved by this
+ * snapshot or any later one, or its current state when it has not been modified since.
+ * <p>
+ * A snapshot may also be the template of forked filesystems, see {@link MemoryFileSystem.Builder#template(Snapshot)}
+ * : their directories copy the state of template directories at snapshot time when first accessed, and their files
+ * share blocks with template files until modified.
+ * <p>
+ * Limitations : file content saved by snapshots is not charged against file store space, changes made through
+ * writable mapped buffers obtained before a snapshot are visible in snapshot, and rollback must not be concurrent with
+ * other modifications of filesystem.
+ */
+public final class Snapshot implements Closeable {
+
+    private final MemoryFileSystem fs;
+    private final History history;
+
+    // entries created after snapshot have greater identifiers
+    private final long lastId;
+
+    // thread safety : guarded by history monitor, generation is replaced on rollback
+    private Generation generation;
+    private boolean closed;
+
+    // open filesystems forked from this snapshot, which is only released once they are all closed
+    private int forks;
+
+    private Snapshot(MemoryFileSystem fs, History history, long lastId) {
+        this.fs = fs;
+        this.history = history;
+        this.lastId = lastId;
+        this.generation = new Generation();
+    }
+
+    /**
+     * @param fs filesystem
+     * @param root root directory of filesystem
+     * @return new snapshot, which becomes latest snapshot of tree
+     */
+    static Snapshot create(MemoryFileSystem fs, Entry root) {
+        History history = root.getHistory();
+        synchronized (history) {
+            Snapshot snapshot = new Snapshot(fs, history, Entry.lastId());
+            history.snapshots.add(snapshot);
+            history.latest = snapshot.generation;
+            return snapshot;
+        }
+    }
+
+    /**
+     * Restores filesystem as it was when this snapshot was taken : entries created since are deleted, and deleted or
+     * modified entries are restored. Snapshots taken after this one are closed, while this one remains open, thus
+     * filesystem may be rolled back several times to the same snapshot.
+     * <p>
+     * On a journaled filesystem, an image of whole filesystem is then written to journal, see
+     * {@link MemoryFileSystem#openJournal(Path)}.
+     *
+     * @throws NoSpaceLeftException if restored files do not fit in file store, rollback is then incomplete
+     * @throws IllegalStateException if snapshot has been closed, or if this snapshot or a later one is the template
+     * of an open filesystem
+     * @throws IOException if journal image can't be written
+     */
+    public void rollback() throws IOException {
+        fs.rewrite(new Journal.Mutation() {
+            @Override
+            public void apply() throws IOException {
+                rollbackTree();
+            }
+        });
+    }
+
+    private void rollbackTree() throws IOException {
+        synchronized (history) {
+            checkOpen();
+            List<Snapshot> snapshots = history.snapshots;
+            for (int i = snapshots.indexOf(this); i < snapshots.size(); i++) {
+                if (0 < snapshots.get(i).forks) {
+                    throw new IllegalStateException("snapshot is the template of open filesystems");
+                }
+            }
+            Map<Entry, State> view = view();
+            Set<Entry> kept = new HashSet<>();
+            for (State state : view.values()) {
+                if (null != state.children) {
+                    Collections.addAll(kept, state.children);
+                }
+            }
+            // entries created since snapshot can only be found in directories modified since snapshot
+            List<Entry> discarded = new ArrayList<>();
+            for (Map.Entry<Entry, State> e : view.entrySet()) {
+                if (null != e.getValue().children) {
+                    for (Entry child : children(e.getKey())) {
+                        if (!kept.contains(child)) {
+                            collectDiscarded(child, kept, discarded);
+                        }
+                    }
+                }
+            }
+            Generation latest = history.latest;
+            // modifications made by rollback are not saved
+            history.latest = null;
+            try {
+                for (Map.Entry<Entry, State> e : view.entrySet()) {
+                    if (null != e.getValue().children) {
+                        e.getKey().unlinkAll();
+                    }
+                }
+                for (Map.Entry<Entry, State> e : view.entrySet()) {
+                    if (null != e.getValue().children) {
+                        e.getKey().linkAll(e.getValue().children, e.getValue().names);
+                    }
+                }
+                // files that shrink are restored first, which frees space for files that grow
+                for (boolean shrinking : new boolean[]{true, false}) {
+                    for (Map.Entry<Entry, State> e : view.entrySet()) {
+                        FileData data = e.getValue().data;
+                        if (null != data && shrinking == (data.size() <= e.getKey().size())) {
+                            e.getKey().restoreData(data);
+                        }
+                    }
+                }
+                for (Entry entry : discarded) {
+                    entry.discard();
+                }
+            } catch (IOException | RuntimeException e) {
+                history.latest = latest;
+                throw e;
+            }
+            int index = history.snapshots.indexOf(this);
+            while (index + 1 < history.snapshots.size()) {
+                Snapshot later = history.snapshots.remove(history.snapshots.size() - 1);
+                later.closed = true;
+                later.generation.release();
+            }
+            generation.release();
+            generation = new Generation();
+            history.latest = generation;
+        }
+    }
+
+    private static void collectDiscarded(Entry entry, Set<Entry> kept, List<Entry> discarded) {
+        discarded.add(entry);
+        if (entry.isDirectory()) {
+            for (Entry child : children(entry)) {
+                // entries that existed at snapshot time may have been moved in a new directory
+                if (!kept.contains(child)) {
+                    collectDiscarded(child, kept, discarded);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists entries created, deleted or modified since this snapshot, sorted by path. Created and deleted directories
+     * are listed without their content, and moved entries are listed as deleted then created.
+     *
+     * @return changes since snapshot
+     * @throws IllegalStateException if snapshot has been closed
+     */
+    public List<Change> diff() {
+        synchronized (history) {
+            checkOpen();
+            Map<Entry, State> view = view();
+            // entries listed by directories modified since snapshot, other entries have not been moved nor renamed
+            Map<Entry, Entry> parents = new HashMap<>();
+            Map<Entry, String> names = new HashMap<>();
+            for (Map.Entry<Entry, State> e : view.entrySet()) {
+                State state = e.getValue();
+                if (null != state.children) {
+                    for (int i = 0; i < state.children.length; i++) {
+                        parents.put(state.children[i], e.getKey());
+                        names.put(state.children[i], state.names[i]);
+                    }
+                }
+            }
+            List<Change> changes = new ArrayList<>();
+            for (Map.Entry<Entry, State> e : view.entrySet()) {
+                Entry entry = e.getKey();
+                State state = e.getValue();
+                if (null != state.children) {
+                    Map<Entry, String> previous = new HashMap<>();
+                    for (int i = 0; i < state.children.length; i++) {
+                        previous.put(state.children[i], state.names[i]);
+                    }
+                    List<Entry> children = new ArrayList<>();
+                    List<String> childrenNames = new ArrayList<>();
+                    if (!entry.isDeleted()) {
+                        entry.listChildren(children, childrenNames);
+                    }
+                    Map<Entry, String> current = new HashMap<>();
+                    for (int i = 0; i < children.size(); i++) {
+                        current.put(children.get(i), childrenNames.get(i));
+                    }
+                    for (Map.Entry<Entry, String> child : previous.entrySet()) {
+                        if (!child.getValue().equals(current.get(child.getKey()))) {
+                            String path = snapshotPath(entry, parents, names) + MemoryFileSystem.SEPARATOR + child.getValue();
+                            changes.add(new Change(Change.Type.DELETED, fs.getPath(path)));
+                        }
+                    }
+                    for (Map.Entry<Entry, String> child : current.entrySet()) {
+                        if (!child.getValue().equals(previous.get(child.getKey()))) {
+                            changes.add(new Change(Change.Type.CREATED, fs.getPath(child.getKey().getPath())));
+                        }
+                    }
+                } else if (!entry.isDeleted() && !state.data.sharesContentWith(entry.getData()) && !state.data.equals(entry.getData())) {
+                    changes.add(new Change(Change.Type.MODIFIED, fs.getPath(entry.getPath())));
+                }
+            }
+            Collections.sort(changes, Change.ORDER);
+            return changes;
+        }
+    }
+
+    /**
+     * @return path of an entry when snapshot was taken, empty for root
+     */
+    private static String snapshotPath(Entry entry, Map<Entry, Entry> parents, Map<Entry, String> names) {
+        Entry parent = parents.get(entry);
+        String name = names.get(entry);
+        if (null == parent) {
+            parent = entry.getParent();
+            name = entry.getName();
+        }
+        if (null == parent) {
+            return "";
+        }
+        return snapshotPath(parent, parents, names) + MemoryFileSystem.SEPARATOR + name;
+    }
+
+    /**
+     * Releases content saved by this snapshot, content still required by previous snapshot is kept by it. Content
+     * is only released once filesystems forked from this snapshot are closed.
+     */
+    @Override
+    public void close() {
+        synchronized (history) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (0 == forks) {
+                detach();
+            }
+        }
+    }
+
+    // caller must hold history lock
+    private void detach() {
+        int index = history.snapshots.indexOf(this);
+        history.snapshots.remove(index);
+        if (0 < index) {
+            // previous snapshot relies on states saved since this snapshot
+            Snapshot previous = history.snapshots.get(index - 1);
+            for (Map.Entry<Entry, State> e : generation.states.entrySet()) {
+                if (e.getKey().getId() <= previous.lastId) {
+                    previous.generation.save(e.getKey(), e.getValue());
+                } else {
+                    e.getValue().release();
+                }
+            }
+        } else {
+            generation.release();
+        }
+        if (index == history.snapshots.size()) {
+            history.latest = history.snapshots.isEmpty() ? null : history.snapshots.get(index - 1).generation;
+        }
+    }
+
+    /**
+     * @return state of entries modified since this snapshot, which existed when snapshot was taken
+     */
+    private Map<Entry, State> view() {
+        Map<Entry, State> view = new HashMap<>();
+        List<Snapshot> snapshots = history.snapshots;
+        for (int i = snapshots.indexOf(this); i < snapshots.size(); i++) {
+            for (Map.Entry<Entry, State> e : snapshots.get(i).generation.states.entrySet()) {
+                if (e.getKey().getId() <= lastId && !view.containsKey(e.getKey())) {
+                    view.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        return view;
+    }
+
+    MemoryFileSystem getFileSystem() {
+        return fs;
+    }
+
+    /**
+     * @return true when this snapshot is open, and filesystem has not been modified since it was taken
+     */
+    boolean isUnmodified() {
+        synchronized (history) {
+            return !closed && history.latest == generation && generation.states.isEmpty();
+        }
+    }
+
+    /**
+     * Registers a filesystem forked from this snapshot, which must call {@link #releaseFork()} once closed. Forked
+     * files use the block storage of this snapshot filesystem, and are charged against space of forked filesystem
+     * when their directory is first accessed.
+     *
+     * @param space space of forked filesystem
+     * @return root directory of forked filesystem, which is loaded on first access
+     * @throws IllegalStateException if snapshot has been closed
+     */
+    Entry fork(Space space) {
+        synchronized (history) {
+            checkOpen();
+            forks++;
+        }
+        return Entry.newRoot(new ForkLoader(this, fs.getRootEntry(), space));
+    }
+
+    /**
+     * Called once a forked filesystem is closed, snapshot is released when it has already been closed
+     */
+    void releaseFork() {
+        synchronized (history) {
+            forks--;
+            if (0 == forks && closed) {
+                detach();
+            }
+        }
+    }
+
+    /**
+     * Reads state of an entry when this snapshot was taken, while filesystem may be modified concurrently. Current
+     * state is read first, then replaced by saved state if any, since state is always saved before modification.
+     *
+     * @param entry entry that existed when snapshot was taken
+     * @return entry state, file content is a copy that must be released by caller
+     */
+    private State read(Entry entry) {
+        State current;
+        if (entry.isDirectory()) {
+            List<Entry> children = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            entry.listChildren(children, names);
+            current = new State(children.toArray(new Entry[children.size()]), names.toArray(new String[names.size()]), null);
+        } else {
+            current = new State(null, null, FileData.copy(entry.getData()));
+        }
+        synchronized (history) {
+            List<Snapshot> snapshots = history.snapshots;
+            for (int i = snapshots.indexOf(this); i < snapshots.size(); i++) {
+                State saved = snapshots.get(i).generation.states.get(entry);
+                if (null != saved) {
+                    current.release();
+                    return null == saved.data ? saved : new State(null, null, FileData.copy(saved.data));
+                }
+            }
+        }
+        return current;
+    }
+
+    private static List<Entry> children(Entry directory) {
+        List<Entry> children = new ArrayList<>();
+        directory.listChildren(children, new ArrayList<String>());
+        return children;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("snapshot has been closed");
+        }
+    }
+
+    /**
+     * Copies children of a template directory at snapshot time into a forked directory, forked files share their
+     * blocks with template files
+     */
+    private static final class ForkLoader implements Entry.Loader {
+
+        private final Snapshot template;
+        private final Entry source;
+        private final Space space;
+
+        private ForkLoader(Snapshot template, Entry source, Space space) {
+            this.template = template;
+            this.source = source;
+            this.space = space;
+        }
+
+        @Override
+        public List<Entry> load(Entry directory) {
+            State state = template.read(source);
+            List<Entry> children = new ArrayList<>();
+            try {
+                for (int i = 0; i < state.children.length; i++) {
+                    Entry child = state.children[i];
+                    if (child.isDirectory()) {
+                        children.add(Entry.newUnlinkedDirectory(directory, state.names[i], new ForkLoader(template, child, space)));
+                    } else {
+                        FileData content = template.read(child).data;
+                        try {
+                            children.add(Entry.newUnlinkedFile(directory, state.names[i], content.newCopy(space)));
+                        } finally {
+                            content.release();
+                        }
+                    }
+                }
+                return children;
+            } catch (NoSpaceLeftException e) {
+                // files already copied are not part of tree
+                for (Entry child : children) {
+                    if (child.isRegularFile()) {
+                        child.getData().release();
+                    }
+                }
+                throw new ForkLoadException("unable to copy directory " + directory + " from template " + source, e);
+            }
+        }
+    }
+
+    /**
+     * Change of an entry since snapshot
+     */
+    public static final class Change {
+
+        public enum Type {
+            CREATED,
+            DELETED,
+            MODIFIED
+        }
+
+        // by path, then by type
+        static final Comparator<Change> ORDER = new Comparator<Change>() {
+            @Override
+            public int compare(Change c1, Change c2) {
+                int result = c1.path.toString().compareTo(c2.path.toString());
+                return 0 != result ? result : c1.type.compareTo(c2.type);
+            }
+        };
+
+        private final Type type;
+        private final Path path;
+
+        Change(Type type, Path path) {
+            this.type = type;
+            this.path = path;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return current path of created or modified entries, path at snapshot time for deleted entries
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Change)) {
+                return false;
+            }
+            Change other = (Change) o;
+            return type == other.type && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + path.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + path;
+        }
+    }
+
+    /**
+     * Snapshots of a tree, shared by all its entries
+     */
+    static final class History {
+
+        // thread safety : guarded by history monitor, latest is also read without lock by entries
+        private final List<Snapshot> snapshots = new ArrayList<>();
+        private volatile Generation latest;
+
+        /**
+         * @return generation of latest snapshot, where entries save their state before modification, null when
+         * there is no snapshot
+         */
+        Generation getLatest() {
+            return latest;
+        }
+    }
+
+    /**
+     * States saved by a snapshot since it was taken or rolled back
+     */
+    static final class Generation {
+
+        private final ConcurrentMap<Entry, State> states = new ConcurrentHashMap<>();
+
+        /**
+         * Saves state of an entry, unless already saved, since only the first state is the one at snapshot time
+         */
+        void save(Entry entry, State state) {
+            if (null != states.putIfAbsent(entry, state)) {
+                state.release();
+            }
+        }
+
+        private void release() {
+            for (State state : states.values()) {
+                state.release();
+            }
+            states.clear();
+        }
+    }
+
+    /**
+     * State of an entry at snapshot time
+     */
+    static final class State {
+
+        // directories only
+        private final Entry[] children;
+        private final String[] names;
+
+        // files only, copy of content
+        private final FileData data;
+
+        State(Entry[] children, String[] names, FileData data) {
+            this.children = children;
+            this.names = names;
+            this.data = data;
+        }
+
+        private void release() {
+            if (null != data) {
+                data.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Space accounting of a file store.
+ * <p>
+ * Files are charged for their size before they grow, and refunded when they shrink or are deleted, thus used space
+ * is always exact. A capacity of zero means that space is not limited, but used space is still accounted.
+ * <p>
+ * Space may also be limited by a {@link Budget} shared with other file stores : a reservation is taken from budget
+ * up-front, and space used beyond reservation is borrowed from budget, then given back once released.
+ * <p>
+ * Allocations are made while holding file and journal locks, thus they never wait for budget : writers that may wait
+ * for other file stores to release space borrow it beforehand without holding any lock, see {@link #prepare(long)}.
+ */
+final class Space {
+
+    private final long capacity;
+    private final AtomicLong used;
+
+    private final Budget budget; // null when space is not part of a shared budget
+    private final long reservation;
+
+    // thread safety : synchronized on instance for r/w
+    private long borrowed;
+    private long pending; // borrowed ahead of allocations in progress, not given back until settled
+    private boolean closed;
+
+    Space(long capacity) {
+        this(capacity, 0);
+    }
+
+    Space(long capacity, long used) {
+        this(capacity, used, null, 0);
+    }
+
+    /**
+     * @param capacity space capacity, zero for unlimited
+     * @param budget shared budget
+     * @param reservation part of budget reserved for this space
+     * @throws IllegalArgumentException if reservation can't be taken from budget
+     */
+    Space(long capacity, Budget budget, long reservation) {
+        this(capacity, 0, budget, reservation);
+    }
+
+    private Space(long capacity, long used, Budget budget, long reservation) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity can't be negative");
+        }
+        if (reservation < 0 || (0 < capacity && capacity < reservation)) {
+            throw new IllegalArgumentException("reservation must be between zero and capacity : " + reservation);
+        }
+        if (null != budget && !budget.tryAcquire(reservation)) {
+            throw new IllegalArgumentException("reservation exceeds remaining budget : " + reservation);
+        }
+        this.capacity = capacity;
+        this.used = new AtomicLong(used);
+        this.budget = budget;
+        this.reservation = null == budget ? 0 : reservation;
+    }
+
+    /**
+     * Reserves space, either all requested bytes are reserved or none
+     *
+     * @param bytes number of bytes to reserve
+     * @throws NoSpaceLeftException when there is not enough free space
+     */
+    void allocate(long bytes) throws NoSpaceLeftException {
+        if (0 == capacity) {
+            used.addAndGet(bytes);
+        } else {
+            while (true) {
+                long current = used.get();
+                if (capacity - current < bytes) {
+                    throw new NoSpaceLeftException(bytes, capacity - current);
+                }
+                if (used.compareAndSet(current, current + bytes)) {
+                    break;
+                }
+            }
+        }
+        if (null != budget) {
+            try {
+                borrow();
+            } catch (NoSpaceLeftException e) {
+                free(bytes);
+                throw e;
+            }
+            // concurrent allocations may have borrowed more than required
+            giveBack();
+        }
+    }
+
+    /**
+     * @param bytes number of bytes to release, which must have been reserved before
+     */
+    void free(long bytes) {
+        used.addAndGet(-bytes);
+        if (null != budget) {
+            giveBack();
+        }
+    }
+
+    /**
+     * Borrows space from budget ahead of allocations, waiting for other file stores to release space if budget allows
+     * it, thus caller must not hold any lock. Allocations covered by prepared space do not need budget anymore.
+     *
+     * @param bytes number of bytes about to be allocated
+     * @return prepared bytes, which must be given to {@link #settle(long)} once allocations are done
+     * @throws NoSpaceLeftException when budget is still exhausted after waiting
+     */
+    long prepare(long bytes) throws NoSpaceLeftException {
+        if (null == budget || bytes <= 0) {
+            return 0;
+        }
+        long missing;
+        synchronized (this) {
+            pending += bytes;
+            // only bytes of this call are borrowed, other calls may still be waiting for theirs
+            missing = Math.min(bytes, used.get() + pending - reservation - borrowed);
+        }
+        if (0 < missing) {
+            try {
+                budget.acquire(missing);
+            } catch (NoSpaceLeftException e) {
+                settle(bytes);
+                throw e;
+            }
+            synchronized (this) {
+                if (closed) {
+                    budget.release(missing);
+                } else {
+                    borrowed += missing;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Gives back prepared space that has not been allocated
+     *
+     * @param prepared bytes returned by {@link #prepare(long)}
+     */
+    void settle(long prepared) {
+        if (0 == prepared) {
+            return;
+        }
+        synchronized (this) {
+            pending -= prepared;
+        }
+        giveBack();
+    }
+
+    /**
+     * Borrows from budget until used space is covered by reservation and borrowed space, fails immediately when
+     * budget is exhausted since callers may hold locks, see {@link #prepare(long)}.
+     */
+    private void borrow() throws NoSpaceLeftException {
+        while (true) {
+            long missing;
+            synchronized (this) {
+                missing = used.get() - reservation - borrowed;
+                if (missing <= 0 || closed) {
+                    return;
+                }
+            }
+            if (!budget.tryAcquire(missing)) {
+                throw new NoSpaceLeftException(missing, budget.getAvailable());
+            }
+            synchronized (this) {
+                if (closed) {
+                    budget.release(missing);
+                    return;
+                }
+                borrowed += missing;
+            }
+        }
+    }
+
+    private void giveBack() {
+        long excess;
+        synchronized (this) {
+            excess = Math.min(borrowed, reservation + borrowed - used.get() - pending);
+            if (excess <= 0) {
+                return;
+            }
+            borrowed -= excess;
+        }
+        budget.release(excess);
+    }
+
+    /**
+     * Gives reservation and borrowed space back to budget, any further release has no effect on budget.
+     */
+    void close() {
+        if (null == budget) {
+            return;
+        }
+        long released;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            released = reservation + borrowed;
+            borrowed = 0;
+        }
+        budget.release(released);
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * @return part of shared budget held by this space, including its reservation
+     */
+    synchronized long getCommitted() {
+        return closed ? 0 : reservation + borrowed;
+    }
+
+    /**
+     * @return free space, always zero when space is not limited
+     */
+    long getFree() {
+        return 0 == capacity ? 0 : capacity - used.get();
+    }
+
+    /**
+     * @return free space that can actually be used, which may be less than free space when shared budget is
+     * exhausted, always zero when space is not limited
+     */
+    long getUsable() {
+        long free = getFree();
+        if (0 == free || null == budget) {
+            return free;
+        }
+        synchronized (this) {
+            return Math.min(free, reservation + borrowed - used.get() - pending + budget.getAvailable());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.io.IOException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory filesystem provider, JDK 20 and later version.
+ * <p>
+ * Checks file existence without throwing any exception when file does not exist, see
+ * {@link java.nio.file.Files#exists(Path, LinkOption...)}. Public API must remain the same as default version.
+ */
+public class MemoryFileSystemProvider extends AbstractMemoryFileSystemProvider {
+
+    public MemoryFileSystemProvider() {
+    }
+
+    /**
+     * Creates a provider with a memory budget shared by all its filesystems, writes fail as soon as budget is
+     * exhausted.
+     *
+     * @param budget maximum size of all files of all filesystems, in bytes
+     */
+    public MemoryFileSystemProvider(long budget) {
+        super(budget);
+    }
+
+    /**
+     * Creates a provider with a memory budget shared by all its filesystems, writers wait for other filesystems to
+     * release space when budget is exhausted, and fail after a maximum delay.
+     *
+     * @param budget maximum size of all files of all filesystems, in bytes
+     * @param maxWait maximum delay writers wait for space to be released
+     * @param unit delay unit
+     */
+    public MemoryFileSystemProvider(long budget, long maxWait, TimeUnit unit) {
+        super(budget, maxWait, unit);
+    }
+
+    @Override
+    public boolean exists(Path path, LinkOption... options) {
+        try {
+            return null != MemoryPath.asMemoryPath(path).findEntry();
+        } catch (LowerLayerException e) {
+            // existence can't be determined, as for other I/O errors
+            return false;
+        }
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributesIfExists(Path path, Class<A> type, LinkOption... options) throws IOException {
+        try {
+            checkAttributesType(type);
+            return type.cast(MemoryPath.asMemoryPath(path).findEntry());
+        } catch (LowerLayerException e) {
+            throw e.asIOException();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.ClosedFileSystemException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.sylvainjuge.memoryfs.MemoryFileSystem.Storage.DIRECT;
+import static com.github.sylvainjuge.memoryfs.MemoryFileSystem.Storage.HEAP;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlockStorageTest {
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidBlockSize() {
+        BlockStorage.create(HEAP, -1);
+    }
+
+    @Test
+    public void heapBlocks() {
+        checkAllocateRelease(BlockStorage.create(HEAP, 10));
+    }
+
+    @Test
+    public void directBlocks() {
+        checkAllocateRelease(BlockStorage.create(DIRECT, 10));
+    }
+
+    @Test
+    public void directBlockLargerThanSlab() {
+        checkAllocateRelease(BlockStorage.create(DIRECT, 3 * 1024 * 1024));
+    }
+
+    @Test(expectedExceptions = ClosedFileSystemException.class)
+    public void allocateFromClosedDirectStorage() {
+        BlockStorage storage = BlockStorage.create(DIRECT, 10);
+        storage.allocate();
+        storage.close();
+        storage.allocate();
+    }
+
+    @Test
+    public void closeDirectStorageTwice() {
+        BlockStorage storage = BlockStorage.create(DIRECT, 10);
+        storage.close();
+        storage.close();
+    }
+
+    @Test
+    public void releasedSlabsAreTrimmed() {
+        int slabSize = 1024 * 1024;
+        BlockStorage storage = BlockStorage.create(DIRECT, slabSize / 2);
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            blocks.add(storage.allocate());
+        }
+        assertThat(storage.getReservedMemory()).isEqualTo(3L * slabSize);
+
+        // a single empty slab is kept for next allocations
+        for (Block block : blocks) {
+            storage.release(block);
+        }
+        assertThat(storage.getReservedMemory()).isEqualTo((long) slabSize);
+        storage.allocate();
+        assertThat(storage.getReservedMemory()).isEqualTo((long) slabSize);
+
+        storage.close();
+        assertThat(storage.getReservedMemory()).isEqualTo(0L);
+    }
+
+    @Test
+    public void slabsOfDeletedFileAreFreed() throws IOException {
+        int slabSize = 1024 * 1024;
+        BlockStorage storage = BlockStorage.create(DIRECT, 1024);
+        FileData data = FileData.newEmpty(storage);
+        data.asOutputStream().write(new byte[4 * slabSize]);
+        assertThat(storage.getReservedMemory()).isEqualTo(4L * slabSize);
+
+        data.release();
+        // a single empty slab is kept for next allocations
+        assertThat(storage.getReservedMemory()).isEqualTo((long) slabSize);
+    }
+
+    @Test
+    public void releasedSlabIsFreedOnceUnpinned() {
+        int slabSize = 1024 * 1024;
+        BlockStorage storage = BlockStorage.create(DIRECT, slabSize);
+        Block first = storage.allocate();
+        Block second = storage.allocate();
+        storage.release(first);
+
+        storage.pin();
+        storage.release(second);
+        // operation in progress may still read released block
+        checkContent(second, (byte) 0);
+        assertThat(storage.getReservedMemory()).isEqualTo(2L * slabSize);
+
+        storage.unpin();
+        assertThat(storage.getReservedMemory()).isEqualTo((long) slabSize);
+    }
+
+    @Test
+    public void pinnedStorageIsFreedOnceUnpinned() {
+        BlockStorage storage = BlockStorage.create(DIRECT, 1024);
+        Block block = storage.allocate();
+        storage.pin();
+        storage.close();
+
+        // blocks remain usable by operations in progress
+        checkContent(block, (byte) 0);
+        assertThat(storage.getReservedMemory()).isEqualTo(1024L * 1024);
+
+        storage.unpin();
+        assertThat(storage.getReservedMemory()).isEqualTo(0L);
+    }
+
+    @Test(expectedExceptions = ClosedFileSystemException.class)
+    public void pinClosedDirectStorage() {
+        BlockStorage storage = BlockStorage.create(DIRECT, 10);
+        storage.close();
+        storage.pin();
+    }
+
+    private static void checkAllocateRelease(BlockStorage storage) {
+        int size = storage.getBlockSize();
+        Block block = storage.allocate();
+        assertThat(block.size()).isEqualTo(size);
+        checkContent(block, (byte) 0);
+
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = 42;
+        }
+        block.put(0, data, 0, size);
+        checkContent(block, (byte) 42);
+
+        Block copy = storage.allocate();
+        block.copyTo(copy);
+        checkContent(copy, (byte) 42);
+
+        block.clear(1, size);
+        assertThat(block.get(0)).isEqualTo((byte) 42);
+        assertThat(block.get(size - 1)).isEqualTo((byte) 0);
+
+        // released blocks may be reused, but new blocks are always empty
+        storage.release(block);
+        storage.release(copy);
+        checkContent(storage.allocate(), (byte) 0);
+        checkContent(storage.allocate(), (byte) 0);
+
+        storage.close();
+    }
+
+    private static void checkContent(Block block, byte expected) {
+        byte[] content = new byte[block.size()];
+        block.get(0, content, 0, content.length);
+        for (byte b : content) {
+            assertThat(b).isEqualTo(expected);
+        }
+    }
+}
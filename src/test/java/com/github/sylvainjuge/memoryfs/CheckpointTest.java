@@ -0,0 +1,235 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.sylvainjuge.memoryfs.TestFileSystems.newFileSystem;
+import static com.github.sylvainjuge.memoryfs.TestFileSystems.randomBytes;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CheckpointTest {
+
+    @Test
+    public void firstCheckpointContainsWholeTree() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.createDirectories(fs.getPath("/a/b"));
+        Files.write(fs.getPath("/a/b/file"), randomBytes(1234));
+        Files.createFile(fs.getPath("/empty"));
+
+        MemoryFileSystem restored = restore(checkpoint(fs));
+        assertThat(Files.readAllBytes(restored.getPath("/a/b/file"))).isEqualTo(randomBytes(1234));
+        assertThat(Files.size(restored.getPath("/empty"))).isEqualTo(0);
+        assertThat(restored.getSpace().getUsed()).isEqualTo(fs.getSpace().getUsed());
+    }
+
+    @Test
+    public void deltaOnlyContainsModifiedBlocks() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.write(fs.getPath("/large"), randomBytes(100 * 1000));
+        byte[] full = checkpoint(fs);
+
+        try (FileChannel channel = FileChannel.open(fs.getPath("/large"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), 50 * 1000);
+        }
+        byte[] delta = checkpoint(fs);
+        assertThat(full.length).isGreaterThan(100 * 1000);
+        assertThat(delta.length).isLessThan(1000 + 100);
+
+        // nothing modified
+        assertThat(checkpoint(fs).length).isLessThan(100);
+
+        byte[] expected = randomBytes(100 * 1000);
+        expected[50 * 1000] = 42;
+        assertThat(Files.readAllBytes(restore(full, delta).getPath("/large"))).isEqualTo(expected);
+    }
+
+    @Test
+    public void writesThroughMappedBufferArePartOfEveryCheckpoint() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.write(fs.getPath("/mapped"), randomBytes(2500));
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(fs.getPath("/mapped"), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2500);
+        }
+        buffer.put(0, (byte) 1);
+        byte[] full = checkpoint(fs);
+        buffer.put(1500, (byte) 2);
+        byte[] delta1 = checkpoint(fs);
+        buffer.put(2400, (byte) 3);
+        byte[] delta2 = checkpoint(fs);
+
+        byte[] expected = randomBytes(2500);
+        expected[0] = 1;
+        expected[1500] = 2;
+        assertThat(Files.readAllBytes(restore(full, delta1).getPath("/mapped"))).isEqualTo(expected);
+        expected[2400] = 3;
+        assertThat(Files.readAllBytes(restore(full, delta1, delta2).getPath("/mapped"))).isEqualTo(expected);
+    }
+
+    @Test
+    public void restoreChainOfDeltas() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.createDirectories(fs.getPath("/a/b"));
+        Files.write(fs.getPath("/a/b/file"), randomBytes(2500));
+        Files.write(fs.getPath("/deleted"), new byte[10]);
+        List<byte[]> chain = new ArrayList<>();
+        chain.add(checkpoint(fs));
+
+        Files.move(fs.getPath("/a/b"), fs.getPath("/moved"));
+        Files.delete(fs.getPath("/deleted"));
+        Files.write(fs.getPath("/moved/new"), new byte[]{1, 2, 3});
+        chain.add(checkpoint(fs));
+
+        try (FileChannel channel = FileChannel.open(fs.getPath("/moved/file"), StandardOpenOption.WRITE)) {
+            channel.truncate(1500);
+            channel.write(ByteBuffer.wrap(new byte[]{7}), 4200);
+        }
+        Files.move(fs.getPath("/moved/new"), fs.getPath("/moved/renamed"));
+        chain.add(checkpoint(fs));
+
+        MemoryFileSystem restored = restore(chain.toArray(new byte[chain.size()][]));
+        assertSameTree(restored, fs);
+        assertThat(Files.exists(restored.getPath("/deleted"))).isFalse();
+        assertThat(Files.exists(restored.getPath("/a/b"))).isFalse();
+    }
+
+    @Test
+    public void mergeFullChain() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.write(fs.getPath("/file"), randomBytes(3000));
+        Files.write(fs.getPath("/deleted"), new byte[10]);
+        byte[] full = checkpoint(fs);
+        Files.write(fs.getPath("/file"), new byte[]{1}, StandardOpenOption.APPEND);
+        byte[] delta1 = checkpoint(fs);
+        Files.delete(fs.getPath("/deleted"));
+        byte[] delta2 = checkpoint(fs);
+
+        byte[] merged = merge(full, delta1, delta2);
+        assertThat(merged.length).isLessThan(full.length + delta1.length);
+        MemoryFileSystem restored = restore(merged);
+        assertSameTree(restored, fs);
+        assertThat(Files.exists(restored.getPath("/deleted"))).isFalse();
+    }
+
+    @Test
+    public void mergeDeltas() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.write(fs.getPath("/file"), randomBytes(50));
+        byte[] full = checkpoint(fs);
+        Files.write(fs.getPath("/other"), new byte[]{1, 2});
+        byte[] delta1 = checkpoint(fs);
+        // file grows past a block that is not written again
+        try (FileChannel channel = FileChannel.open(fs.getPath("/file"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{7}), 2500);
+        }
+        byte[] delta2 = checkpoint(fs);
+
+        MemoryFileSystem restored = restore(full, merge(delta1, delta2));
+        assertSameTree(restored, fs);
+    }
+
+    @Test(expectedExceptions = InvalidImageException.class)
+    public void restoreRequiresFullCheckpoint() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        checkpoint(fs);
+        Files.createFile(fs.getPath("/file"));
+        restore(checkpoint(fs));
+    }
+
+    @Test(expectedExceptions = InvalidImageException.class)
+    public void restoreRequiresConsecutiveCheckpoints() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        byte[] full = checkpoint(fs);
+        Files.createFile(fs.getPath("/file"));
+        checkpoint(fs);
+        Files.createFile(fs.getPath("/other"));
+        restore(full, checkpoint(fs));
+    }
+
+    @Test
+    public void failedCheckpointIsFollowedByFullCheckpoint() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.write(fs.getPath("/file"), new byte[]{1, 2, 3});
+        checkpoint(fs);
+        Files.write(fs.getPath("/file"), new byte[]{4}, StandardOpenOption.APPEND);
+        try {
+            fs.checkpoint(new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    throw new IOException("write failure");
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+            throw new AssertionError("failure expected");
+        } catch (IOException e) {
+            // expected
+        }
+        assertThat(Files.readAllBytes(restore(checkpoint(fs)).getPath("/file"))).isEqualTo(new byte[]{1, 2, 3, 4});
+    }
+
+    private static void assertSameTree(MemoryFileSystem actual, MemoryFileSystem expected) {
+        assertSameEntries(actual.getRootEntry(), expected.getRootEntry());
+    }
+
+    private static void assertSameEntries(Entry actual, Entry expected) {
+        Entry actualChild = actual.getEntries();
+        for (Entry child = expected.getEntries(); null != child; child = child.getNext()) {
+            assertThat(actualChild.getName()).isEqualTo(child.getName());
+            assertThat(actualChild.isDirectory()).isEqualTo(child.isDirectory());
+            if (child.isDirectory()) {
+                assertSameEntries(actualChild, child);
+            } else {
+                assertThat(actualChild.getData()).isEqualTo(child.getData());
+            }
+            actualChild = actualChild.getNext();
+        }
+        assertThat(actualChild).isNull();
+    }
+
+    private static byte[] checkpoint(MemoryFileSystem fs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        fs.checkpoint(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private static MemoryFileSystem restore(byte[]... chain) throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        fs.restore(channels(chain));
+        return fs;
+    }
+
+    private static byte[] merge(byte[]... chain) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemoryFileSystem.mergeCheckpoints(channels(chain), Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private static List<ReadableByteChannel> channels(byte[]... chain) {
+        List<ReadableByteChannel> channels = new ArrayList<>();
+        for (byte[] checkpoint : chain) {
+            channels.add(Channels.newChannel(new ByteArrayInputStream(checkpoint)));
+        }
+        return channels;
+    }
+}
@@ -397,7 +397,7 @@ public class EntryTest {
     }
 
     @Test
-    public void copyFile() {
+    public void copyFile() throws IOException {
         // copy a single file
         // file data should be identical, but not the same instance
         Entry root = Entry.newRoot();
@@ -407,7 +407,7 @@ public class EntryTest {
     }
 
     @Test(expectedExceptions = ConflictException.class)
-    public void tryToCreateConflictThroughCopy() {
+    public void tryToCreateConflictThroughCopy() throws IOException {
         Entry root = Entry.newRoot();
         Entry file = Entry.newFile(root, "file");
         file.copy(root, "file");
@@ -423,7 +423,7 @@ public class EntryTest {
     }
 
     @Test(enabled = false)
-    public void copyFolder() {
+    public void copyFolder() throws IOException {
         Entry root = Entry.newRoot();
         Entry folderToCopy = Entry.newDirectory(root, "toCopy");
         Entry folder = Entry.newDirectory(folderToCopy, "folder");
@@ -445,6 +445,122 @@ public class EntryTest {
         // - identical data as another file
     }
 
+    @Test
+    public void largeDirectory() {
+        Entry root = Entry.newRoot();
+        int count = Entry.INDEX_THRESHOLD * 4;
+        List<Entry> children = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            children.add(Entry.newFile(root, "file" + i));
+        }
+        for (int i = 0; i < count; i++) {
+            assertThat(root.getChild("file" + i)).isSameAs(children.get(i));
+        }
+
+        // rename, delete & move keep children and index consistent
+        children.get(0).rename("renamed");
+        assertThat(root.getChild("file0")).isNull();
+        assertThat(root.getChild("renamed")).isSameAs(children.get(0));
+        children.get(count - 1).delete();
+        assertThat(root.getChild("file" + (count - 1))).isNull();
+        Entry folder = Entry.newDirectory(root, "folder");
+        children.get(1).move(folder);
+        assertThat(root.getChild("file1")).isNull();
+        assertThat(folder.getChild("file1")).isSameAs(children.get(1));
+
+        // delete most children, directory is scanned again
+        for (int i = 2; i < count - 1; i++) {
+            children.get(i).delete();
+        }
+        List<Entry> remaining = new ArrayList<>();
+        for (Entry e = root.getEntries(); e != null; e = e.getNext()) {
+            remaining.add(e);
+        }
+        assertThat(remaining).containsExactly(children.get(0), folder);
+        assertThat(root.getChild("renamed")).isSameAs(children.get(0));
+        assertThat(root.getChild("file2")).isNull();
+        Entry.newFile(root, "file2");
+        assertThat(root.getChild("file2")).isNotNull();
+    }
+
+    @Test
+    public void moveConflictKeepsEntry() {
+        Entry root = Entry.newRoot();
+        Entry folder = Entry.newDirectory(root, "folder");
+        Entry file = Entry.newFile(root, "file");
+        Entry.newFile(folder, "file");
+        try {
+            file.move(folder);
+            fail("move should fail with a conflict");
+        } catch (ConflictException e) {
+            // expected
+        }
+        assertThat(root.getChild("file")).isSameAs(file);
+    }
+
+    @Test
+    public void lookupDuringMoveIsRetried() {
+        Entry root = Entry.newRoot();
+        final Entry a = Entry.newDirectory(root, "a");
+        Entry b = Entry.newDirectory(root, "b");
+        Entry.newFile(a, "first");
+        Entry moving = Entry.newFile(a, "moving");
+        Entry.newFile(a, "last");
+
+        // lock-free lookup of "last" starts once moving entry is being unlinked, and stands on moving entry
+        final int[] stamp = new int[1];
+        final Entry[] scan = new Entry[1];
+        Entry.changeHook = new Runnable() {
+            @Override
+            public void run() {
+                Entry.changeHook = null;
+                stamp[0] = a.getModCount();
+                scan[0] = a.getEntries().getNext();
+            }
+        };
+        try {
+            moving.move(b);
+        } finally {
+            Entry.changeHook = null;
+        }
+
+        // moving entry is now the last child of b, thus scan ends before reaching last entry of a
+        assertThat(scan[0]).isSameAs(moving);
+        assertThat(scan[0].getNext()).isNull();
+        assertThat(a.isUnmodifiedSince(stamp[0])).isFalse();
+        assertThat(a.getChild("last")).isNotNull();
+    }
+
+    @Test
+    public void moveOutOfDirectoryBeingDeleted() {
+        final Entry root = Entry.newRoot();
+        Entry dir = Entry.newDirectory(root, "dir");
+        final Entry file = Entry.newFile(dir, "file");
+
+        // directory is unlinked from root once deleted, but before its children are deleted
+        final List<RuntimeException> errors = new ArrayList<>();
+        Entry.changeHook = new Runnable() {
+            @Override
+            public void run() {
+                Entry.changeHook = null;
+                try {
+                    file.move(root);
+                } catch (InvalidRequestException e) {
+                    errors.add(e);
+                }
+            }
+        };
+        try {
+            assertThat(dir.delete()).isTrue();
+        } finally {
+            Entry.changeHook = null;
+        }
+
+        assertThat(errors).hasSize(1);
+        assertThat(file.isDeleted()).isTrue();
+        assertThat(root.getChild("file")).isNull();
+    }
+
     private static Entry newFileWithNameAsData(Entry parent, String name) {
         Entry result = Entry.newFile(parent, name);
         try {
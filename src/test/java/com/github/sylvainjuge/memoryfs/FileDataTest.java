@@ -5,7 +5,11 @@ import org.testng.annotations.Test;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
@@ -82,6 +86,276 @@ public class FileDataTest {
                 .isDistinctCopyOf(data);
     }
 
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidBlockSize() {
+        FileData.newEmpty(0);
+    }
+
+    @Test
+    public void appendAcrossBlocks() throws IOException {
+        byte[] bytes = new byte[]{1, 2, 3, 4, 5, 6, 7};
+        FileData data = FileData.newEmpty(3);
+        data.asOutputStream().write(bytes, 0, 2);
+        data.asOutputStream().write(bytes, 2, 5);
+        assertData(data)
+                .hasContent(bytes)
+                .hasSize(bytes.length);
+        assertThat(data.hashCode()).isEqualTo(Arrays.hashCode(bytes));
+        TestEquals.checkHashCodeEqualsConsistency(true, data, FileData.fromData(bytes));
+    }
+
+    @Test
+    public void truncateWithinBlock() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        data.asOutputStream().write(new byte[]{1, 2, 3, 4, 5, 6, 7});
+
+        data.truncate(4);
+        assertData(data).hasContent(new byte[]{1, 2, 3, 4});
+
+        // truncated data must not re-appear when file grows again
+        data.asOutputStream().write(new byte[]{8});
+        assertData(data).hasContent(new byte[]{1, 2, 3, 4, 8});
+
+        data.truncate(0);
+        assertData(data).isEmpty();
+    }
+
+    @Test
+    public void blockCopyOnCopy() throws IOException {
+        byte[] bytes = new byte[]{1, 2, 3, 4, 5};
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(bytes);
+
+        FileData copy = FileData.copy(data);
+        assertThat(copy.getBlockSize()).isEqualTo(2);
+        assertData(copy)
+                .hasContent(bytes)
+                .isDistinctCopyOf(data);
+
+        data.truncate(1);
+        assertData(copy).hasContent(bytes);
+    }
+
+    @Test
+    public void copySharesContentUntilWritten() throws IOException {
+        byte[] bytes = new byte[]{1, 2, 3, 4, 5};
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(bytes);
+
+        FileData copy = FileData.copy(data);
+        assertThat(copy.sharesContentWith(data)).isTrue();
+
+        // writing to original only alters original
+        data.asOutputStream().write(6);
+        assertThat(copy.sharesContentWith(data)).isFalse();
+        assertData(data).hasContent(new byte[]{1, 2, 3, 4, 5, 6});
+        assertData(copy).hasContent(bytes);
+
+        // writing to copy only alters copy
+        copy.asOutputStream().write(7);
+        assertData(data).hasContent(new byte[]{1, 2, 3, 4, 5, 6});
+        assertData(copy).hasContent(new byte[]{1, 2, 3, 4, 5, 7});
+    }
+
+    @Test
+    public void truncateSharedCopy() throws IOException {
+        byte[] bytes = new byte[]{1, 2, 3, 4, 5};
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(bytes);
+
+        FileData copy = FileData.copy(data);
+        copy.truncate(3);
+        assertData(copy).hasContent(new byte[]{1, 2, 3});
+        assertData(data).hasContent(bytes);
+
+        copy.asOutputStream().write(8);
+        assertData(copy).hasContent(new byte[]{1, 2, 3, 8});
+        assertData(data).hasContent(bytes);
+    }
+
+    @Test
+    public void releaseOriginalKeepsCopy() throws IOException {
+        byte[] bytes = new byte[]{1, 2, 3, 4, 5};
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(bytes);
+
+        FileData copy = FileData.copy(data);
+        data.release();
+
+        assertData(data).isEmpty();
+        assertData(copy).hasContent(bytes);
+    }
+
+    @Test
+    public void writeAtPosition() throws IOException {
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(new byte[]{1, 2, 3});
+
+        assertThat(data.write(1, ByteBuffer.wrap(new byte[]{4, 5}))).isEqualTo(2);
+        assertData(data).hasContent(new byte[]{1, 4, 5});
+
+        // writing past end of file fills the gap with zeros
+        assertThat(data.write(6, ByteBuffer.wrap(new byte[]{6}))).isEqualTo(1);
+        assertData(data).hasContent(new byte[]{1, 4, 5, 0, 0, 0, 6});
+    }
+
+    @Test
+    public void readAtPosition() throws IOException {
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(new byte[]{1, 2, 3, 4, 5});
+
+        ByteBuffer buffer = ByteBuffer.allocate(3);
+        assertThat(data.read(1, buffer)).isEqualTo(3);
+        assertThat(buffer.array()).isEqualTo(new byte[]{2, 3, 4});
+
+        buffer.clear();
+        assertThat(data.read(4, buffer)).isEqualTo(1);
+        assertThat(data.read(5, buffer)).isLessThan(0);
+    }
+
+    @Test
+    public void mapMovesBlocksOnce() throws IOException {
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(new byte[]{1, 2, 3, 4, 5});
+
+        ByteBuffer first = data.map(1, 3, true);
+        ByteBuffer second = data.map(0, 5, false);
+        first.put(0, (byte) 42);
+        assertThat(second.get(1)).isEqualTo((byte) 42);
+        assertData(data).hasContent(new byte[]{1, 42, 3, 4, 5});
+    }
+
+    @Test
+    public void mappedFileGrowsWithinRegion() throws IOException {
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(new byte[]{1, 2, 3});
+
+        ByteBuffer first = data.map(0, 3, true);
+        data.asOutputStream().write(new byte[]{4});
+        ByteBuffer second = data.map(2, 2, true);
+        second.put(0, (byte) 42);
+        assertThat(first.get(2)).isEqualTo((byte) 42);
+        assertData(data).hasContent(new byte[]{1, 2, 42, 4});
+    }
+
+    @Test
+    public void copyDoesNotShareWritableMappedBlocks() throws IOException {
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(new byte[]{1, 2, 3, 4, 5});
+
+        ByteBuffer buffer = data.map(0, 5, true);
+        FileData copy = FileData.copy(data);
+        buffer.put(1, (byte) 42);
+        assertData(copy).hasContent(new byte[]{1, 2, 3, 4, 5});
+        assertData(data).hasContent(new byte[]{1, 42, 3, 4, 5});
+
+        // file is still mapped once copied
+        data.write(3, ByteBuffer.wrap(new byte[]{43}));
+        assertThat(buffer.get(3)).isEqualTo((byte) 43);
+    }
+
+    @Test
+    public void restoreUndoesWritesThroughMappedBuffer() throws IOException {
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(new byte[]{1, 2, 3});
+
+        ByteBuffer buffer = data.map(0, 3, true);
+        FileData saved = FileData.copy(data);
+        buffer.put(0, (byte) 42);
+        data.restore(saved);
+        assertData(data).hasContent(new byte[]{1, 2, 3});
+    }
+
+    @Test
+    public void transferToWritableMappedFileWritesInPlace() throws IOException {
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(new byte[]{1, 2, 3, 4});
+        FileData source = FileData.newEmpty(2);
+        source.asOutputStream().write(new byte[]{5, 6});
+
+        ByteBuffer buffer = data.map(0, 4, true);
+        data.transferFrom(source, 0, 2, 2);
+        assertThat(buffer.get(2)).isEqualTo((byte) 5);
+        buffer.put(3, (byte) 42);
+        assertData(source).hasContent(new byte[]{5, 6});
+        assertData(data).hasContent(new byte[]{1, 2, 5, 42});
+    }
+
+    @Test
+    public void copyModifiedCollectsModifiedBlocks() throws IOException {
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(new byte[]{1, 2, 3, 4, 5, 6});
+
+        // all blocks are modified until first collection
+        BitSet blocks = new BitSet();
+        data.copyModified(blocks).release();
+        assertThat(blocks).isEqualTo(bits(0, 1, 2));
+
+        final List<FileData> notified = new ArrayList<>();
+        data.setListener(new FileData.Listener() {
+            @Override
+            public void modifying(FileData modifying) {
+            }
+
+            @Override
+            public void modified(FileData modified) {
+                notified.add(modified);
+            }
+        });
+        data.write(3, ByteBuffer.wrap(new byte[]{42}));
+        data.write(8, ByteBuffer.wrap(new byte[]{42}));
+        blocks.clear();
+        FileData copy = data.copyModified(blocks);
+        assertThat(blocks).isEqualTo(bits(1, 3, 4));
+        assertThat(notified).containsExactly(data);
+        assertData(copy).hasContent(new byte[]{1, 2, 3, 42, 5, 6, 0, 0, 42});
+
+        blocks.clear();
+        data.copyModified(blocks).release();
+        assertThat(blocks.isEmpty()).isTrue();
+
+        // truncation at block boundary only modifies file size
+        data.truncate(4);
+        blocks.clear();
+        data.copyModified(blocks).release();
+        assertThat(blocks.isEmpty()).isTrue();
+        assertThat(notified).hasSize(2);
+    }
+
+    @Test
+    public void readAndWriteThroughCursor() throws IOException {
+        FileData data = FileData.newEmpty(BlockStorage.create(MemoryFileSystem.Storage.DIRECT, 4));
+        Block.Cursor cursor = new Block.Cursor();
+        for (byte i = 0; i < 10; i++) {
+            assertThat(data.write(i, ByteBuffer.wrap(new byte[]{i}), cursor)).isEqualTo(1);
+        }
+        // overlaps two blocks
+        data.write(3, ByteBuffer.wrap(new byte[]{42, 43}), cursor);
+        assertData(data).hasContent(new byte[]{0, 1, 2, 42, 43, 5, 6, 7, 8, 9});
+
+        ByteBuffer buffer = ByteBuffer.allocate(3);
+        assertThat(data.read(2, buffer, cursor)).isEqualTo(3);
+        assertThat(buffer.array()).isEqualTo(new byte[]{2, 42, 43});
+        buffer.clear();
+        assertThat(data.read(8, buffer, cursor)).isEqualTo(2);
+        assertThat(buffer.position()).isEqualTo(2);
+        assertThat(data.read(10, buffer, cursor)).isEqualTo(-1);
+
+        // written through another cursor
+        data.write(9, ByteBuffer.wrap(new byte[]{44}));
+        buffer.clear();
+        assertThat(data.read(8, buffer, cursor)).isEqualTo(2);
+        assertThat(Arrays.copyOf(buffer.array(), 2)).isEqualTo(new byte[]{8, 44});
+    }
+
+    private static BitSet bits(int... indexes) {
+        BitSet bits = new BitSet();
+        for (int index : indexes) {
+            bits.set(index);
+        }
+        return bits;
+    }
+
     private static FileDataAssert assertData(FileData data) {
         return new FileDataAssert(data);
     }
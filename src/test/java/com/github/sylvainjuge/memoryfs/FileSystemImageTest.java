@@ -0,0 +1,215 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static com.github.sylvainjuge.memoryfs.TestFileSystems.newFileSystem;
+import static com.github.sylvainjuge.memoryfs.TestFileSystems.randomBytes;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FileSystemImageTest {
+
+    @Test
+    public void saveAndLoadEmptyFileSystem() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        MemoryFileSystem loaded = newFileSystem();
+        loaded.load(readImage(save(fs)));
+        assertThat(loaded.findEntry(loaded.getPath("/")).getEntries()).isNull();
+    }
+
+    @Test
+    public void saveAndLoadTree() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        byte[] large = randomBytes(3 * 64 * 1024 + 17);
+        Files.createDirectories(fs.getPath("/a/b/c"));
+        Files.createDirectory(fs.getPath("/empty"));
+        Files.createFile(fs.getPath("/a/empty-file"));
+        Files.write(fs.getPath("/a/b/small"), new byte[]{1, 2, 3});
+        Files.write(fs.getPath("/a/b/c/large"), large);
+        Files.write(fs.getPath("/\u00e9t\u00e9"), new byte[]{4});
+
+        MemoryFileSystem loaded = newFileSystem();
+        loaded.load(readImage(save(fs)));
+
+        assertThat(Files.isDirectory(loaded.getPath("/a/b/c"))).isTrue();
+        assertThat(Files.isDirectory(loaded.getPath("/empty"))).isTrue();
+        assertThat(Files.size(loaded.getPath("/a/empty-file"))).isEqualTo(0);
+        assertThat(Files.readAllBytes(loaded.getPath("/a/b/small"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(Files.readAllBytes(loaded.getPath("/a/b/c/large"))).isEqualTo(large);
+        assertThat(Files.readAllBytes(loaded.getPath("/\u00e9t\u00e9"))).isEqualTo(new byte[]{4});
+        assertThat(loaded.getSpace().getUsed()).isEqualTo(fs.getSpace().getUsed());
+    }
+
+    @Test
+    public void childrenOrderIsPreserved() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        for (int i = 0; i < 20; i++) {
+            Files.createFile(fs.getPath("/file-" + (19 - i)));
+        }
+        MemoryFileSystem loaded = newFileSystem();
+        loaded.load(readImage(save(fs)));
+
+        Entry expected = fs.findEntry(fs.getPath("/")).getEntries();
+        Entry actual = loaded.findEntry(loaded.getPath("/")).getEntries();
+        while (null != expected) {
+            assertThat(actual.getName()).isEqualTo(expected.getName());
+            expected = expected.getNext();
+            actual = actual.getNext();
+        }
+        assertThat(actual).isNull();
+    }
+
+    @Test
+    public void loadedFilesAreIndependentFromImage() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Path file = Files.write(fs.getPath("/file"), new byte[]{1, 2});
+        byte[] image = save(fs);
+        Files.write(file, new byte[]{3});
+
+        MemoryFileSystem loaded = newFileSystem();
+        loaded.load(readImage(image));
+        assertThat(Files.readAllBytes(loaded.getPath("/file"))).isEqualTo(new byte[]{1, 2});
+    }
+
+    @Test(expectedExceptions = InvalidImageException.class)
+    public void loadInvalidMagic() throws IOException {
+        byte[] image = save(newFileSystem());
+        image[0] = 0;
+        newFileSystem().load(readImage(image));
+    }
+
+    @Test(expectedExceptions = InvalidImageException.class)
+    public void loadUnsupportedVersion() throws IOException {
+        byte[] image = save(newFileSystem());
+        ByteBuffer.wrap(image).putInt(4, FileSystemImage.VERSION + 1);
+        newFileSystem().load(readImage(image));
+    }
+
+    @Test
+    public void loadTruncatedImageReleasesLoadedFiles() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.write(fs.getPath("/file"), new byte[100]);
+        byte[] image = save(fs);
+
+        MemoryFileSystem loaded = newFileSystem();
+        try {
+            loaded.load(readImage(Arrays.copyOf(image, image.length - 5)));
+            throw new AssertionError("failure expected");
+        } catch (EOFException e) {
+            // expected
+        }
+        assertThat(loaded.findEntry(loaded.getPath("/")).getEntries()).isNull();
+        assertThat(loaded.getSpace().getUsed()).isEqualTo(0);
+    }
+
+    @Test
+    public void loadConflictReleasesFilesNotAdded() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.write(fs.getPath("/a"), new byte[10]);
+        Files.write(fs.getPath("/b"), new byte[20]);
+        byte[] image = save(fs);
+
+        MemoryFileSystem loaded = newFileSystem();
+        Files.createFile(loaded.getPath("/b"));
+        try {
+            loaded.load(readImage(image));
+            throw new AssertionError("failure expected");
+        } catch (ConflictException e) {
+            // expected
+        }
+        assertThat(Files.size(loaded.getPath("/a"))).isEqualTo(10);
+        assertThat(Files.size(loaded.getPath("/b"))).isEqualTo(0);
+        assertThat(loaded.getSpace().getUsed()).isEqualTo(10);
+    }
+
+    @Test
+    public void mountImage() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        byte[] large = randomBytes(5 * 1000 + 10);
+        Files.createDirectories(fs.getPath("/a/b"));
+        Files.write(fs.getPath("/a/b/large"), large);
+        Files.write(fs.getPath("/small"), new byte[]{1, 2, 3});
+
+        MemoryFileSystem mounted = mount(saveFile(fs), 64);
+        assertThat(Files.readAllBytes(mounted.getPath("/a/b/large"))).isEqualTo(large);
+        assertThat(Files.readAllBytes(mounted.getPath("/small"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(mounted.getSpace().getUsed()).isEqualTo(large.length + 3);
+    }
+
+    @Test
+    public void mountedDirectoriesAreLoadedOnFirstAccess() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.write(Files.createDirectory(fs.getPath("/a")).resolve("file"), new byte[10]);
+        Files.write(Files.createDirectory(fs.getPath("/b")).resolve("file"), new byte[20]);
+
+        MemoryFileSystem mounted = mount(saveFile(fs), FileSystemImage.WINDOW_SIZE);
+        assertThat(mounted.getSpace().getUsed()).isEqualTo(0);
+        assertThat(Files.size(mounted.getPath("/a/file"))).isEqualTo(10);
+        assertThat(mounted.getSpace().getUsed()).isEqualTo(10);
+
+        // deleted directory is never loaded
+        Files.delete(mounted.getPath("/b/file"));
+        assertThat(mounted.getSpace().getUsed()).isEqualTo(10);
+    }
+
+    @Test
+    public void mountedFilesAreCopiedOnWrite() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.write(fs.getPath("/file"), randomBytes(2000));
+        Path image = saveFile(fs);
+        byte[] imageContent = Files.readAllBytes(image);
+
+        MemoryFileSystem mounted = mount(image, FileSystemImage.WINDOW_SIZE);
+        try (FileChannel channel = FileChannel.open(mounted.getPath("/file"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), 1500);
+            channel.truncate(1200);
+        }
+        byte[] expected = Arrays.copyOf(randomBytes(2000), 1200);
+        assertThat(Files.readAllBytes(mounted.getPath("/file"))).isEqualTo(expected);
+        assertThat(Files.readAllBytes(image)).isEqualTo(imageContent);
+    }
+
+    @Test(expectedExceptions = ImageLoadException.class)
+    public void mountCorruptedDirectory() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.createFile(fs.getPath("/file"));
+        byte[] image = save(fs);
+        // first record type, which is the file
+        image[12] = 42;
+        Path file = Files.write(newFileSystem().getPath("/image"), image);
+
+        MemoryFileSystem mounted = mount(file, FileSystemImage.WINDOW_SIZE);
+        Files.exists(mounted.getPath("/file"));
+    }
+
+    private static Path saveFile(MemoryFileSystem fs) throws IOException {
+        return Files.write(newFileSystem().getPath("/image"), save(fs));
+    }
+
+    private static MemoryFileSystem mount(Path image, int windowSize) throws IOException {
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider();
+        return MemoryFileSystem.builder(provider).blockSize(1000).image(FileSystemImage.Mapping.open(image, windowSize)).build();
+    }
+
+    private static byte[] save(MemoryFileSystem fs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        fs.save(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private static ReadableByteChannel readImage(byte[] image) {
+        return Channels.newChannel(new ByteArrayInputStream(image));
+    }
+}
@@ -0,0 +1,226 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Journal directory is stored in another memory filesystem, a crash is simulated by recovering a new filesystem
+ * from journal directory without closing journaled filesystem.
+ */
+public class JournalTest {
+
+    private static final long NO_COMPACTION = Long.MAX_VALUE;
+
+    @Test
+    public void recoverNamespaceMutations() throws IOException {
+        Path directory = newJournalDirectory();
+        MemoryFileSystem fs = openJournaled(directory, NO_COMPACTION);
+        Files.createDirectories(fs.getPath("/a/b"));
+        Files.write(fs.getPath("/a/b/file"), new byte[]{1, 2, 3});
+        Files.copy(fs.getPath("/a/b/file"), fs.getPath("/c/copy"));
+        Files.move(fs.getPath("/a/b"), fs.getPath("/moved"));
+        Files.createFile(fs.getPath("/deleted"));
+        Files.delete(fs.getPath("/deleted"));
+
+        MemoryFileSystem recovered = openJournaled(directory, NO_COMPACTION);
+        assertThat(Files.readAllBytes(recovered.getPath("/moved/file"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(Files.readAllBytes(recovered.getPath("/c/copy"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(Files.isDirectory(recovered.getPath("/a"))).isTrue();
+        assertThat(Files.exists(recovered.getPath("/a/b"))).isFalse();
+        assertThat(Files.exists(recovered.getPath("/deleted"))).isFalse();
+    }
+
+    @Test
+    public void recoverChannelWrites() throws IOException {
+        Path directory = newJournalDirectory();
+        MemoryFileSystem fs = openJournaled(directory, NO_COMPACTION);
+        try (FileChannel channel = FileChannel.open(fs.getPath("/file"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}));
+            channel.write(ByteBuffer.wrap(new byte[]{9}), 1);
+            channel.truncate(4);
+        }
+        Files.write(fs.getPath("/appended"), new byte[]{1}, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        Files.write(fs.getPath("/appended"), new byte[]{2}, StandardOpenOption.APPEND);
+        Files.write(fs.getPath("/truncated"), new byte[]{1, 2, 3});
+        Files.write(fs.getPath("/truncated"), new byte[]{4});
+
+        MemoryFileSystem recovered = openJournaled(directory, NO_COMPACTION);
+        assertThat(Files.readAllBytes(recovered.getPath("/file"))).isEqualTo(new byte[]{1, 9, 3, 4});
+        assertThat(Files.readAllBytes(recovered.getPath("/appended"))).isEqualTo(new byte[]{1, 2});
+        assertThat(Files.readAllBytes(recovered.getPath("/truncated"))).isEqualTo(new byte[]{4});
+    }
+
+    @Test
+    public void incompleteLastRecordIsDiscarded() throws IOException {
+        Path directory = newJournalDirectory();
+        MemoryFileSystem fs = openJournaled(directory, NO_COMPACTION);
+        Files.createFile(fs.getPath("/file"));
+        Path segment = directory.resolve(Journal.SEGMENT_PREFIX + 0);
+        long size = Files.size(segment);
+        // record header written just before crash
+        Files.write(segment, new byte[]{0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+
+        MemoryFileSystem recovered = openJournaled(directory, NO_COMPACTION);
+        assertThat(Files.size(segment)).isEqualTo(size);
+        assertThat(Files.exists(recovered.getPath("/file"))).isTrue();
+    }
+
+    @Test
+    public void compactionWritesImageAndDropsOldSegments() throws Exception {
+        Path directory = newJournalDirectory();
+        MemoryFileSystem fs = openJournaled(directory, 1000);
+        for (int i = 0; i < 10; i++) {
+            Files.write(fs.getPath("/file-" + i), new byte[500]);
+        }
+        // compaction runs in background
+        for (int i = 0; i < 500 && list(directory).size() != 2; i++) {
+            Thread.sleep(10);
+        }
+        Files.write(fs.getPath("/last"), new byte[]{1});
+        fs.close();
+
+        assertThat(list(directory)).hasSize(2);
+        MemoryFileSystem recovered = openJournaled(directory, NO_COMPACTION);
+        for (int i = 0; i < 10; i++) {
+            assertThat(Files.size(recovered.getPath("/file-" + i))).isEqualTo(500);
+        }
+        assertThat(Files.readAllBytes(recovered.getPath("/last"))).isEqualTo(new byte[]{1});
+    }
+
+    @Test
+    public void rollbackDuringCompaction() throws Exception {
+        Path directory = newJournalDirectory();
+        MemoryFileSystem fs = openJournaled(directory, 1000);
+        Files.write(fs.getPath("/kept"), new byte[]{1, 2, 3});
+        Snapshot snapshot = fs.snapshot();
+        for (int i = 0; i < 10; i++) {
+            Files.write(fs.getPath("/file-" + i), new byte[500]);
+        }
+        // waits for compaction in progress if any, which must not be the template of an open filesystem anymore
+        snapshot.rollback();
+        Files.write(fs.getPath("/last"), new byte[]{1});
+        fs.close();
+
+        MemoryFileSystem recovered = openJournaled(directory, NO_COMPACTION);
+        assertThat(Files.readAllBytes(recovered.getPath("/kept"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(Files.exists(recovered.getPath("/file-0"))).isFalse();
+        assertThat(Files.readAllBytes(recovered.getPath("/last"))).isEqualTo(new byte[]{1});
+    }
+
+    @Test
+    public void concurrentWritersAreAllDurable() throws Exception {
+        Path directory = newJournalDirectory();
+        final MemoryFileSystem fs = openJournaled(directory, NO_COMPACTION);
+        final int writes = 100;
+        try (TestExecutorService pool = TestExecutorService.wrap(Executors.newFixedThreadPool(4))) {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final Path file = fs.getPath("/file-" + i);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                            for (int n = 0; n < writes; n++) {
+                                channel.write(ByteBuffer.wrap(new byte[]{(byte) n}));
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        }
+
+        MemoryFileSystem recovered = openJournaled(directory, NO_COMPACTION);
+        for (int i = 0; i < 4; i++) {
+            byte[] content = Files.readAllBytes(recovered.getPath("/file-" + i));
+            assertThat(content).hasSize(writes);
+            assertThat(content[writes - 1]).isEqualTo((byte) (writes - 1));
+        }
+    }
+
+    @Test
+    public void recoverRollback() throws IOException {
+        Path directory = newJournalDirectory();
+        MemoryFileSystem fs = openJournaled(directory, NO_COMPACTION);
+        Files.write(fs.getPath("/kept"), new byte[]{1, 2, 3});
+        Snapshot snapshot = fs.snapshot();
+        Files.write(fs.getPath("/kept"), new byte[]{4});
+        Files.createFile(fs.getPath("/discarded"));
+        snapshot.rollback();
+        Files.write(fs.getPath("/after"), new byte[]{5});
+
+        MemoryFileSystem recovered = openJournaled(directory, NO_COMPACTION);
+        assertThat(Files.readAllBytes(recovered.getPath("/kept"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(Files.exists(recovered.getPath("/discarded"))).isFalse();
+        assertThat(Files.readAllBytes(recovered.getPath("/after"))).isEqualTo(new byte[]{5});
+    }
+
+    @Test
+    public void recoverLoadAndRestore() throws IOException {
+        MemoryFileSystem source = MemoryFileSystem.builder(new MemoryFileSystemProvider()).build();
+        Files.write(source.getPath("/loaded"), new byte[]{1, 2});
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        source.save(Channels.newChannel(image));
+        Files.delete(source.getPath("/loaded"));
+        Files.write(source.getPath("/restored"), new byte[]{3});
+        ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+        source.checkpoint(Channels.newChannel(checkpoint));
+
+        Path directory = newJournalDirectory();
+        MemoryFileSystem fs = openJournaled(directory, NO_COMPACTION);
+        fs.load(Channels.newChannel(new ByteArrayInputStream(image.toByteArray())));
+        fs.restore(Collections.singletonList(Channels.newChannel(new ByteArrayInputStream(checkpoint.toByteArray()))));
+
+        MemoryFileSystem recovered = openJournaled(directory, NO_COMPACTION);
+        assertThat(Files.readAllBytes(recovered.getPath("/loaded"))).isEqualTo(new byte[]{1, 2});
+        assertThat(Files.readAllBytes(recovered.getPath("/restored"))).isEqualTo(new byte[]{3});
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void journalRequiresEmptyFileSystem() throws IOException {
+        MemoryFileSystem fs = MemoryFileSystem.builder(new MemoryFileSystemProvider()).build();
+        Files.createFile(fs.getPath("/file"));
+        fs.openJournal(newJournalDirectory());
+    }
+
+    private static Path newJournalDirectory() {
+        return MemoryFileSystem.builder(new MemoryFileSystemProvider()).build().getPath("/journal");
+    }
+
+    private static MemoryFileSystem openJournaled(Path directory, long compactionThreshold) throws IOException {
+        MemoryFileSystem fs = MemoryFileSystem.builder(new MemoryFileSystemProvider()).blockSize(100).build();
+        fs.openJournal(directory, compactionThreshold);
+        return fs;
+    }
+
+    private static List<String> list(Path directory) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                names.add(file.getFileName().toString());
+            }
+        }
+        return names;
+    }
+}
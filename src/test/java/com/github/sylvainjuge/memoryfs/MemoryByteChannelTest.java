@@ -8,6 +8,7 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.NonReadableChannelException;
 import java.nio.channels.NonWritableChannelException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -142,7 +143,7 @@ public class MemoryByteChannelTest {
         assertThat(c.position()).isEqualTo(0);
     }
 
-    @Test(enabled = false)
+    @Test
     public void writeInExistingData() throws IOException {
         FileData data = zeroFileData(3);
         MemoryByteChannel write = newWriteChannel(data, true);
@@ -162,8 +163,7 @@ public class MemoryByteChannelTest {
         write.position(2);
         write.write(ByteBuffer.wrap(new byte[]{2, 3}));
 
-        read.position(0);
-        readsExpected(read, new byte[]{0, 1, 2, 3});
+        readsExpected(newReadChannel(data), new byte[]{0, 1, 2, 3});
 
     }
 
@@ -238,10 +238,57 @@ public class MemoryByteChannelTest {
         c.position(-1);
     }
 
-    @Test(expectedExceptions = IllegalArgumentException.class)
-    public void outOfBoundPositionNotAllowed() throws IOException {
+    @Test
+    public void readPastEndOfFile() throws IOException {
         MemoryByteChannel c = newReadChannel(randomFileData(1));
-        c.position(1);
+        assertThat(c.position(5)).isSameAs(c);
+        assertThat(c.read(ByteBuffer.allocate(1))).isLessThan(0);
+        assertThat(c.position()).isEqualTo(5);
+    }
+
+    @Test
+    public void writePastEndOfFile() throws IOException {
+        FileData data = FileData.newEmpty(2);
+        MemoryByteChannel write = newWriteChannel(data, false);
+
+        // gap between previous end of file and write position is filled with zeros
+        write.position(5);
+        assertThat(write.write(ByteBuffer.wrap(new byte[]{1, 2}))).isEqualTo(2);
+        assertThat(write.position()).isEqualTo(7);
+        assertThat(write.size()).isEqualTo(7);
+
+        readsExpected(newReadChannel(data), new byte[]{0, 0, 0, 0, 0, 1, 2});
+    }
+
+    @Test
+    public void randomAccessReadWrite() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        byte[] expected = randomBytes(20);
+        MemoryByteChannel write = newWriteChannel(data, false);
+
+        // write data backwards, one byte at a time
+        for (int i = expected.length - 1; 0 <= i; i--) {
+            write.position(i);
+            write.write(ByteBuffer.wrap(expected, i, 1));
+        }
+        assertThat(write.size()).isEqualTo(expected.length);
+
+        // read data in random order, either in heap or direct buffer
+        MemoryByteChannel read = newReadChannel(data);
+        ByteBuffer heap = ByteBuffer.allocate(4);
+        ByteBuffer direct = ByteBuffer.allocateDirect(4);
+        for (int i = 0; i < 10; i++) {
+            int position = rand.nextInt(expected.length - 4);
+            ByteBuffer buffer = i % 2 == 0 ? heap : direct;
+            buffer.clear();
+            assertThat(read.position(position).position()).isEqualTo(position);
+            assertThat(read.read(buffer)).isEqualTo(4);
+            assertThat(read.position()).isEqualTo(position + 4);
+            buffer.flip();
+            for (int j = 0; j < 4; j++) {
+                assertThat(buffer.get()).isEqualTo(expected[position + j]);
+            }
+        }
     }
 
     @Test(expectedExceptions = ClosedChannelException.class)
@@ -345,6 +392,72 @@ public class MemoryByteChannelTest {
 
     }
 
+    @Test
+    public void readChannelReadsSnapshot() throws IOException {
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(new byte[]{1, 2, 3});
+        MemoryByteChannel read = newReadChannel(data);
+
+        MemoryByteChannel write = newWriteChannel(data, true);
+        write.write(ByteBuffer.wrap(new byte[]{4, 5}));
+        write.position(0).write(ByteBuffer.wrap(new byte[]{6}));
+        data.truncate(2);
+
+        // changes made after channel is opened are not visible
+        assertThat(read.size()).isEqualTo(3);
+        readsExpected(read, new byte[]{1, 2, 3});
+        readsExpected(newReadChannel(data), new byte[]{6, 2});
+    }
+
+    @Test(expectedExceptions = ClosedChannelException.class)
+    public void closedReadChannelReleasesSnapshot() throws IOException {
+        FileData data = FileData.newEmpty(2);
+        data.asOutputStream().write(new byte[]{1, 2, 3});
+        MemoryByteChannel read = newReadChannel(data);
+        read.close();
+
+        readsExpected(newReadChannel(data), new byte[]{1, 2, 3});
+        read.read(ByteBuffer.allocate(1));
+    }
+
+    @Test(invocationCount = 5)
+    public void concurrentReadersNeverSeeTornData() throws IOException {
+        // writer overwrites whole file content with a single value at each write,
+        // thus readers must always read the same value for all bytes
+        final FileData data = FileData.newEmpty(16);
+        final int fileSize = 256;
+        final int writesCount = 200;
+        data.asOutputStream().write(new byte[fileSize]);
+
+        final ConcurrentIOTestTask task = new ConcurrentIOTestTask() {
+            @Override
+            public void run(int threadId) throws IOException {
+                if (1 == threadId) {
+                    MemoryByteChannel write = newWriteChannel(data, true);
+                    byte[] bytes = new byte[fileSize];
+                    for (int i = 0; i < writesCount; i++) {
+                        Arrays.fill(bytes, (byte) i);
+                        write.position(0).write(ByteBuffer.wrap(bytes));
+                    }
+                } else {
+                    ByteBuffer buffer = ByteBuffer.allocate(fileSize);
+                    for (int i = 0; i < writesCount; i++) {
+                        buffer.clear();
+                        try (MemoryByteChannel read = newReadChannel(data)) {
+                            read.read(buffer);
+                        }
+                        for (int j = 1; j < fileSize; j++) {
+                            assertThat(buffer.get(j)).isEqualTo(buffer.get(0));
+                        }
+                    }
+                }
+            }
+        };
+
+        runIoTasks(task, 8);
+        assertThat(data.size()).isEqualTo(fileSize);
+    }
+
     private FileData randomFileData(int size) {
         return FileData.fromData(randomBytes(size));
     }
@@ -0,0 +1,291 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.util.Arrays;
+
+import static com.github.sylvainjuge.memoryfs.MemoryFileChannel.newChannel;
+import static com.github.sylvainjuge.memoryfs.TestFileSystems.randomBytes;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class MemoryFileChannelTest {
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void buildNullFileData() {
+        newChannel(null, true, false, false);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void neitherReadNorWrite() {
+        newChannel(FileData.newEmpty(), false, false, false);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void appendNotAllowedWithRead() {
+        newChannel(FileData.newEmpty(), true, true, true);
+    }
+
+    @Test(expectedExceptions = NonWritableChannelException.class)
+    public void tryWriteReadChannel() throws IOException {
+        newChannel(FileData.newEmpty(), true, false, false).write(ByteBuffer.allocate(1));
+    }
+
+    @Test(expectedExceptions = NonReadableChannelException.class)
+    public void tryReadWriteChannel() throws IOException {
+        newChannel(FileData.newEmpty(), false, true, false).read(ByteBuffer.allocate(1));
+    }
+
+    @Test(expectedExceptions = ClosedChannelException.class)
+    public void readClosed() throws IOException {
+        FileChannel c = newChannel(FileData.newEmpty(), true, false, false);
+        c.close();
+        assertThat(c.isOpen()).isFalse();
+        c.read(ByteBuffer.allocate(1));
+    }
+
+    @Test
+    public void readWriteSameChannel() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        FileChannel c = newChannel(data, true, true, false);
+        byte[] bytes = randomBytes(10);
+
+        assertThat(c.write(ByteBuffer.wrap(bytes))).isEqualTo(bytes.length);
+        assertThat(c.position()).isEqualTo(bytes.length);
+        assertThat(c.size()).isEqualTo(bytes.length);
+
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        assertThat(c.position(0).read(buffer)).isEqualTo(bytes.length);
+        assertThat(buffer.array()).isEqualTo(bytes);
+        assertThat(c.read(ByteBuffer.allocate(1))).isLessThan(0);
+    }
+
+    @Test
+    public void positionalReadWriteDoesNotMovePosition() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        FileChannel c = newChannel(data, true, true, false);
+
+        assertThat(c.write(ByteBuffer.wrap(new byte[]{1, 2}), 4)).isEqualTo(2);
+        assertThat(c.position()).isEqualTo(0);
+        assertThat(c.size()).isEqualTo(6);
+
+        ByteBuffer buffer = ByteBuffer.allocate(3);
+        assertThat(c.read(buffer, 3)).isEqualTo(3);
+        assertThat(buffer.array()).isEqualTo(new byte[]{0, 1, 2});
+        assertThat(c.position()).isEqualTo(0);
+    }
+
+    @Test
+    public void scatterGather() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        FileChannel c = newChannel(data, true, true, false);
+
+        ByteBuffer[] srcs = new ByteBuffer[]{ByteBuffer.wrap(new byte[]{1, 2}), ByteBuffer.wrap(new byte[]{3, 4, 5})};
+        assertThat(c.write(srcs)).isEqualTo(5);
+
+        ByteBuffer[] dsts = new ByteBuffer[]{ByteBuffer.allocate(4), ByteBuffer.allocate(4)};
+        assertThat(c.position(0).read(dsts)).isEqualTo(5);
+        assertThat(dsts[0].array()).isEqualTo(new byte[]{1, 2, 3, 4});
+        assertThat(dsts[1].position()).isEqualTo(1);
+        assertThat(dsts[1].get(0)).isEqualTo((byte) 5);
+    }
+
+    @Test
+    public void appendWritesAtEndOfFile() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        data.asOutputStream().write(new byte[]{1, 2});
+        FileChannel c = newChannel(data, false, true, true);
+
+        c.position(0);
+        c.write(ByteBuffer.wrap(new byte[]{3}));
+        assertThat(c.position()).isEqualTo(3);
+        assertThat(data).isEqualTo(FileData.fromData(new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    public void truncateMovesPosition() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        FileChannel c = newChannel(data, true, true, false);
+        c.write(ByteBuffer.wrap(randomBytes(5)));
+
+        assertThat(c.truncate(2).position()).isEqualTo(2);
+        assertThat(c.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void transferToOtherChannel() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        byte[] bytes = randomBytes(10);
+        data.asOutputStream().write(bytes);
+        FileChannel c = newChannel(data, true, false, false);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(c.transferTo(2, 100, Channels.newChannel(out))).isEqualTo(8);
+        assertThat(out.toByteArray()).isEqualTo(Arrays.copyOfRange(bytes, 2, 10));
+        assertThat(c.position()).isEqualTo(0);
+    }
+
+    @Test
+    public void transferFromOtherChannel() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        data.asOutputStream().write(new byte[]{1, 2});
+        FileChannel c = newChannel(data, false, true, false);
+        byte[] bytes = randomBytes(10);
+
+        assertThat(c.transferFrom(Channels.newChannel(new ByteArrayInputStream(bytes)), 1, 100)).isEqualTo(10);
+        assertThat(c.size()).isEqualTo(11);
+        assertThat(c.position()).isEqualTo(0);
+
+        // nothing transferred when position is after end of file
+        assertThat(c.transferFrom(Channels.newChannel(new ByteArrayInputStream(bytes)), 12, 100)).isEqualTo(0);
+        assertThat(c.size()).isEqualTo(11);
+    }
+
+    @Test
+    public void transferBetweenMemoryFilesSharesBlocks() throws IOException {
+        BlockStorage storage = BlockStorage.heap(4);
+        FileData source = FileData.newEmpty(storage);
+        byte[] bytes = randomBytes(10);
+        source.asOutputStream().write(bytes);
+        FileData target = FileData.newEmpty(storage);
+
+        FileChannel in = newChannel(source, true, false, false);
+        FileChannel out = newChannel(target, false, true, false);
+        assertThat(in.transferTo(0, 100, out)).isEqualTo(10);
+        assertThat(out.position()).isEqualTo(10);
+        assertThat(target).isEqualTo(source);
+
+        // modifying target does not modify source
+        out.write(ByteBuffer.wrap(new byte[]{42}), 5);
+        assertThat(source).isEqualTo(FileData.fromData(bytes));
+        bytes[5] = 42;
+        assertThat(target).isEqualTo(FileData.fromData(bytes));
+    }
+
+    @Test
+    public void transferBetweenMemoryFilesNotAligned() throws IOException {
+        FileData source = FileData.newEmpty(4);
+        byte[] bytes = randomBytes(10);
+        source.asOutputStream().write(bytes);
+        FileData target = FileData.newEmpty(3);
+        target.asOutputStream().write(new byte[]{1});
+
+        FileChannel in = newChannel(source, true, false, false);
+        FileChannel out = newChannel(target, false, true, false);
+        in.position(1);
+        assertThat(out.transferFrom(in, 1, 5)).isEqualTo(5);
+        assertThat(in.position()).isEqualTo(6);
+
+        byte[] expected = new byte[6];
+        expected[0] = 1;
+        System.arraycopy(bytes, 1, expected, 1, 5);
+        assertThat(target).isEqualTo(FileData.fromData(expected));
+    }
+
+    @Test
+    public void lockIsReleased() throws IOException {
+        FileChannel c = newChannel(FileData.newEmpty(), true, true, false);
+        FileLock lock = c.tryLock();
+        assertThat(lock.isValid()).isTrue();
+        lock.release();
+        assertThat(lock.isValid()).isFalse();
+    }
+
+    @Test
+    public void mapReadOnly() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        byte[] bytes = randomBytes(10);
+        data.asOutputStream().write(bytes);
+        FileChannel c = newChannel(data, true, false, false);
+
+        MappedByteBuffer buffer = c.map(FileChannel.MapMode.READ_ONLY, 2, 7);
+        assertThat(buffer.isReadOnly()).isTrue();
+        assertThat(buffer.remaining()).isEqualTo(7);
+        for (int i = 0; i < 7; i++) {
+            assertThat(buffer.get(i)).isEqualTo(bytes[2 + i]);
+        }
+    }
+
+    @Test
+    public void mapReadWriteWritesThrough() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        data.asOutputStream().write(new byte[]{1, 2, 3, 4, 5});
+        FileData copy = FileData.copy(data);
+        FileChannel c = newChannel(data, true, true, false);
+
+        MappedByteBuffer buffer = c.map(FileChannel.MapMode.READ_WRITE, 1, 3);
+        buffer.put(0, (byte) 42).put(2, (byte) 43);
+        assertThat(data).isEqualTo(FileData.fromData(new byte[]{1, 42, 3, 43, 5}));
+        assertThat(copy).isEqualTo(FileData.fromData(new byte[]{1, 2, 3, 4, 5}));
+
+        // changes to file are visible through mapping
+        c.write(ByteBuffer.wrap(new byte[]{44}), 2);
+        assertThat(buffer.get(1)).isEqualTo((byte) 44);
+    }
+
+    @Test
+    public void mapReadWriteExtendsFile() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        FileChannel c = newChannel(data, true, true, false);
+
+        MappedByteBuffer buffer = c.map(FileChannel.MapMode.READ_WRITE, 2, 5);
+        assertThat(c.size()).isEqualTo(7);
+        buffer.put(4, (byte) 1);
+        assertThat(data).isEqualTo(FileData.fromData(new byte[]{0, 0, 0, 0, 0, 0, 1}));
+    }
+
+    @Test
+    public void mapPrivateIsNotWritten() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        data.asOutputStream().write(new byte[]{1, 2, 3, 4, 5});
+        FileChannel c = newChannel(data, true, true, false);
+
+        MappedByteBuffer buffer = c.map(FileChannel.MapMode.PRIVATE, 0, 5);
+        assertThat(buffer.get(3)).isEqualTo((byte) 4);
+        buffer.put(3, (byte) 42);
+        assertThat(data).isEqualTo(FileData.fromData(new byte[]{1, 2, 3, 4, 5}));
+    }
+
+    @Test
+    public void mapPrivateIsChargedAgainstSpace() throws IOException {
+        Space space = new Space(8);
+        FileData data = FileData.newEmpty(BlockStorage.heap(3), space);
+        data.asOutputStream().write(new byte[]{1, 2, 3, 4, 5});
+        FileChannel c = newChannel(data, true, true, false);
+
+        MappedByteBuffer buffer = c.map(FileChannel.MapMode.PRIVATE, 1, 3);
+        assertThat(space.getUsed()).isEqualTo(8);
+        assertThat(buffer.get(0)).isEqualTo((byte) 2);
+        try {
+            c.map(FileChannel.MapMode.PRIVATE, 0, 1);
+            fail("private copy should exceed space capacity");
+        } catch (NoSpaceLeftException e) {
+            // expected
+        }
+    }
+
+    @Test(expectedExceptions = NonWritableChannelException.class)
+    public void tryMapReadWriteOnReadChannel() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        data.asOutputStream().write(new byte[]{1, 2, 3});
+        newChannel(data, true, false, false).map(FileChannel.MapMode.READ_WRITE, 0, 3);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void tryMapReadOnlyAfterEndOfFile() throws IOException {
+        FileData data = FileData.newEmpty(3);
+        data.asOutputStream().write(new byte[]{1, 2, 3});
+        newChannel(data, true, false, false).map(FileChannel.MapMode.READ_ONLY, 0, 4);
+    }
+}
@@ -0,0 +1,219 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Stress tests of concurrent namespace operations, each test checks that tree is consistent once all threads are done
+ */
+public class MemoryFileSystemConcurrencyTest {
+
+    private static final int THREADS = 8;
+
+    @Test(invocationCount = 3)
+    public void concurrentCreateInSameDirectory() throws Exception {
+        final MemoryFileSystem fs = newFileSystem();
+        final int filesPerThread = 500;
+
+        runTasks(new Task() {
+            @Override
+            public void run(int threadId) throws IOException {
+                Path dir = fs.getPath("/shared/sub");
+                for (int i = 0; i < filesPerThread; i++) {
+                    String name = "file-" + threadId + "-" + i;
+                    // target parents are created concurrently by all threads on first move
+                    Files.move(Files.createFile(fs.getPath("/" + name)), dir.resolve(name));
+                }
+            }
+        });
+
+        Entry dir = fs.findEntry(fs.getPath("/shared/sub"));
+        assertThat(checkConsistency(dir)).isEqualTo(THREADS * filesPerThread);
+        assertThat(checkConsistency(fs.findEntry(fs.getPath("/")))).isEqualTo(THREADS * filesPerThread + 2);
+    }
+
+    @Test(invocationCount = 3)
+    public void concurrentMovesNeverHideOtherEntries() throws Exception {
+        final MemoryFileSystem fs = newFileSystem();
+        final Path a = Files.createDirectory(fs.getPath("/a"));
+        final Path b = Files.createDirectory(fs.getPath("/b"));
+        final int stableFiles = 4;
+        final int movingFiles = 3;
+        for (int i = 0; i < stableFiles; i++) {
+            Files.createFile(a.resolve("stable-" + i));
+            Files.createFile(b.resolve("stable-" + i));
+        }
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < movingFiles; i++) {
+                Files.createFile(a.resolve("moving-" + t + "-" + i));
+            }
+        }
+        final AtomicBoolean missed = new AtomicBoolean();
+
+        runTasks(new Task() {
+            @Override
+            public void run(int threadId) throws IOException {
+                Random random = new Random(threadId);
+                for (int n = 0; n < 2000; n++) {
+                    // each thread moves its own files, directories size oscillates around index threshold
+                    String name = "moving-" + threadId + "-" + random.nextInt(movingFiles);
+                    if (Files.exists(a.resolve(name))) {
+                        Files.move(a.resolve(name), b.resolve(name));
+                    } else {
+                        Files.move(b.resolve(name), a.resolve("renamed-" + name));
+                        Files.move(a.resolve("renamed-" + name), a.resolve(name));
+                    }
+                    // entries which are never modified must always be found
+                    String stable = "stable-" + random.nextInt(stableFiles);
+                    if (!Files.exists(a.resolve(stable)) || !Files.exists(b.resolve(stable))) {
+                        missed.set(true);
+                    }
+                }
+            }
+        });
+
+        assertThat(missed.get()).isFalse();
+        int count = checkConsistency(fs.findEntry(a)) + checkConsistency(fs.findEntry(b));
+        assertThat(count).isEqualTo(2 * stableFiles + THREADS * movingFiles);
+    }
+
+    @Test(invocationCount = 3)
+    public void concurrentDirectoryMovesNeverCreateCycles() throws Exception {
+        final Entry root = Entry.newRoot();
+        final Entry[] dirs = new Entry[THREADS];
+        for (int i = 0; i < dirs.length; i++) {
+            dirs[i] = Entry.newDirectory(root, "dir-" + i);
+        }
+
+        runTasks(new Task() {
+            @Override
+            public void run(int threadId) {
+                Random random = new Random(threadId);
+                Entry dir = dirs[threadId];
+                for (int n = 0; n < 2000; n++) {
+                    // moving a directory in another may only fail when it would move within itself
+                    try {
+                        dir.move(dirs[random.nextInt(dirs.length)]);
+                    } catch (IllegalArgumentException e) {
+                        // expected, target is a descendant
+                    }
+                    dir.move(root);
+                }
+            }
+        });
+
+        assertThat(checkConsistency(root)).isEqualTo(THREADS);
+        for (Entry dir : dirs) {
+            assertThat(dir.getParent()).isSameAs(root);
+        }
+    }
+
+    @Test(invocationCount = 3)
+    public void concurrentCreateAndDeleteSameFile() throws Exception {
+        final MemoryFileSystem fs = newFileSystem();
+        final Path dir = Files.createDirectory(fs.getPath("/race"));
+
+        runTasks(new Task() {
+            @Override
+            public void run(int threadId) throws IOException {
+                Path file = dir.resolve("file-" + threadId % 2);
+                Path subDir = dir.resolve("dir");
+                for (int n = 0; n < 2000; n++) {
+                    try {
+                        if (0 == n % 2) {
+                            Files.createFile(file);
+                        } else {
+                            Files.delete(file);
+                        }
+                    } catch (ConflictException | NoSuchFileException e) {
+                        // expected, another thread has created or deleted file
+                    }
+                    // files may be created in a directory while it's deleted
+                    try {
+                        Files.createFile(Files.createDirectories(subDir).resolve("file-" + threadId));
+                        Files.delete(subDir.resolve("file-" + threadId));
+                        if (0 == n % 10) {
+                            Files.delete(subDir);
+                        }
+                    } catch (ConflictException | InvalidRequestException | NoSuchFileException e) {
+                        // expected, directory has been deleted
+                    }
+                }
+            }
+        });
+
+        checkConsistency(fs.findEntry(dir));
+    }
+
+    /**
+     * @param dir directory
+     * @return number of entries within directory, including sub-directories entries
+     */
+    private static int checkConsistency(Entry dir) {
+        assertThat(dir.isDeleted()).isFalse();
+        int count = 0;
+        Set<String> names = new HashSet<>();
+        for (Entry e = dir.getEntries(); e != null; e = e.getNext()) {
+            assertThat(e.getParent()).isSameAs(dir);
+            assertThat(e.isDeleted()).isFalse();
+            assertThat(dir.getChild(e.toString().substring(e.toString().lastIndexOf('/') + 1))).isSameAs(e);
+            assertThat(names.add(e.toString())).isTrue();
+            count++;
+            if (e.isDirectory()) {
+                count += checkConsistency(e);
+            }
+        }
+        return count;
+    }
+
+    private static interface Task {
+        void run(int threadId) throws IOException;
+    }
+
+    private static void runTasks(final Task task) throws Exception {
+        try (TestExecutorService pool = TestExecutorService.wrap(Executors.newFixedThreadPool(THREADS))) {
+            final CountDownLatch startLatch = new CountDownLatch(THREADS);
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                final int threadId = i;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        startLatch.countDown();
+                        startLatch.await();
+                        task.run(threadId);
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new AssertionError("task failed", e.getCause());
+                }
+            }
+        }
+    }
+
+    private static MemoryFileSystem newFileSystem() {
+        return MemoryFileSystem.builder(new MemoryFileSystemProvider()).build();
+    }
+}
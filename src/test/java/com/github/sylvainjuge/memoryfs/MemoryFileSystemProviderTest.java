@@ -5,13 +5,19 @@ import org.testng.annotations.Test;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static com.github.sylvainjuge.memoryfs.AssertPath.assertThat;
@@ -246,8 +252,25 @@ public class MemoryFileSystemProviderTest {
     }
 
     @Test(expectedExceptions = UnsupportedOperationException.class)
-    public void createFsInstanceFromFileNotSupported() throws IOException {
-        getNewProvider().newFileSystem((Path) null, null);
+    public void createFsInstanceFromNonImageFileNotSupported() throws IOException {
+        MemoryFileSystemProvider provider = getNewProvider();
+        Path file = Files.write(MemoryFileSystem.builder(provider).build().getPath("/file.zip"), new byte[100]);
+        provider.newFileSystem(file, null);
+    }
+
+    @Test
+    public void createFsInstanceFromImageFile() throws IOException {
+        MemoryFileSystemProvider provider = getNewProvider();
+        MemoryFileSystem fs = MemoryFileSystem.builder(provider).id("source").build();
+        Files.write(Files.createDirectory(fs.getPath("/dir")).resolve("file"), new byte[]{1, 2, 3});
+        Path image = fs.getPath("/image");
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            fs.save(channel);
+        }
+
+        FileSystem mounted = provider.newFileSystem(image, Collections.singletonMap(MemoryFileSystemProvider.ENV_ID, "mounted"));
+        assertThat(provider.getFileSystem(URI.create("memory:/mounted"))).isSameAs(mounted);
+        assertThat(Files.readAllBytes(mounted.getPath("/dir/file"))).isEqualTo(new byte[]{1, 2, 3});
     }
 
     @Test(expectedExceptions = UnsupportedOperationException.class)
@@ -275,6 +298,176 @@ public class MemoryFileSystemProviderTest {
 
     }
 
+    @Test
+    public void budgetSharedByAllFileSystems() throws IOException {
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider(100);
+        try (MemoryFileSystem fs1 = MemoryFileSystem.builder(provider).id("fs1").build();
+             MemoryFileSystem fs2 = MemoryFileSystem.builder(provider).id("fs2").build()) {
+            Files.write(fs1.getPath("/file"), new byte[60]);
+            try {
+                Files.write(fs2.getPath("/file"), new byte[50]);
+                fail("budget should be exhausted");
+            } catch (NoSpaceLeftException e) {
+                // expected
+            }
+            Files.write(fs2.getPath("/file"), new byte[40]);
+            assertThat(provider.getAvailableBudget()).isEqualTo(0);
+            assertThat(provider.getUsedSpace()).containsEntry("fs1", 60L).containsEntry("fs2", 40L);
+
+            Files.delete(fs1.getPath("/file"));
+            assertThat(provider.getAvailableBudget()).isEqualTo(60);
+            assertThat(provider.getBudgetShares()).containsEntry("fs1", 0L).containsEntry("fs2", 40L);
+        }
+        assertThat(provider.getAvailableBudget()).isEqualTo(100);
+    }
+
+    @Test
+    public void reservationIsGuaranteed() throws IOException {
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider(100);
+        try (MemoryFileSystem reserved = MemoryFileSystem.builder(provider).id("reserved").reservation(30).build();
+             MemoryFileSystem other = MemoryFileSystem.builder(provider).id("other").build()) {
+            assertThat(provider.getAvailableBudget()).isEqualTo(70);
+            try {
+                Files.write(other.getPath("/file"), new byte[71]);
+                fail("reserved budget should not be available to other filesystems");
+            } catch (NoSpaceLeftException e) {
+                // expected
+            }
+            Files.write(other.getPath("/file"), new byte[70]);
+            Files.write(reserved.getPath("/file"), new byte[30]);
+            assertThat(provider.getBudgetShares()).containsEntry("reserved", 30L).containsEntry("other", 70L);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void reservationLargerThanBudget() {
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider(100);
+        MemoryFileSystem.builder(provider).reservation(101).build();
+    }
+
+    @Test
+    public void blockedWriterResumesWhenSpaceIsReleased() throws Exception {
+        final MemoryFileSystemProvider provider = new MemoryFileSystemProvider(100, 5, TimeUnit.SECONDS);
+        try (final MemoryFileSystem fs1 = MemoryFileSystem.builder(provider).id("fs1").build();
+             final MemoryFileSystem fs2 = MemoryFileSystem.builder(provider).id("fs2").build();
+             TestExecutorService pool = TestExecutorService.wrap(Executors.newSingleThreadExecutor())) {
+            Files.write(fs1.getPath("/file"), new byte[80]);
+
+            Future<Path> write = pool.submit(new Callable<Path>() {
+                @Override
+                public Path call() throws IOException {
+                    return Files.write(fs2.getPath("/file"), new byte[50]);
+                }
+            });
+            Thread.sleep(100);
+            assertThat(write.isDone()).isFalse();
+
+            Files.delete(fs1.getPath("/file"));
+            assertThat(Files.size(write.get(5, TimeUnit.SECONDS))).isEqualTo(50);
+        }
+    }
+
+    @Test
+    public void blockedWriterDoesNotHoldLocks() throws Exception {
+        final MemoryFileSystemProvider provider = new MemoryFileSystemProvider(100, 5, TimeUnit.SECONDS);
+        try (final MemoryFileSystem fs1 = MemoryFileSystem.builder(provider).id("fs1").build();
+             final MemoryFileSystem fs2 = MemoryFileSystem.builder(provider).id("fs2").build();
+             TestExecutorService pool = TestExecutorService.wrap(Executors.newSingleThreadExecutor())) {
+            Files.write(fs1.getPath("/file"), new byte[77]);
+            Files.write(fs2.getPath("/file"), new byte[]{1, 2, 3});
+
+            Future<Path> write = pool.submit(new Callable<Path>() {
+                @Override
+                public Path call() throws IOException {
+                    return Files.write(fs2.getPath("/file"), new byte[50], StandardOpenOption.APPEND);
+                }
+            });
+            Thread.sleep(100);
+            assertThat(write.isDone()).isFalse();
+
+            // file remains readable, and other files writable, while writer waits for budget
+            assertThat(Files.readAllBytes(fs2.getPath("/file"))).isEqualTo(new byte[]{1, 2, 3});
+            Files.write(fs2.getPath("/other"), new byte[]{4});
+            assertThat(write.isDone()).isFalse();
+
+            Files.delete(fs1.getPath("/file"));
+            assertThat(Files.size(write.get(5, TimeUnit.SECONDS))).isEqualTo(53);
+        }
+    }
+
+    @Test(expectedExceptions = NoSpaceLeftException.class)
+    public void blockedWriterFailsAfterMaxWait() throws IOException {
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider(100, 10, TimeUnit.MILLISECONDS);
+        try (MemoryFileSystem fs = MemoryFileSystem.builder(provider).build()) {
+            Files.write(fs.getPath("/file"), new byte[101]);
+        }
+    }
+
+    @Test
+    public void forkSharesTemplateUntilModified() throws IOException {
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider();
+        try (MemoryFileSystem template = MemoryFileSystem.builder(provider).id("template").blockSize(1000).build()) {
+            Files.createDirectories(template.getPath("/a/b"));
+            Files.write(template.getPath("/a/b/file"), new byte[]{1, 2, 3});
+            Files.write(template.getPath("/large"), new byte[5000]);
+
+            try (MemoryFileSystem fork = provider.fork(template, "fork")) {
+                assertThat(provider.getFileSystem(URI.create("memory:/fork"))).isSameAs(fork);
+
+                // template modifications are not visible in fork, even in directories not yet accessed by fork
+                Files.write(template.getPath("/a/b/file"), new byte[]{4});
+                Files.createFile(template.getPath("/a/b/created"));
+                assertThat(Files.readAllBytes(fork.getPath("/a/b/file"))).isEqualTo(new byte[]{1, 2, 3});
+                assertThat(Files.exists(fork.getPath("/a/b/created"))).isFalse();
+
+                // fork modifications are not visible in template
+                Files.write(fork.getPath("/large"), new byte[]{5}, StandardOpenOption.APPEND);
+                Files.delete(fork.getPath("/a/b/file"));
+                assertThat(Files.size(template.getPath("/large"))).isEqualTo(5000);
+                assertThat(Files.readAllBytes(template.getPath("/a/b/file"))).isEqualTo(new byte[]{4});
+                assertThat(provider.getUsedSpace()).containsEntry("fork", 5001L);
+            }
+        }
+    }
+
+    @Test
+    public void forkOutlivesTemplate() throws IOException {
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider();
+        MemoryFileSystem template = MemoryFileSystem.builder(provider).id("template").storage(MemoryFileSystem.Storage.DIRECT).build();
+        Files.createDirectories(template.getPath("/dir"));
+        Files.write(template.getPath("/dir/file"), new byte[]{1, 2, 3});
+        try (MemoryFileSystem fork1 = provider.fork(template, "fork1");
+             MemoryFileSystem fork2 = provider.fork(template, "fork2")) {
+            template.close();
+            Files.write(fork1.getPath("/dir/file"), new byte[]{4}, StandardOpenOption.APPEND);
+            assertThat(Files.readAllBytes(fork1.getPath("/dir/file"))).isEqualTo(new byte[]{1, 2, 3, 4});
+            assertThat(Files.readAllBytes(fork2.getPath("/dir/file"))).isEqualTo(new byte[]{1, 2, 3});
+        }
+    }
+
+    @Test
+    public void forkAfterTemplateModification() throws IOException {
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider();
+        try (MemoryFileSystem template = MemoryFileSystem.builder(provider).id("template").build()) {
+            Files.write(template.getPath("/file"), new byte[]{1});
+            try (MemoryFileSystem fork1 = provider.fork(template, "fork1")) {
+                Files.write(template.getPath("/file"), new byte[]{2});
+                try (MemoryFileSystem fork2 = provider.fork(template, "fork2")) {
+                    assertThat(Files.readAllBytes(fork1.getPath("/file"))).isEqualTo(new byte[]{1});
+                    assertThat(Files.readAllBytes(fork2.getPath("/file"))).isEqualTo(new byte[]{2});
+                }
+            }
+        }
+    }
+
+    @Test(expectedExceptions = FileSystemAlreadyExistsException.class)
+    public void forkRequiresNewId() throws IOException {
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider();
+        try (MemoryFileSystem template = MemoryFileSystem.builder(provider).id("template").build()) {
+            provider.fork(template, "template");
+        }
+    }
+
     private static void checkDirectoryAttributes(BasicFileAttributes a) {
         assertThat(a).isNotNull();
         assertThat(a.isDirectory()).describedAs("must be a directory").isTrue();
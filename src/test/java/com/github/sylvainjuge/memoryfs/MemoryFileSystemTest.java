@@ -5,13 +5,16 @@ import org.testng.annotations.Test;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static java.nio.file.Files.*;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
@@ -42,6 +45,48 @@ public class MemoryFileSystemTest {
                 .capacity(-1);
     }
 
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void zeroBlockSizeNotAllowed() {
+        MemoryFileSystem
+                .builder(newProvider())
+                .blockSize(0);
+    }
+
+    @Test
+    public void writeFileLargerThanBlockSize() throws IOException {
+        MemoryFileSystem fs = MemoryFileSystem
+                .builder(newProvider())
+                .blockSize(4)
+                .build();
+        Path file = fs.getPath("/file");
+        byte[] data = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+        write(file, data);
+        assertThat(file).contains(data);
+
+        write(file, new byte[]{11}, APPEND);
+        assertThat(file).contains(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+    }
+
+    @Test
+    public void directStorageThroughEnv() throws IOException {
+        Map<String, Object> env = new HashMap<>();
+        env.put(MemoryFileSystemProvider.ENV_STORAGE, "direct");
+        env.put(MemoryFileSystemProvider.ENV_BLOCK_SIZE, 4);
+        byte[] data = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+        try (FileSystem fs = newProvider().newFileSystem(URI.create("memory:/direct"), env)) {
+            Path file = fs.getPath("/file");
+            write(file, data);
+            assertThat(file).contains(data);
+
+            Path copy = fs.getPath("/copy");
+            copy(file, copy);
+            delete(file);
+            assertThat(copy).contains(data);
+        }
+    }
+
     @Test
     public void defaultId() {
         MemoryFileSystemProvider provider = newProvider();
@@ -135,15 +180,7 @@ public class MemoryFileSystemTest {
         }
     }
 
-    // Keeping track of actual storage status requires a non-trivial refactoring
-    // since store does not do anything yet. However, it might be easier once we are able to
-    // store everything in an appropriate data structure
-    //
-    // - store should allow to track actual storage status
-    // or
-    // - should at least keep an accurate count when doing file operations
-
-    @Test(enabled = false)
+    @Test
     public void writeToFileDecreaseFreeSpace() throws IOException {
         try (FileSystem fs = MemoryFileSystem
                 .builder(newProvider())
@@ -162,16 +199,74 @@ public class MemoryFileSystemTest {
         }
     }
 
-    @Test(enabled = false)
-    public void deleteFreesSpace() {
-        // TODO
+    @Test
+    public void deleteFreesSpace() throws IOException {
+        try (FileSystem fs = MemoryFileSystem
+                .builder(newProvider())
+                .capacity(100)
+                .blockSize(4)
+                .build()) {
+            FileStore store = fs.getFileStores().iterator().next();
+            Path file = fs.getPath("/file");
+            Files.write(file, new byte[10]);
+            Path copy = Files.copy(file, fs.getPath("/copy"));
+            // copies are charged even if they share content until modified
+            assertThat(store.getUnallocatedSpace()).isEqualTo(80);
+
+            try (FileChannel channel = FileChannel.open(copy, WRITE)) {
+                channel.truncate(4);
+            }
+            assertThat(store.getUnallocatedSpace()).isEqualTo(86);
+
+            Files.delete(file);
+            Files.delete(copy);
+            assertThat(store.getUnallocatedSpace()).isEqualTo(100);
+        }
     }
 
-    @Test(enabled = false)
-    public void tryToWriteMoreThanCapacity() {
-        // TOOD
+    @Test
+    public void tryToWriteMoreThanCapacity() throws IOException {
+        try (FileSystem fs = MemoryFileSystem
+                .builder(newProvider())
+                .capacity(10)
+                .blockSize(4)
+                .build()) {
+            FileStore store = fs.getFileStores().iterator().next();
+            Path file = Files.write(fs.getPath("/file"), new byte[]{1, 2, 3, 4, 5, 6});
+
+            try {
+                Files.write(file, new byte[]{7, 8, 9, 10, 11}, APPEND);
+                fail("should not be able to write past capacity");
+            } catch (NoSpaceLeftException e) {
+                // expected
+            }
+            // failed write does not modify file
+            assertThat(file).contains(new byte[]{1, 2, 3, 4, 5, 6});
+            assertThat(store.getUsableSpace()).isEqualTo(4);
+
+            try {
+                Files.copy(file, fs.getPath("/copy"));
+                fail("should not be able to copy past capacity");
+            } catch (NoSpaceLeftException e) {
+                // expected
+            }
+            assertThat(exists(fs.getPath("/copy"))).isFalse();
+
+            Files.write(file, new byte[]{7, 8, 9, 10}, APPEND);
+            assertThat(store.getUsableSpace()).isEqualTo(0);
+        }
     }
 
+    @Test
+    public void unlimitedCapacityReportsNoSpace() throws IOException {
+        try (FileSystem fs = newMemoryFs()) {
+            Files.write(fs.getPath("/file"), new byte[]{1, 2, 3});
+            for (FileStore store : fs.getFileStores()) {
+                assertThat(store.getTotalSpace()).isEqualTo(0);
+                assertThat(store.getUsableSpace()).isEqualTo(0);
+            }
+        }
+    }
 
     @Test
     public void buildWithDefaultValues() throws IOException {
@@ -199,6 +294,19 @@ public class MemoryFileSystemTest {
 
         assertThat(fs.getPath("a/b", "c/d", "e")).isEqualTo(MemoryPath.create(fs, "a/b/c/d/e"));
 
+        // redundant separators are ignored
+        assertThat(fs.getPath("/a/", "/b//", "c/").toString()).isEqualTo("/a/b/c");
+        assertThat(fs.getPath("a", "", "b").toString()).isEqualTo("a/b");
+    }
+
+    @Test(expectedExceptions = InvalidPathException.class)
+    public void getPathWithInvalidPart() {
+        newMemoryFs().getPath("a", "b*");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void getPathOutOfRoot() {
+        newMemoryFs().getPath("/", "..", "a");
     }
 
     @Test
@@ -690,12 +798,27 @@ public class MemoryFileSystemTest {
         channel.read(ByteBuffer.wrap(new byte[0]));
     }
 
+    @Test
+    public void readAndWriteChannelUpdatesInPlace() throws IOException {
+        MemoryFileSystem fs = newMemoryFs();
+        MemoryPath file = MemoryPath.create(fs, "/file");
+        write(file, new byte[]{1, 2, 3, 4}, WRITE, CREATE_NEW);
+
+        try (SeekableByteChannel channel = newByteChannel(file, READ, WRITE)) {
+            channel.position(1).write(ByteBuffer.wrap(new byte[]{42}));
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            channel.position(0).read(buffer);
+            assertThat(buffer.array()).isEqualTo(new byte[]{1, 42, 3, 4});
+        }
+        assertThat(file).contains(new byte[]{1, 42, 3, 4});
+    }
+
     @Test(expectedExceptions = IllegalArgumentException.class)
-    public void tryReadAndWriteChannel() throws IOException {
-        // at most one of read or write options is required
+    public void tryReadAndAppendChannel() throws IOException {
         MemoryFileSystem fs = newMemoryFs();
-        MemoryPath path = MemoryPath.create(fs, "/file");
-        newByteChannel(path, READ, WRITE);
+        MemoryPath file = MemoryPath.create(fs, "/file");
+        createFile(file);
+        newByteChannel(file, READ, APPEND);
     }
 
     @Test(expectedExceptions = DoesNotExistsException.class)
@@ -781,6 +904,16 @@ public class MemoryFileSystemTest {
         assertThat(file).contains(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
     }
 
+    @Test
+    public void writeWithoutTruncateKeepsContent() throws IOException {
+        MemoryFileSystem fs = newMemoryFs();
+        MemoryPath file = MemoryPath.create(fs, "/file");
+
+        write(file, new byte[]{1, 2, 3, 4}, WRITE, CREATE_NEW);
+        write(file, new byte[]{5, 6}, WRITE);
+        assertThat(file).contains(new byte[]{5, 6, 3, 4});
+    }
+
     @Test
     public void writeTruncate() throws IOException {
         MemoryFileSystem fs = newMemoryFs();
@@ -795,6 +928,35 @@ public class MemoryFileSystemTest {
         assertThat(file).contains(new byte[]{5, 6, 7, 8});
     }
 
+    @Test
+    public void openFileChannel() throws IOException {
+        MemoryFileSystem fs = newMemoryFs();
+        MemoryPath file = MemoryPath.create(fs, "/file");
+        MemoryPath copy = MemoryPath.create(fs, "/copy");
+
+        try (FileChannel c = FileChannel.open(file, READ, WRITE, CREATE_NEW)) {
+            c.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+            ByteBuffer buffer = ByteBuffer.allocate(2);
+            assertThat(c.read(buffer, 1)).isEqualTo(2);
+            assertThat(buffer.array()).isEqualTo(new byte[]{2, 3});
+        }
+        assertThat(file).contains(new byte[]{1, 2, 3, 4});
+
+        try (FileChannel in = FileChannel.open(file, READ);
+             FileChannel out = FileChannel.open(copy, WRITE, CREATE)) {
+            assertThat(in.transferTo(0, in.size(), out)).isEqualTo(4);
+        }
+        assertThat(copy).contains(new byte[]{1, 2, 3, 4});
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void tryFileChannelReadAndAppend() throws IOException {
+        MemoryFileSystem fs = newMemoryFs();
+        MemoryPath file = MemoryPath.create(fs, "/file");
+        createFile(file);
+        FileChannel.open(file, READ, APPEND);
+    }
+
     // watch service not implemented
     @Test(expectedExceptions = UnsupportedOperationException.class)
     public void watchServiceNotImplemented() throws IOException {
@@ -438,6 +438,25 @@ public class MemoryPathTest {
         checkCompareToStrictOrder("a/b", "a/b/c");
     }
 
+    @Test
+    public void compareToComparesNamesNotSeparators() {
+        checkCompareToStrictOrder("a/b", "a-b", "ab");
+        checkCompareToStrictOrder("/a/b/c", "/a/bc");
+    }
+
+    @Test
+    public void derivedPathsEqualParsedPaths() {
+        MemoryPath path = createPath("//a//bb/./c/");
+        assertThat(path.getPath()).isEqualTo("/a/bb/./c");
+        TestEquals.checkHashCodeEqualsConsistency(true, path.getParent(), createPath("/a/bb/."));
+        TestEquals.checkHashCodeEqualsConsistency(true, path.subpath(1, 3), createPath("bb/."));
+        TestEquals.checkHashCodeEqualsConsistency(true, path.getName(1).toAbsolutePath(), createPath("/bb"));
+        TestEquals.checkHashCodeEqualsConsistency(true, path.getRoot(), createPath("/"));
+        TestEquals.checkHashCodeEqualsConsistency(true, path.normalize(), createPath("/a/bb/c"));
+        assertThat(path.subpath(1, 3).toAbsolutePath().toString()).isEqualTo("/bb/.");
+        assertThat(path.getParent().getParent().toString()).isEqualTo("/a/bb");
+    }
+
     @Test
     public void subPathReturnsRelativePath() {
         // get all items of a path
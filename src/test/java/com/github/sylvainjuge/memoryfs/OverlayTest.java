@@ -0,0 +1,241 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.sylvainjuge.memoryfs.TestFileSystems.randomBytes;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class OverlayTest {
+
+    @Test
+    public void lowerLayerContentIsVisible() throws IOException {
+        MemoryFileSystem lower = newLowerLayer();
+        MemoryFileSystem fs = newOverlay(lower.getPath("/lower"));
+
+        assertThat(list(fs.getPath("/"))).containsExactly("a", "large");
+        assertThat(list(fs.getPath("/a"))).containsExactly("file", "empty");
+        assertThat(Files.readAllBytes(fs.getPath("/a/file"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(Files.readAllBytes(fs.getPath("/large"))).isEqualTo(randomBytes(50 * 1000));
+        assertThat(Files.size(fs.getPath("/a/empty"))).isEqualTo(0);
+        assertThat(fs.changeset()).isEmpty();
+    }
+
+    @Test
+    public void writesLandInUpperLayer() throws IOException {
+        MemoryFileSystem lower = newLowerLayer();
+        MemoryFileSystem fs = newOverlay(lower.getPath("/lower"));
+
+        try (FileChannel channel = FileChannel.open(fs.getPath("/large"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), 25 * 1000);
+        }
+        Files.write(fs.getPath("/a/file"), new byte[]{4}, StandardOpenOption.APPEND);
+        Files.delete(fs.getPath("/a/empty"));
+        Files.createDirectories(fs.getPath("/b/c"));
+
+        byte[] expected = randomBytes(50 * 1000);
+        expected[25 * 1000] = 42;
+        assertThat(Files.readAllBytes(fs.getPath("/large"))).isEqualTo(expected);
+        assertThat(Files.readAllBytes(fs.getPath("/a/file"))).isEqualTo(new byte[]{1, 2, 3, 4});
+        assertThat(Files.exists(fs.getPath("/a/empty"))).isFalse();
+
+        // lower layer is never modified
+        assertThat(Files.readAllBytes(lower.getPath("/lower/large"))).isEqualTo(randomBytes(50 * 1000));
+        assertThat(Files.readAllBytes(lower.getPath("/lower/a/file"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(Files.exists(lower.getPath("/lower/a/empty"))).isTrue();
+        assertThat(Files.exists(lower.getPath("/lower/b"))).isFalse();
+
+        assertThat(fs.changeset()).containsExactly(
+                change(fs, Snapshot.Change.Type.DELETED, "/a/empty"),
+                change(fs, Snapshot.Change.Type.MODIFIED, "/a/file"),
+                change(fs, Snapshot.Change.Type.CREATED, "/b"),
+                change(fs, Snapshot.Change.Type.MODIFIED, "/large"));
+    }
+
+    @Test
+    public void moveLowerEntries() throws IOException {
+        MemoryFileSystem lower = newLowerLayer();
+        MemoryFileSystem fs = newOverlay(lower.getPath("/lower"));
+
+        Files.move(fs.getPath("/a"), fs.getPath("/moved"));
+        Files.move(fs.getPath("/large"), fs.getPath("/moved/large"));
+        assertThat(Files.readAllBytes(fs.getPath("/moved/file"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(fs.changeset()).containsExactly(
+                change(fs, Snapshot.Change.Type.DELETED, "/a"),
+                change(fs, Snapshot.Change.Type.DELETED, "/large"),
+                change(fs, Snapshot.Change.Type.CREATED, "/moved"));
+
+        // moved back, thus unchanged
+        Files.move(fs.getPath("/moved/large"), fs.getPath("/large"));
+        Files.move(fs.getPath("/moved"), fs.getPath("/a"));
+        assertThat(fs.changeset()).isEmpty();
+    }
+
+    @Test
+    public void mountThroughProvider() throws IOException {
+        MemoryFileSystem lower = newLowerLayer();
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider();
+        try (MemoryFileSystem fs = (MemoryFileSystem) provider.newFileSystem(lower.getPath("/lower/a"), null)) {
+            assertThat(Files.readAllBytes(fs.getPath("/file"))).isEqualTo(new byte[]{1, 2, 3});
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void changesetRequiresLowerLayer() {
+        MemoryFileSystem.builder(new MemoryFileSystemProvider()).build().changeset();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void lowerLayerMustBeDirectory() throws IOException {
+        MemoryFileSystem lower = newLowerLayer();
+        newOverlay(lower.getPath("/lower/large"));
+    }
+
+    @Test
+    public void cacheEvictsLeastRecentlyUsedFiles() throws IOException {
+        MemoryFileSystem lower = newLowerLayer();
+        MemoryFileSystem fs = newCache(lower.getPath("/lower"), 20 * 1000);
+        CacheAttributeView view = Files.getFileStore(fs.getPath("/")).getFileStoreAttributeView(CacheAttributeView.class);
+        assertThat(view.budget()).isEqualTo(20 * 1000);
+
+        // most recently used file is kept even when larger than budget
+        assertThat(Files.readAllBytes(fs.getPath("/large"))).isEqualTo(randomBytes(50 * 1000));
+        assertThat(view.misses()).isEqualTo(4);
+        assertThat(view.evictions()).isEqualTo(0);
+        assertThat(view.size()).isEqualTo(50 * 1000);
+
+        assertThat(Files.readAllBytes(fs.getPath("/a/file"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(view.misses()).isEqualTo(5);
+        assertThat(view.evictions()).isEqualTo(1);
+        assertThat(view.size()).isLessThanOrEqualTo(20 * 1000);
+
+        long hits = view.hits();
+        assertThat(Files.readAllBytes(fs.getPath("/a/file"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(view.hits()).isGreaterThan(hits);
+        assertThat(view.misses()).isEqualTo(5);
+
+        // evicted content is read again from backing directory
+        assertThat(Files.readAllBytes(fs.getPath("/large"))).isEqualTo(randomBytes(50 * 1000));
+        assertThat(view.misses()).isEqualTo(9);
+        assertThat(view.evictions()).isEqualTo(2);
+        assertThat(Files.getFileStore(fs.getPath("/")).getAttribute("cache:misses")).isEqualTo(9L);
+        assertThat(Files.getFileStore(fs.getPath("/")).getAttribute("cache:evictions")).isEqualTo(2L);
+    }
+
+    @Test
+    public void cacheRevalidatesModifiedFiles() throws IOException {
+        MemoryFileSystem lower = newLowerLayer();
+        MemoryFileSystem fs = newCache(lower.getPath("/lower"), 20 * 1000);
+        assertThat(Files.readAllBytes(fs.getPath("/a/file"))).isEqualTo(new byte[]{1, 2, 3});
+
+        Files.write(lower.getPath("/lower/a/file"), new byte[]{4, 5, 6, 7});
+        assertThat(Files.readAllBytes(fs.getPath("/a/file"))).isEqualTo(new byte[]{4, 5, 6, 7});
+        assertThat(Files.size(fs.getPath("/a/file"))).isEqualTo(4);
+        assertThat(fs.changeset()).isEmpty();
+    }
+
+    @Test
+    public void cacheDoesNotRevalidateModifiedUpperFiles() throws IOException {
+        MemoryFileSystem lower = newLowerLayer();
+        MemoryFileSystem fs = newCache(lower.getPath("/lower"), 20 * 1000);
+        Files.write(fs.getPath("/a/file"), new byte[]{8}, StandardOpenOption.APPEND);
+
+        Files.write(lower.getPath("/lower/a/file"), new byte[]{4, 5, 6, 7});
+        assertThat(Files.readAllBytes(fs.getPath("/a/file"))).isEqualTo(new byte[]{1, 2, 3, 8});
+        assertThat(fs.changeset()).containsExactly(change(fs, Snapshot.Change.Type.MODIFIED, "/a/file"));
+    }
+
+    @Test
+    public void lowerFileDeletedWhileOpen() throws IOException {
+        MemoryFileSystem lower = newLowerLayer();
+        MemoryFileSystem fs = newOverlay(lower.getPath("/lower"));
+
+        try (FileChannel channel = FileChannel.open(fs.getPath("/large"), StandardOpenOption.READ)) {
+            Files.delete(lower.getPath("/lower/large"));
+            channel.read(ByteBuffer.allocate(10));
+            fail("lower file can't be read anymore");
+        } catch (IOException e) {
+            assertThat(e.getMessage()).contains("unable to read lower file");
+        }
+    }
+
+    @Test
+    public void lowerFileModifiedWhileOpen() throws IOException {
+        MemoryFileSystem lower = newLowerLayer();
+        MemoryFileSystem fs = newCache(lower.getPath("/lower"), 100 * 1000);
+
+        try (FileChannel channel = FileChannel.open(fs.getPath("/large"), StandardOpenOption.READ)) {
+            channel.read(ByteBuffer.allocate(10));
+            Files.write(lower.getPath("/lower/large"), randomBytes(60 * 1000));
+            channel.read(ByteBuffer.allocate(10), 40 * 1000);
+            fail("content already read can't be mixed with new content");
+        } catch (IOException e) {
+            assertThat(e.getCause().getMessage()).isEqualTo("lower file modified while in use");
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void lowerDirectoryDeletedBeforeListing() throws IOException {
+        MemoryFileSystem lower = newLowerLayer();
+        MemoryFileSystem fs = newOverlay(lower.getPath("/lower"));
+        assertThat(Files.isDirectory(fs.getPath("/a"))).isTrue();
+
+        Files.delete(lower.getPath("/lower/a/file"));
+        Files.delete(lower.getPath("/lower/a/empty"));
+        Files.delete(lower.getPath("/lower/a"));
+        Files.newDirectoryStream(fs.getPath("/a")).close();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void cacheRequiresLowerLayer() {
+        MemoryFileSystem.builder(new MemoryFileSystemProvider()).cache(1000).build();
+    }
+
+    @Test
+    public void noCacheStatisticsWithoutLowerLayer() throws IOException {
+        MemoryFileSystem fs = MemoryFileSystem.builder(new MemoryFileSystemProvider()).build();
+        assertThat(Files.getFileStore(fs.getPath("/")).getFileStoreAttributeView(CacheAttributeView.class)).isNull();
+        assertThat(Files.getFileStore(fs.getPath("/")).getAttribute("cache:hits")).isNull();
+    }
+
+    private static MemoryFileSystem newLowerLayer() throws IOException {
+        MemoryFileSystem lower = MemoryFileSystem.builder(new MemoryFileSystemProvider()).build();
+        Files.createDirectories(lower.getPath("/lower/a"));
+        Files.write(lower.getPath("/lower/a/file"), new byte[]{1, 2, 3});
+        Files.createFile(lower.getPath("/lower/a/empty"));
+        Files.write(lower.getPath("/lower/large"), randomBytes(50 * 1000));
+        return lower;
+    }
+
+    private static MemoryFileSystem newOverlay(Path lower) {
+        return MemoryFileSystem.builder(new MemoryFileSystemProvider()).blockSize(1000).lower(lower).build();
+    }
+
+    private static MemoryFileSystem newCache(Path lower, long budget) {
+        return MemoryFileSystem.builder(new MemoryFileSystemProvider()).blockSize(1000).lower(lower).cache(budget).build();
+    }
+
+    private static List<String> list(Path directory) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                names.add(path.getFileName().toString());
+            }
+        }
+        return names;
+    }
+
+    private static Snapshot.Change change(MemoryFileSystem fs, Snapshot.Change.Type type, String path) {
+        return new Snapshot.Change(type, fs.getPath(path));
+    }
+}
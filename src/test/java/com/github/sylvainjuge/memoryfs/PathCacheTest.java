@@ -0,0 +1,227 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class PathCacheTest {
+
+    @Test
+    public void deleteInvalidatesLookup() throws IOException {
+        MemoryFileSystem fs = newFileSystem(16);
+        Path file = createFile(fs, "/a/b/file");
+        assertThat(Files.exists(file)).isTrue();
+
+        Files.delete(file);
+        assertThat(Files.exists(file)).isFalse();
+
+        // same path, new entry
+        Files.write(file, new byte[]{1});
+        assertThat(Files.readAllBytes(file)).isEqualTo(new byte[]{1});
+    }
+
+    @Test
+    public void deleteParentInvalidatesLookup() throws IOException {
+        MemoryFileSystem fs = newFileSystem(16);
+        Path file = createFile(fs, "/a/b/file");
+        assertThat(Files.exists(file)).isTrue();
+
+        Files.delete(file);
+        Files.delete(fs.getPath("/a/b"));
+        Files.createDirectories(fs.getPath("/a/b"));
+        assertThat(Files.exists(file)).isFalse();
+    }
+
+    @Test
+    public void moveInvalidatesLookup() throws IOException {
+        MemoryFileSystem fs = newFileSystem(16);
+        Path file = createFile(fs, "/a/b/file");
+        assertThat(Files.exists(file)).isTrue();
+
+        Path moved = fs.getPath("/a/moved");
+        Files.move(file, moved);
+        assertThat(Files.exists(file)).isFalse();
+        assertThat(Files.exists(moved)).isTrue();
+
+        // moved back to same path
+        Files.move(moved, file);
+        assertThat(Files.exists(file)).isTrue();
+        assertThat(Files.exists(moved)).isFalse();
+    }
+
+    @Test
+    public void moveParentInvalidatesLookup() throws IOException {
+        MemoryFileSystem fs = newFileSystem(16);
+        Path file = createFile(fs, "/a/b/file");
+        assertThat(Files.exists(file)).isTrue();
+
+        Files.move(fs.getPath("/a"), fs.getPath("/renamed"));
+        assertThat(Files.exists(file)).isFalse();
+        assertThat(Files.exists(fs.getPath("/renamed/b/file"))).isTrue();
+
+        Files.createDirectories(fs.getPath("/c"));
+        Files.move(fs.getPath("/renamed/b"), fs.getPath("/c/b"));
+        assertThat(Files.exists(fs.getPath("/renamed/b/file"))).isFalse();
+        assertThat(Files.exists(fs.getPath("/c/b/file"))).isTrue();
+    }
+
+    @Test
+    public void rollbackInvalidatesLookup() throws IOException {
+        MemoryFileSystem fs = newFileSystem(16);
+        Path file = createFile(fs, "/a/b/file");
+        Snapshot snapshot = fs.snapshot();
+
+        Files.move(fs.getPath("/a"), fs.getPath("/renamed"));
+        Path moved = fs.getPath("/renamed/b/file");
+        assertThat(Files.exists(moved)).isTrue();
+
+        snapshot.rollback();
+        assertThat(Files.exists(moved)).isFalse();
+        assertThat(Files.exists(file)).isTrue();
+    }
+
+    @Test
+    public void createInvalidatesMissingLookup() throws IOException {
+        MemoryFileSystem fs = newFileSystem(16);
+        Path file = fs.getPath("/a/b/file");
+        assertThat(Files.exists(file)).isFalse();
+
+        Files.createDirectories(file.getParent());
+        assertThat(Files.exists(file)).isFalse();
+        Files.createFile(file);
+        assertThat(Files.exists(file)).isTrue();
+    }
+
+    @Test
+    public void moveInvalidatesMissingLookup() throws IOException {
+        MemoryFileSystem fs = newFileSystem(16);
+        Path source = createFile(fs, "/a/file");
+        Path target = fs.getPath("/a/moved");
+        assertThat(Files.exists(target)).isFalse();
+
+        Files.move(source, target);
+        assertThat(Files.exists(target)).isTrue();
+        assertThat(Files.exists(source)).isFalse();
+    }
+
+    @Test
+    public void replacedFileInvalidatesMissingLookup() throws IOException {
+        MemoryFileSystem fs = newFileSystem(16);
+        Path file = createFile(fs, "/a/file");
+        Path child = fs.getPath("/a/file/child");
+        assertThat(Files.exists(child)).isFalse();
+
+        Files.move(file, fs.getPath("/a/other"));
+        createFile(fs, "/a/file/child");
+        assertThat(Files.exists(child)).isTrue();
+    }
+
+    @Test
+    public void missingPathExceptionHasNoStackTrace() throws IOException {
+        MemoryFileSystem fs = newFileSystem(16);
+        Path missing = fs.getPath("/missing");
+        for (int i = 0; i < 2; i++) {
+            try {
+                missing.getFileSystem().provider().checkAccess(missing);
+                fail("missing path expected");
+            } catch (NoSuchFileException e) {
+                assertThat(e.getStackTrace()).isEmpty();
+                assertThat(e.getMessage()).contains("/missing");
+            }
+        }
+    }
+
+    @Test
+    public void lookupsBeyondCapacity() throws IOException {
+        MemoryFileSystem fs = newFileSystem(4);
+        Files.createDirectory(fs.getPath("/dir"));
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 20; j++) {
+                Path file = fs.getPath("/dir/file" + j);
+                if (0 == i) {
+                    Files.createFile(file);
+                }
+                assertThat(Files.exists(file)).isTrue();
+            }
+        }
+    }
+
+    @Test
+    public void lookupDuringCreateIsNotCached() throws IOException {
+        MemoryFileSystem fs = newFileSystem(16);
+        Files.createDirectory(fs.getPath("/a"));
+        final Path file = fs.getPath("/a/file");
+
+        // looked up once directory modification has started, but before file is linked
+        final boolean[] existed = new boolean[1];
+        Entry.changeHook = new Runnable() {
+            @Override
+            public void run() {
+                Entry.changeHook = null;
+                existed[0] = Files.exists(file);
+            }
+        };
+        try {
+            Files.createFile(file);
+        } finally {
+            Entry.changeHook = null;
+        }
+        assertThat(existed[0]).isFalse();
+        assertThat(Files.exists(file)).isTrue();
+    }
+
+    @Test
+    public void lookupDuringDirectoryRenameIsNotCached() throws IOException {
+        MemoryFileSystem fs = newFileSystem(16);
+        final Path file = createFile(fs, "/a/file");
+
+        // looked up once rename has started, but before directory is renamed
+        final boolean[] existed = new boolean[1];
+        Entry.changeHook = new Runnable() {
+            @Override
+            public void run() {
+                Entry.changeHook = null;
+                existed[0] = Files.exists(file);
+            }
+        };
+        try {
+            Files.move(fs.getPath("/a"), fs.getPath("/b"));
+        } finally {
+            Entry.changeHook = null;
+        }
+        assertThat(existed[0]).isTrue();
+        assertThat(Files.exists(file)).isFalse();
+        assertThat(Files.exists(fs.getPath("/b/file"))).isTrue();
+    }
+
+    @Test
+    public void disabledCache() throws IOException {
+        MemoryFileSystem fs = newFileSystem(0);
+        Path file = createFile(fs, "/a/file");
+        assertThat(Files.exists(file)).isTrue();
+        Files.move(fs.getPath("/a"), fs.getPath("/b"));
+        assertThat(Files.exists(file)).isFalse();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void negativeCapacity() {
+        MemoryFileSystem.builder(new MemoryFileSystemProvider()).lookupCache(-1);
+    }
+
+    private static Path createFile(MemoryFileSystem fs, String path) throws IOException {
+        Path file = fs.getPath(path);
+        Files.createDirectories(file.getParent());
+        Files.createFile(file);
+        return file;
+    }
+
+    private static MemoryFileSystem newFileSystem(int capacity) {
+        return MemoryFileSystem.builder(new MemoryFileSystemProvider()).lookupCache(capacity).build();
+    }
+}
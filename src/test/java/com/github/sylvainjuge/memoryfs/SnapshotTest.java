@@ -0,0 +1,176 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static com.github.sylvainjuge.memoryfs.TestFileSystems.newFileSystem;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SnapshotTest {
+
+    @Test
+    public void rollbackRestoresTree() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.createDirectories(fs.getPath("/a/b"));
+        Files.write(fs.getPath("/a/b/file"), new byte[]{1, 2, 3});
+        Files.write(fs.getPath("/a/deleted"), new byte[]{4});
+        Files.createDirectories(fs.getPath("/tree/sub"));
+        Files.write(fs.getPath("/tree/sub/file"), new byte[]{5});
+        long used = fs.getSpace().getUsed();
+
+        Snapshot snapshot = fs.snapshot();
+        Files.write(fs.getPath("/a/b/file"), new byte[]{9}, StandardOpenOption.APPEND);
+        Files.delete(fs.getPath("/a/deleted"));
+        Files.move(fs.getPath("/a/b"), fs.getPath("/moved"));
+        Files.write(fs.getPath("/created"), new byte[10]);
+        Files.createDirectories(fs.getPath("/new/dir"));
+        Files.move(fs.getPath("/tree/sub/file"), fs.getPath("/new/dir/file"));
+        Files.delete(fs.getPath("/tree/sub"));
+
+        snapshot.rollback();
+        assertThat(Files.readAllBytes(fs.getPath("/a/b/file"))).isEqualTo(new byte[]{1, 2, 3});
+        assertThat(Files.readAllBytes(fs.getPath("/a/deleted"))).isEqualTo(new byte[]{4});
+        assertThat(Files.readAllBytes(fs.getPath("/tree/sub/file"))).isEqualTo(new byte[]{5});
+        assertThat(Files.exists(fs.getPath("/moved"))).isFalse();
+        assertThat(Files.exists(fs.getPath("/created"))).isFalse();
+        assertThat(Files.exists(fs.getPath("/new"))).isFalse();
+        assertThat(fs.getSpace().getUsed()).isEqualTo(used);
+    }
+
+    @Test
+    public void rollbackSeveralTimes() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.write(fs.getPath("/file"), new byte[]{1});
+        Snapshot snapshot = fs.snapshot();
+        for (int i = 0; i < 3; i++) {
+            Files.write(fs.getPath("/file"), new byte[]{2});
+            Files.createFile(fs.getPath("/other"));
+            snapshot.rollback();
+            assertThat(Files.readAllBytes(fs.getPath("/file"))).isEqualTo(new byte[]{1});
+            assertThat(Files.exists(fs.getPath("/other"))).isFalse();
+        }
+    }
+
+    @Test
+    public void snapshotSharesContentUntilModified() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.write(fs.getPath("/file"), new byte[5000]);
+        Snapshot snapshot = fs.snapshot();
+        try (FileChannel channel = FileChannel.open(fs.getPath("/file"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1}), 2500);
+        }
+        snapshot.rollback();
+        assertThat(Files.readAllBytes(fs.getPath("/file"))).isEqualTo(new byte[5000]);
+    }
+
+    @Test
+    public void diffListsChanges() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.createDirectories(fs.getPath("/a/b"));
+        Files.write(fs.getPath("/a/b/modified"), new byte[]{1});
+        Files.write(fs.getPath("/a/b/rewritten"), new byte[]{1});
+        Files.createFile(fs.getPath("/a/deleted"));
+        Files.createFile(fs.getPath("/a/renamed"));
+
+        Snapshot snapshot = fs.snapshot();
+        assertThat(snapshot.diff()).isEmpty();
+        Files.write(fs.getPath("/a/b/modified"), new byte[]{2});
+        // same content is not a modification
+        Files.write(fs.getPath("/a/b/rewritten"), new byte[]{1});
+        Files.delete(fs.getPath("/a/deleted"));
+        Files.move(fs.getPath("/a/renamed"), fs.getPath("/a/new-name"));
+        Files.createDirectories(fs.getPath("/c/d"));
+        Files.move(fs.getPath("/a/b"), fs.getPath("/c/d/b"));
+
+        assertThat(snapshot.diff()).containsExactly(
+                change(fs, Snapshot.Change.Type.DELETED, "/a/b"),
+                change(fs, Snapshot.Change.Type.DELETED, "/a/deleted"),
+                change(fs, Snapshot.Change.Type.CREATED, "/a/new-name"),
+                change(fs, Snapshot.Change.Type.DELETED, "/a/renamed"),
+                change(fs, Snapshot.Change.Type.CREATED, "/c"),
+                change(fs, Snapshot.Change.Type.MODIFIED, "/c/d/b/modified"));
+    }
+
+    @Test
+    public void severalSnapshots() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Files.write(fs.getPath("/file"), new byte[]{1});
+        Snapshot first = fs.snapshot();
+        Files.createFile(fs.getPath("/second"));
+        Snapshot second = fs.snapshot();
+        // only saved by second snapshot, but also part of first one
+        Files.write(fs.getPath("/file"), new byte[]{3});
+
+        assertThat(first.diff()).containsExactly(
+                change(fs, Snapshot.Change.Type.MODIFIED, "/file"),
+                change(fs, Snapshot.Change.Type.CREATED, "/second"));
+        assertThat(second.diff()).containsExactly(change(fs, Snapshot.Change.Type.MODIFIED, "/file"));
+
+        // first snapshot remains valid once second snapshot is closed
+        second.close();
+        first.rollback();
+        assertThat(Files.readAllBytes(fs.getPath("/file"))).isEqualTo(new byte[]{1});
+        assertThat(Files.exists(fs.getPath("/second"))).isFalse();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void rollbackClosesLaterSnapshots() throws IOException {
+        MemoryFileSystem fs = newFileSystem();
+        Snapshot first = fs.snapshot();
+        Snapshot second = fs.snapshot();
+        first.rollback();
+        second.diff();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void closedSnapshotCanNotBeUsed() throws IOException {
+        Snapshot snapshot = newFileSystem().snapshot();
+        snapshot.close();
+        snapshot.rollback();
+    }
+
+    @Test
+    public void forkSnapshot() throws IOException {
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider();
+        MemoryFileSystem fs = MemoryFileSystem.builder(provider).id("template").build();
+        Files.createDirectories(fs.getPath("/dir"));
+        Files.write(fs.getPath("/dir/file"), new byte[]{1});
+        Snapshot snapshot = fs.snapshot();
+        Files.write(fs.getPath("/dir/file"), new byte[]{2});
+        Files.move(fs.getPath("/dir"), fs.getPath("/moved"));
+
+        try (MemoryFileSystem fork = MemoryFileSystem.builder(provider).id("fork").template(snapshot).build()) {
+            // snapshot is only released once fork is closed
+            snapshot.close();
+            assertThat(Files.readAllBytes(fork.getPath("/dir/file"))).isEqualTo(new byte[]{1});
+            assertThat(Files.exists(fork.getPath("/moved"))).isFalse();
+        }
+        fs.close();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void rollbackForkedSnapshot() throws IOException {
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider();
+        MemoryFileSystem fs = MemoryFileSystem.builder(provider).id("template").build();
+        Snapshot snapshot = fs.snapshot();
+        MemoryFileSystem.builder(provider).id("fork").template(snapshot).build();
+        snapshot.rollback();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void forkClosedSnapshot() throws IOException {
+        MemoryFileSystemProvider provider = new MemoryFileSystemProvider();
+        Snapshot snapshot = MemoryFileSystem.builder(provider).id("template").build().snapshot();
+        snapshot.close();
+        MemoryFileSystem.builder(provider).id("fork").template(snapshot).build();
+    }
+
+    private static Snapshot.Change change(MemoryFileSystem fs, Snapshot.Change.Type type, String path) {
+        return new Snapshot.Change(type, fs.getPath(path));
+    }
+}
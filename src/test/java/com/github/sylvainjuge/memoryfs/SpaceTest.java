@@ -0,0 +1,136 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpaceTest {
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void negativeCapacityNotAllowed() {
+        new Space(-1);
+    }
+
+    @Test
+    public void allocateAndFree() throws NoSpaceLeftException {
+        Space space = new Space(10);
+        space.allocate(4);
+        assertThat(space.getUsed()).isEqualTo(4);
+        assertThat(space.getFree()).isEqualTo(6);
+        space.free(3);
+        assertThat(space.getUsed()).isEqualTo(1);
+        assertThat(space.getFree()).isEqualTo(9);
+    }
+
+    @Test
+    public void allocationFailureDoesNotReserveAnything() throws NoSpaceLeftException {
+        Space space = new Space(10);
+        space.allocate(8);
+        try {
+            space.allocate(3);
+        } catch (NoSpaceLeftException e) {
+            // expected
+        }
+        assertThat(space.getUsed()).isEqualTo(8);
+        space.allocate(2);
+        assertThat(space.getFree()).isEqualTo(0);
+    }
+
+    @Test
+    public void unlimitedSpaceOnlyAccountsUsage() throws NoSpaceLeftException {
+        Space space = new Space(0);
+        space.allocate(Long.MAX_VALUE / 2);
+        assertThat(space.getUsed()).isEqualTo(Long.MAX_VALUE / 2);
+        assertThat(space.getFree()).isEqualTo(0);
+    }
+
+    @Test
+    public void spaceBeyondReservationIsBorrowedFromBudget() throws NoSpaceLeftException {
+        Budget budget = new Budget(100, 0, TimeUnit.MILLISECONDS);
+        Space space = new Space(0, budget, 20);
+        assertThat(budget.getAvailable()).isEqualTo(80);
+
+        space.allocate(15);
+        assertThat(budget.getAvailable()).isEqualTo(80);
+        space.allocate(15);
+        assertThat(space.getCommitted()).isEqualTo(30);
+        assertThat(budget.getAvailable()).isEqualTo(70);
+
+        space.free(25);
+        assertThat(space.getCommitted()).isEqualTo(20);
+        assertThat(budget.getAvailable()).isEqualTo(80);
+
+        space.close();
+        assertThat(budget.getAvailable()).isEqualTo(100);
+    }
+
+    @Test
+    public void preparedSpaceIsKeptUntilSettled() throws NoSpaceLeftException {
+        Budget budget = new Budget(100, 0, TimeUnit.MILLISECONDS);
+        Space space = new Space(0, budget, 0);
+        long prepared = space.prepare(30);
+        assertThat(budget.getAvailable()).isEqualTo(70);
+
+        space.allocate(10);
+        space.free(10);
+        assertThat(budget.getAvailable()).isEqualTo(70);
+
+        space.allocate(20);
+        space.settle(prepared);
+        assertThat(space.getCommitted()).isEqualTo(20);
+        assertThat(budget.getAvailable()).isEqualTo(80);
+    }
+
+    @Test
+    public void budgetFailureDoesNotReserveAnything() throws NoSpaceLeftException {
+        Budget budget = new Budget(10, 0, TimeUnit.MILLISECONDS);
+        Space space = new Space(100, budget, 0);
+        space.allocate(6);
+        try {
+            space.allocate(5);
+        } catch (NoSpaceLeftException e) {
+            // expected
+        }
+        assertThat(space.getUsed()).isEqualTo(6);
+        assertThat(budget.getAvailable()).isEqualTo(4);
+        assertThat(space.getUsable()).isEqualTo(4);
+    }
+
+    @Test
+    public void concurrentAllocationsNeverExceedCapacity() throws Exception {
+        final Space space = new Space(1000);
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int allocated = 0;
+                    for (int j = 0; j < 1000; j++) {
+                        try {
+                            space.allocate(1);
+                            allocated++;
+                        } catch (NoSpaceLeftException e) {
+                            // expected once capacity is reached
+                        }
+                    }
+                    return allocated;
+                }
+            });
+        }
+        int total = 0;
+        try (TestExecutorService pool = TestExecutorService.wrap(Executors.newFixedThreadPool(8))) {
+            for (Future<Integer> future : pool.invokeAll(tasks)) {
+                total += future.get();
+            }
+        }
+        assertThat(total).isEqualTo(1000);
+        assertThat(space.getFree()).isEqualTo(0);
+    }
+}
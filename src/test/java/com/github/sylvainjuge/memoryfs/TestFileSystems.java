@@ -0,0 +1,27 @@
+package com.github.sylvainjuge.memoryfs;
+
+import java.util.Random;
+
+public final class TestFileSystems {
+
+    private TestFileSystems() {
+        // uncallable constructor
+    }
+
+    /**
+     * @return new filesystem with small blocks, thus test files span several blocks
+     */
+    public static MemoryFileSystem newFileSystem() {
+        return MemoryFileSystem.builder(new MemoryFileSystemProvider()).blockSize(1000).build();
+    }
+
+    /**
+     * @param size number of bytes
+     * @return pseudo-random bytes, same for all calls with the same size, thus test failures are reproducible
+     */
+    public static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
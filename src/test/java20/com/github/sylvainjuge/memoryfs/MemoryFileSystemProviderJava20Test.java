@@ -0,0 +1,60 @@
+package com.github.sylvainjuge.memoryfs;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.spi.FileSystemProvider;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests of JDK 20 and later version of {@link MemoryFileSystemProvider}, only run with "java20" profile
+ */
+public class MemoryFileSystemProviderJava20Test {
+
+    @Test
+    public void existsWithoutException() throws Exception {
+        MemoryFileSystem fs = MemoryFileSystem.builder(new MemoryFileSystemProvider()).build();
+        FileSystemProvider provider = fs.provider();
+        // default implementation relies on exceptions thrown for missing files
+        assertThat(provider.getClass().getMethod("exists", Path.class, LinkOption[].class).getDeclaringClass())
+                .isEqualTo(MemoryFileSystemProvider.class);
+
+        Path file = Files.createFile(fs.getPath("/file"));
+        assertThat(provider.exists(file)).isTrue();
+        assertThat(provider.exists(fs.getPath("/"))).isTrue();
+        assertThat(provider.exists(fs.getPath("/missing"))).isFalse();
+        assertThat(provider.exists(fs.getPath("/missing/child"))).isFalse();
+        assertThat(provider.exists(file.resolve("child"))).isFalse();
+    }
+
+    @Test
+    public void readAttributesIfExistsWithoutException() throws Exception {
+        MemoryFileSystem fs = MemoryFileSystem.builder(new MemoryFileSystemProvider()).build();
+        FileSystemProvider provider = fs.provider();
+        assertThat(provider.getClass().getMethod("readAttributesIfExists", Path.class, Class.class, LinkOption[].class).getDeclaringClass())
+                .isEqualTo(MemoryFileSystemProvider.class);
+
+        Path file = Files.createFile(fs.getPath("/file"));
+        BasicFileAttributes attributes = provider.readAttributesIfExists(file, BasicFileAttributes.class);
+        assertThat(attributes.isRegularFile()).isTrue();
+        assertThat(provider.readAttributesIfExists(fs.getPath("/missing"), BasicFileAttributes.class)).isNull();
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void readAttributesIfExistsUnsupportedType() throws IOException {
+        MemoryFileSystem fs = MemoryFileSystem.builder(new MemoryFileSystemProvider()).build();
+        fs.provider().readAttributesIfExists(fs.getPath("/"), PosixFileAttributes.class);
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void readAttributesIfExistsUnsupportedTypeOfMissingFile() throws IOException {
+        MemoryFileSystem fs = MemoryFileSystem.builder(new MemoryFileSystemProvider()).build();
+        fs.provider().readAttributesIfExists(fs.getPath("/missing"), PosixFileAttributes.class);
+    }
+}